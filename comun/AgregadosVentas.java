@@ -0,0 +1,238 @@
+package comun;
+
+import java.io.*;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/***********************************************************************************************************************
+ * Agregados de ventas de la BD local, mantenidos en cada escritura.
+ * Lleva cantidad, litros y monto (enteros en milésimas, sin error acumulado al sumar) en total, por TipoCombustible,
+ * por idCliente (surtidor) y por hora, de modo que las estadísticas y los totales del reporte no recorren las
+ * transacciones. Se persisten en el manifiesto de la BD, que indica hasta qué byte del principal cubren; al abrir la BD
+ * solo se agregan los registros posteriores. */
+/**********************************************************************************************************************/
+public class AgregadosVentas {
+
+    private final Acumulado total;
+    private final EnumMap<TipoCombustible, Acumulado> porCombustible;
+    private final Map<String, Acumulado> porCliente;
+    private final TreeMap<LocalDateTime, Acumulado> porHora; // clave: inicio de la hora
+
+    /**
+     * Cantidad, litros y monto de un grupo de transacciones. */
+    public static class Acumulado implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        private long cantidad;
+        private long litros; // milésimas (Transaccion.UNIDADES)
+        private long monto;
+
+        public Acumulado() {
+        }
+
+        private Acumulado(long cantidad, long litros, long monto) {
+            this.cantidad = cantidad;
+            this.litros = litros;
+            this.monto = monto;
+        }
+
+        private void sumar(Transaccion t, int signo) {
+            cantidad += signo;
+            litros += signo * t.getLitrosMilesimas();
+            monto += signo * t.getMontoMilesimas();
+        }
+
+        private void sumar(Acumulado otro, int signo) {
+            cantidad += signo * otro.cantidad;
+            litros += signo * otro.litros;
+            monto += signo * otro.monto;
+        }
+
+        private Acumulado copia() {
+            return new Acumulado(cantidad, litros, monto);
+        }
+
+        //GETTERS
+        public long getCantidad() { return cantidad; }
+        public double getLitros() { return Transaccion.deMilesimas(litros); }
+        public double getMonto() { return Transaccion.deMilesimas(monto); }
+        public long getLitrosMilesimas() { return litros; }
+        public long getMontoMilesimas() { return monto; }
+
+        @Override
+        public String toString() {
+            return String.format("%d transacciones, %.2f L, $%.2f", cantidad, getLitros(), getMonto());
+        }
+    }
+
+    //CONSTRUCTOR
+    public AgregadosVentas() {
+        this.total = new Acumulado();
+        this.porCombustible = new EnumMap<>(TipoCombustible.class);
+        this.porCliente = new HashMap<>();
+        this.porHora = new TreeMap<>();
+    }
+
+    /**
+     * Suma una transacción confirmada. */
+    public synchronized void registrar(Transaccion t) {
+        aplicar(t, 1);
+    }
+
+    /**
+     * Suma los agregados de otro grupo de transacciones (p. ej. la cola releída al abrir la BD). */
+    public synchronized void sumar(AgregadosVentas otros) {
+        combinar(otros, 1);
+    }
+
+    /**
+     * Resta los agregados de transacciones que dejaron de estar en la BD (p. ej. un segmento retirado por la
+     * retención). */
+    public synchronized void restar(AgregadosVentas retirados) {
+        combinar(retirados, -1);
+    }
+
+    private void combinar(AgregadosVentas otros, int signo) {
+        synchronized (otros) {
+            total.sumar(otros.total, signo);
+            combinarEn(porCombustible, otros.porCombustible, signo);
+            combinarEn(porCliente, otros.porCliente, signo);
+            combinarEn(porHora, otros.porHora, signo);
+        }
+    }
+
+    /**
+     * Vacía los agregados (antes de reconstruirlos desde las transacciones). */
+    public synchronized void reiniciar() {
+        total.cantidad = 0;
+        total.litros = 0;
+        total.monto = 0;
+        porCombustible.clear();
+        porCliente.clear();
+        porHora.clear();
+    }
+
+    private void aplicar(Transaccion t, int signo) {
+        total.sumar(t, signo);
+        sumarEn(porCombustible, t.getTipoCombustible(), t, signo);
+        sumarEn(porCliente, t.getIdCliente(), t, signo);
+        sumarEn(porHora, hora(t.getFechaMilis()), t, signo);
+    }
+
+    private static LocalDateTime hora(long milis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(milis, 3_600_000L) * 3600, 0, ZoneOffset.UTC);
+    }
+
+    private static <K> void sumarEn(Map<K, Acumulado> mapa, K clave, Transaccion t, int signo) {
+        Acumulado acumulado = mapa.computeIfAbsent(clave, k -> new Acumulado());
+        acumulado.sumar(t, signo);
+        if (acumulado.cantidad <= 0) {
+            mapa.remove(clave);
+        }
+    }
+
+    private static <K> void combinarEn(Map<K, Acumulado> mapa, Map<K, Acumulado> otros, int signo) {
+        for (Map.Entry<K, Acumulado> e : otros.entrySet()) {
+            Acumulado acumulado = signo > 0 ? mapa.computeIfAbsent(e.getKey(), k -> new Acumulado())
+                    : mapa.get(e.getKey());
+            if (acumulado == null) continue;
+            acumulado.sumar(e.getValue(), signo);
+            if (acumulado.cantidad <= 0) {
+                mapa.remove(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Registros que cubren los agregados. */
+    public synchronized long getRegistros() {
+        return total.cantidad;
+    }
+
+    public synchronized Acumulado getTotal() {
+        return total.copia();
+    }
+
+    public synchronized Map<TipoCombustible, Acumulado> porCombustible() {
+        Map<TipoCombustible, Acumulado> copia = new EnumMap<>(TipoCombustible.class);
+        porCombustible.forEach((tipo, a) -> copia.put(tipo, a.copia()));
+        return copia;
+    }
+
+    public synchronized Map<String, Acumulado> porCliente() {
+        Map<String, Acumulado> copia = new TreeMap<>();
+        porCliente.forEach((cliente, a) -> copia.put(cliente, a.copia()));
+        return copia;
+    }
+
+    /**
+     * Agregados por hora entre dos fechas (desde inclusive, hasta exclusivo; null = sin límite). */
+    public synchronized SortedMap<LocalDateTime, Acumulado> porHora(LocalDateTime desde, LocalDateTime hasta) {
+        SortedMap<LocalDateTime, Acumulado> rango = porHora;
+        if (desde != null) rango = rango.tailMap(desde.truncatedTo(ChronoUnit.HOURS));
+        if (hasta != null) rango = rango.headMap(hasta);
+        SortedMap<LocalDateTime, Acumulado> copia = new TreeMap<>();
+        rango.forEach((hora, a) -> copia.put(hora, a.copia()));
+        return Collections.unmodifiableSortedMap(copia);
+    }
+
+    /**
+     * Escribe los agregados (se guardan dentro del manifiesto de la BD, ver Manifiesto). */
+    public synchronized void escribir(DataOutputStream out) throws IOException {
+        escribirAcumulado(out, total);
+        out.writeInt(porCombustible.size());
+        for (Map.Entry<TipoCombustible, Acumulado> e : porCombustible.entrySet()) {
+            out.writeUTF(e.getKey().name());
+            escribirAcumulado(out, e.getValue());
+        }
+        out.writeInt(porCliente.size());
+        for (Map.Entry<String, Acumulado> e : porCliente.entrySet()) {
+            out.writeUTF(e.getKey());
+            escribirAcumulado(out, e.getValue());
+        }
+        out.writeInt(porHora.size());
+        for (Map.Entry<LocalDateTime, Acumulado> e : porHora.entrySet()) {
+            out.writeLong(e.getKey().toEpochSecond(ZoneOffset.UTC));
+            escribirAcumulado(out, e.getValue());
+        }
+    }
+
+    public static AgregadosVentas leer(DataInputStream in) throws IOException {
+        AgregadosVentas agregados = new AgregadosVentas();
+        Acumulado total = leerAcumulado(in);
+        agregados.total.cantidad = total.cantidad;
+        agregados.total.litros = total.litros;
+        agregados.total.monto = total.monto;
+        try {
+            for (int i = in.readInt(); i > 0; i--) {
+                agregados.porCombustible.put(TipoCombustible.valueOf(in.readUTF()), leerAcumulado(in));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("tipo de combustible desconocido: " + e.getMessage());
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            agregados.porCliente.put(in.readUTF(), leerAcumulado(in));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            agregados.porHora.put(LocalDateTime.ofEpochSecond(in.readLong(), 0, ZoneOffset.UTC), leerAcumulado(in));
+        }
+        return agregados;
+    }
+
+    private static void escribirAcumulado(DataOutputStream out, Acumulado a) throws IOException {
+        out.writeLong(a.cantidad);
+        out.writeLong(a.litros);
+        out.writeLong(a.monto);
+    }
+
+    private static Acumulado leerAcumulado(DataInputStream in) throws IOException {
+        return new Acumulado(in.readLong(), in.readLong(), in.readLong());
+    }
+}
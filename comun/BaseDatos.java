@@ -1,35 +1,164 @@
 package comun;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /***********************************************************************************************************************
  * Base de Datos Local del Distribuidor (Nivel 2).
- * Maneja la persistencia y la redundancia (principal y backup) usando archivos. */
+ * Maneja la persistencia y la redundancia (principal y backup) usando archivos. Cada réplica se divide en segmentos
+ * (ver PoliticaSegmentos): el archivo activo y los sellados, que un hilo compactador comprime y retira. */
 /**********************************************************************************************************************/
-public class BaseDatos {
+public class BaseDatos implements MotorAlmacenamiento {
+    /**
+     * Formato de los archivos de réplica. CSV es el formato histórico; BINARIO usa registros de ancho fijo
+     * (ver RegistroBinario) y deja el CSV solo como formato de exportación. */
+    public enum Formato {
+        CSV(".csv"),
+        BINARIO(".bin");
+
+        private final String extension;
+
+        Formato(String extension) {
+            this.extension = extension;
+        }
+    }
+
     private final String idDistribuidor;
+    private final Formato formato;
     private final String FILE_PRINCIPAL;
     private final String FILE_BACKUP;
     private AtomicLong totalTransacciones; // para evitar condiciones de carrera
+    private final BitacoraGrupal bitacora; // escritura agrupada en principal y backup
+    private final SumasBloques sumasPrincipal; // checksums por bloque de cada réplica
+    private final SumasBloques sumasBackup;
+    private final PoliticaSegmentos politica;
+    private final Segmentos segmentosPrincipal;
+    private final Segmentos segmentosBackup;
+    private volatile LocalDate diaSegmento; // día en que empezó el segmento activo
+    private ExecutorService compactador; // se crea con la primera rotación
+    private final String FILE_MANIFIESTO;
+    private final AgregadosVentas agregados; // totales mantenidos en cada escritura
+    private final SortedMap<Integer, Long> registrosSellados; // registros de cada segmento sellado, por número
+    private long registrosActivo; // registros del segmento activo (hilo escritor o con la escritura en pausa)
+    private long offsetCubierto; // fin del último registro sumado a los agregados, en el segmento activo
+    private int sinCheckpoint; // confirmadas desde el último checkpoint (solo el hilo escritor)
+    private volatile IndiceSegmento indiceActivo; // índice disperso del segmento activo del principal
+    private final Map<Path, IndiceSegmento> indicesSellados; // cargados al consultar
+
+    private static final int CHECKPOINT_CADA = 10_000;
 
     public BaseDatos(String idDistribuidor) {
+        this(idDistribuidor, Formato.CSV);
+    }
+
+    public BaseDatos(String idDistribuidor, Formato formato) {
+        this(idDistribuidor, formato, ModoDurabilidad.SINCRONA_AMBAS);
+    }
+
+    public BaseDatos(String idDistribuidor, Formato formato, ModoDurabilidad modo) {
+        this(idDistribuidor, formato, modo, PoliticaSegmentos.POR_DEFECTO);
+    }
+
+    public BaseDatos(String idDistribuidor, Formato formato, ModoDurabilidad modo, PoliticaSegmentos politica) {
+        this(idDistribuidor, formato, modo, politica, BitacoraGrupal.MAX_LOTE_DEFECTO,
+                BitacoraGrupal.MAX_ESPERA_MS_DEFECTO);
+    }
+
+    public BaseDatos(String idDistribuidor, Formato formato, int maxLote, long maxEsperaMs) {
+        this(idDistribuidor, formato, ModoDurabilidad.SINCRONA_AMBAS, PoliticaSegmentos.POR_DEFECTO, maxLote,
+                maxEsperaMs);
+    }
+
+    /**
+     * @param modo        cuándo se considera guardada una transacción (ver ModoDurabilidad)
+     * @param politica    rotación, compresión y retención de segmentos
+     * @param maxLote     máximo de transacciones confirmadas en un mismo commit
+     * @param maxEsperaMs tiempo máximo que el primer registro de un lote espera a que lleguen otros */
+    public BaseDatos(String idDistribuidor, Formato formato, ModoDurabilidad modo, PoliticaSegmentos politica,
+                     int maxLote, long maxEsperaMs) {
         this.idDistribuidor = idDistribuidor;
+        this.formato = formato;
+        this.politica = politica;
         // direcciones (path)
-        this.FILE_PRINCIPAL = "data/" + idDistribuidor + "_principal.csv";
-        this.FILE_BACKUP = "data/" + idDistribuidor + "_backup.csv";
+        this.FILE_PRINCIPAL = "data/" + idDistribuidor + "_principal" + formato.extension;
+        this.FILE_BACKUP = "data/" + idDistribuidor + "_backup" + formato.extension;
+        this.FILE_MANIFIESTO = FILE_PRINCIPAL + ".man";
 
         // asegurar que el directorio de datos exista
         new File("data").mkdirs();
 
         // inicializar archivos si no existen
         inicializarArchivos();
+        this.segmentosPrincipal = new Segmentos(FILE_PRINCIPAL, formato.extension);
+        this.segmentosBackup = new Segmentos(FILE_BACKUP, formato.extension);
+
+        // descartar colas a medio escribir e igualar las réplicas antes de cargar checksums y longitudes
+        Manifiesto manifiesto = Manifiesto.cargar(FILE_MANIFIESTO);
+        long ultimaSecuencia = recuperarCola(manifiesto);
+
+        try {
+            this.sumasPrincipal = new SumasBloques(FILE_PRINCIPAL);
+            this.sumasBackup = new SumasBloques(FILE_BACKUP);
+        } catch (IOException e) {
+            throw new UncheckedIOException("No se pudieron cargar los checksums de la BD " + idDistribuidor, e);
+        }
+        this.bitacora = new BitacoraGrupal(idDistribuidor, maxLote, maxEsperaMs, modo,
+                new String[]{FILE_PRINCIPAL, FILE_BACKUP}, new SumasBloques[]{sumasPrincipal, sumasBackup});
+        bitacora.setNumeracion(this::numerar, ultimaSecuencia);
+
+        this.diaSegmento = diaDeModificacion(FILE_PRINCIPAL);
+        if (politica.rota()) {
+            bitacora.setRotacion(new BitacoraGrupal.Rotacion() {
+                @Override
+                public boolean debeRotar(long longitudPrincipal) {
+                    return segmentoLleno(longitudPrincipal);
+                }
+
+                @Override
+                public void rotar() throws IOException {
+                    rotarSegmento();
+                }
+            });
+        }
 
-        // contar transacciones existentes
-        this.totalTransacciones = new AtomicLong(obtenerTodasTransacciones().size());
+        // conteos y agregados: manifiesto + cola posterior; después se mantienen en el orden de commit
+        this.registrosSellados = new TreeMap<>();
+        this.agregados = new AgregadosVentas();
+        this.totalTransacciones = new AtomicLong();
+        abrirDesdeManifiesto(manifiesto);
+        this.indicesSellados = new ConcurrentHashMap<>();
+        this.indiceActivo = abrirIndiceActivo();
+        bitacora.setAlConfirmar((t, posicion, largo) -> registrarConfirmada((Transaccion) t, posicion, largo));
     }
 
     /**
@@ -45,7 +174,13 @@ public class BaseDatos {
         if (!file.exists()) {
             try {
                 file.createNewFile();
-                // escribir cabecera (opcional)
+                // escribir cabecera (solo el formato binario la tiene)
+                if (formato == Formato.BINARIO) {
+                    try (FileOutputStream fos = new FileOutputStream(file)) {
+                        fos.write(RegistroBinario.cabecera());
+                        fos.getFD().sync();
+                    }
+                }
                 System.out.println("Archivo de BD creado: " + path);
             } catch (IOException e) {
                 System.err.println("Error al crear archivo de BD: " + path + " - " + e.getMessage());
@@ -55,45 +190,447 @@ public class BaseDatos {
 
     /**
      * Guarda una transacción en el archivo principal y el backup (redundancia).
-     */
-    public synchronized void guardarTransaccion(Transaccion transaccion) {
-        String linea = transaccion.toCSV() + "\n";
-
-        // 1. Escribir en Principal
-        escribirLinea(FILE_PRINCIPAL, linea);
+     * Bloquea hasta que el lote que la contiene quedó forzado a disco en ambas réplicas; varios llamadores
+     * concurrentes comparten un mismo commit.
+     * @return true si la transacción es durable, false si falló la escritura */
+    @Override
+    public boolean guardarTransaccion(Transaccion transaccion) {
+        byte[] registro;
+        try {
+            registro = codificar(transaccion);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR: Transacción no representable: " + e.getMessage());
+            return false;
+        }
 
-        // 2. Escribir en Backup (Redundancia)
-        escribirLinea(FILE_BACKUP, linea);
+        try {
+            bitacora.agregar(registro, transaccion).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("[" + idDistribuidor + "] ERROR: Escritura interrumpida: " + transaccion.getId());
+            return false;
+        } catch (ExecutionException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR: Fallo al guardar " + transaccion.getId() + ": " +
+                    e.getCause().getMessage());
+            return false;
+        }
 
         totalTransacciones.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Como guardarTransaccion, pero encola todo el lote de una vez: entra en un mismo commit de la bitácora si no
+     * supera su maxLote. Bloquea hasta que el lote es durable.
+     * @return cuántas, desde el principio de la lista, quedaron durables */
+    @Override
+    public int guardarTransacciones(List<Transaccion> transacciones) {
+        List<byte[]> registros = new ArrayList<>(transacciones.size());
+        for (Transaccion t : transacciones) {
+            try {
+                registros.add(codificar(t));
+            } catch (IllegalArgumentException e) {
+                // se guarda el prefijo representable; el resto lo vuelve a mandar el surtidor
+                System.err.println("[" + idDistribuidor + "] ERROR: Transacción no representable: " + e.getMessage());
+                break;
+            }
+        }
+
+        List<CompletableFuture<Void>> confirmaciones =
+                bitacora.agregarTodos(registros, transacciones.subList(0, registros.size()));
+        int guardadas = 0;
+        try {
+            for (CompletableFuture<Void> confirmacion : confirmaciones) {
+                confirmacion.get();
+                guardadas++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("[" + idDistribuidor + "] ERROR: Escritura de lote interrumpida");
+        } catch (ExecutionException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR: Fallo al guardar " +
+                    transacciones.get(guardadas).getId() + ": " + e.getCause().getMessage());
+        }
+
+        totalTransacciones.addAndGet(guardadas);
+        return guardadas;
+    }
+
+    private byte[] codificar(Transaccion transaccion) {
+        if (formato == Formato.BINARIO) {
+            return RegistroBinario.codificar(transaccion);
+        }
+        return transaccion.toCSV().getBytes(StandardCharsets.UTF_8); // el fin de línea lo agrega numerar()
+    }
+
+    /**
+     * HILO escritor: agrega la secuencia y el CRC propios del registro (ver RegistroBinario y RegistroCSV). */
+    private byte[] numerar(byte[] registro, long secuencia) {
+        return formato == Formato.BINARIO
+                ? RegistroBinario.numerar(registro, secuencia)
+                : RegistroCSV.numerar(registro, secuencia);
     }
 
-    private void escribirLinea(String filePath, String linea) {
-        try (FileWriter fw = new FileWriter(filePath, true);
-             BufferedWriter bw = new BufferedWriter(fw)) {
-            bw.write(linea);
+    /**
+     * Recuperación al abrir: en cada réplica valida los registros de la cola del activo (CRC y secuencia) y trunca
+     * desde el primero incompleto o dañado; después, si una réplica quedó más corta y es prefijo de la otra (backup
+     * atrasado, o corte entre la escritura de una réplica y la otra), le copia los registros que le faltan.
+     * Solo lee la ventana final de cada archivo, así que no crece con el tamaño de la BD.
+     * @return secuencia del último registro, desde la que sigue numerando la bitácora */
+    private long recuperarCola(Manifiesto manifiesto) {
+        Path principal = Paths.get(FILE_PRINCIPAL);
+        Path backup = Paths.get(FILE_BACKUP);
+        try {
+            RecuperacionCola.Estado p = RecuperacionCola.examinar(formato, principal);
+            RecuperacionCola.Estado b = RecuperacionCola.examinar(formato, backup);
+            for (RecuperacionCola.Estado e : new RecuperacionCola.Estado[]{p, b}) {
+                if (!e.tieneColaRota()) continue;
+                Path archivo = e == p ? principal : backup;
+                RecuperacionCola.truncar(archivo, e.longitudValida);
+                System.err.println("[" + idDistribuidor + "] Cola incompleta descartada en " + archivo.getFileName() +
+                        ": " + (e.tamano - e.longitudValida) + " bytes desde el byte " + e.longitudValida);
+            }
+
+            if (p.longitudValida != b.longitudValida) {
+                boolean backupAtrasado = b.longitudValida < p.longitudValida;
+                RecuperacionCola.Estado corta = backupAtrasado ? b : p;
+                RecuperacionCola.Estado larga = backupAtrasado ? p : b;
+                Path rutaCorta = backupAtrasado ? backup : principal;
+                Path rutaLarga = backupAtrasado ? principal : backup;
+                if (RecuperacionCola.esPrefijo(rutaCorta, rutaLarga, corta.longitudValida, inicioDatos())) {
+                    long bytes = RecuperacionCola.copiarCola(rutaLarga, rutaCorta, corta.longitudValida,
+                            larga.longitudValida);
+                    System.out.println("[" + idDistribuidor + "] Réplica " + (backupAtrasado ? "backup" : "principal") +
+                            " completada hasta la secuencia " + larga.ultimaSecuencia + " (desde " +
+                            corta.ultimaSecuencia + ", " + bytes + " bytes)");
+                } else {
+                    System.err.println("[" + idDistribuidor + "] Las réplicas difieren antes de la cola: " +
+                            "usar repararReplicas()");
+                }
+            }
+
+            long ultima = Math.max(p.ultimaSecuencia, b.ultimaSecuencia);
+            if (manifiesto != null) ultima = Math.max(ultima, manifiesto.getUltimaSecuencia());
+            if (ultima == 0 && p.longitudValida <= inicioDatos()) {
+                ultima = ultimaSecuenciaSellada();
+            }
+            return ultima;
         } catch (IOException e) {
-            System.err.println("[" + idDistribuidor + "] ERROR: Fallo al escribir en " + filePath + ": " + e.getMessage());
+            System.err.println("[" + idDistribuidor + "] ERROR al recuperar la cola de la BD: " + e.getMessage());
+            return manifiesto != null ? manifiesto.getUltimaSecuencia() : 0;
         }
     }
 
     /**
-     * Carga todas las transacciones del archivo principal.
+     * Sin manifiesto y con el activo vacío (recién rotado), la secuencia sigue la del último segmento sellado. */
+    private long ultimaSecuenciaSellada() throws IOException {
+        SortedMap<Integer, Path> sellados = segmentosPrincipal.porNumero();
+        if (sellados.isEmpty()) return 0;
+        try (InputStream entrada = Segmentos.abrir(sellados.get(sellados.lastKey()))) {
+            return entrada == null ? 0 : RecuperacionCola.ultimaSecuencia(formato, entrada);
+        }
+    }
+
+    /**
+     * HILO escritor: suma la transacción recién confirmada. Como los agregados avanzan en el mismo orden que el
+     * archivo, un checkpoint siempre cubre un prefijo exacto del principal. */
+    private void registrarConfirmada(Transaccion t, long posicion, int largo) {
+        agregados.registrar(t);
+        registrosActivo++;
+        offsetCubierto = posicion + largo;
+        try {
+            indiceActivo.abrirParaEscritura();
+            indiceActivo.agregar(t, posicion, largo);
+        } catch (IOException e) {
+            // el índice se completa desde el archivo al volver a abrir la BD
+            System.err.println("[" + idDistribuidor + "] ERROR al actualizar índice: " + e.getMessage());
+        }
+        if (++sinCheckpoint >= CHECKPOINT_CADA) {
+            guardarManifiesto();
+        }
+    }
+
+    /**
+     * Carga el índice del segmento activo y le agrega lo que haya quedado sin indexar (todo, si no existía). */
+    private IndiceSegmento abrirIndiceActivo() {
+        IndiceSegmento indice = new IndiceSegmento(Paths.get(FILE_PRINCIPAL));
+        completarIndice(indice);
+        return indice;
+    }
+
+    private void completarIndice(IndiceSegmento indice) {
+        long largo = new File(FILE_PRINCIPAL).length();
+        try {
+            indice.descartarDesde(largo);
+            indice.indexar(formato, Paths.get(FILE_PRINCIPAL), largo);
+        } catch (IOException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR al indexar " + FILE_PRINCIPAL + ": " + e.getMessage());
+        }
+    }
+
+    private long inicioDatos() {
+        return RecuperacionCola.inicioDatos(formato);
+    }
+
+    /**
+     * Checkpoint: conteos por segmento, hasta dónde cubren los agregados y su foto. Se llama desde el hilo escritor
+     * o con la escritura en pausa, así que todo corresponde al mismo prefijo del principal. */
+    private void guardarManifiesto() {
+        try {
+            SortedMap<Integer, Long> sellados;
+            synchronized (registrosSellados) {
+                sellados = new TreeMap<>(registrosSellados);
+            }
+            int crc = Manifiesto.crcCola(Paths.get(FILE_PRINCIPAL), offsetCubierto, inicioDatos());
+            new Manifiesto(offsetCubierto, registrosActivo, crc, bitacora.getUltimaSecuencia(), sellados, agregados)
+                    .guardar(FILE_MANIFIESTO);
+            sinCheckpoint = 0;
+        } catch (IOException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR al guardar el manifiesto: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Abre la BD en tiempo constante si el manifiesto describe los archivos actuales: toma sus conteos y agregados y
+     * relee solo la cola del activo escrita después del último checkpoint (lo que dejó un cierre abrupto). Si falta,
+     * está dañado o no coincide (segmentos distintos, activo más corto o reescrito), recorre toda la BD. */
+    private void abrirDesdeManifiesto(Manifiesto manifiesto) {
+        long inicio = System.currentTimeMillis();
+        Path activo = Paths.get(FILE_PRINCIPAL);
+        long limite = bitacora.longitudConfirmada(0);
+        try {
+            if (manifiesto != null &&
+                    manifiesto.coincideCon(activo, inicioDatos(), segmentosPrincipal.porNumero().keySet())) {
+                registrosSellados.putAll(manifiesto.getSellados());
+                AgregadosVentas guardados = manifiesto.getAgregados();
+                long cola = 0;
+                if (manifiesto.getOffsetActivo() < limite) {
+                    List<long[]> rangos = new ArrayList<>();
+                    rangos.add(new long[]{Math.max(manifiesto.getOffsetActivo(), inicioDatos()), limite});
+                    cola = sumar(CursorTransacciones.porRangos(formato, activo, rangos, null, null, null), guardados);
+                }
+                cargarConteos(guardados, manifiesto.getRegistrosActivo() + cola, limite);
+                System.out.println("[" + idDistribuidor + "] BD abierta desde el manifiesto: " +
+                        totalTransacciones.get() + " transacciones, " + cola + " releídas de la cola (" +
+                        (System.currentTimeMillis() - inicio) + " ms)");
+                if (cola > 0) guardarManifiesto();
+                return;
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR al aplicar el manifiesto: " + e.getMessage());
+        }
+        reconstruirConteos(limite);
+        System.out.println("[" + idDistribuidor + "] Manifiesto ausente o desactualizado: BD recorrida completa (" +
+                totalTransacciones.get() + " transacciones, " + (System.currentTimeMillis() - inicio) + " ms)");
+        guardarManifiesto();
+    }
+
+    /**
+     * Recorre todos los segmentos del principal para recalcular conteos y agregados (sin manifiesto, o después de
+     * reparar el principal). Los segmentos se procesan en paralelo (ver CargaParalela).
+     * @param limite hasta dónde leer el activo: la longitud confirmada, o la del archivo reparado */
+    private void reconstruirConteos(long limite) {
+        AgregadosVentas recalculados = new AgregadosVentas();
+        long enActivo = 0;
+        synchronized (registrosSellados) {
+            registrosSellados.clear();
+        }
+        try {
+            SortedMap<Integer, Path> sellados = segmentosPrincipal.porNumero();
+            List<Path> archivos = new ArrayList<>(sellados.values());
+            archivos.add(Paths.get(FILE_PRINCIPAL));
+            long[] limites = new long[archivos.size()];
+            Arrays.fill(limites, Long.MAX_VALUE);
+            limites[limites.length - 1] = limite;
+            List<AgregadosVentas> porArchivo = CargaParalela.porArchivo(formato, archivos, limites, null,
+                    ForkJoinPool.commonPool(), AgregadosVentas::new, AgregadosVentas::registrar, (a, b) -> {
+                        a.sumar(b);
+                        return a;
+                    });
+            int i = 0;
+            for (int numero : sellados.keySet()) {
+                AgregadosVentas segmento = porArchivo.get(i++);
+                recalculados.sumar(segmento);
+                synchronized (registrosSellados) {
+                    registrosSellados.put(numero, segmento.getRegistros());
+                }
+            }
+            AgregadosVentas activo = porArchivo.get(i);
+            recalculados.sumar(activo);
+            enActivo = activo.getRegistros();
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR al recorrer la BD: " + e.getMessage());
+        }
+        cargarConteos(recalculados, enActivo, limite);
+    }
+
+    private void cargarConteos(AgregadosVentas nuevos, long enActivo, long offset) {
+        agregados.reiniciar();
+        agregados.sumar(nuevos);
+        registrosActivo = enActivo;
+        offsetCubierto = offset;
+        long total = enActivo;
+        synchronized (registrosSellados) {
+            for (long registros : registrosSellados.values()) total += registros;
+        }
+        totalTransacciones.set(total);
+    }
+
+    private static long sumar(CursorTransacciones cursor, AgregadosVentas destino) throws IOException {
+        long registros = 0;
+        try (CursorTransacciones c = cursor) {
+            while (c.hasNext()) {
+                destino.registrar(c.next());
+                registros++;
+            }
+        }
+        return registros;
+    }
+
+    /**
+     * Agregados de ventas de lo guardado (total, por combustible, por surtidor y por hora), sin recorrer la BD. */
+    @Override
+    public AgregadosVentas getAgregados() {
+        return agregados;
+    }
+
+    /**
+     * Confirma lo que quede en la bitácora, espera al compactador y libera los archivos.
      */
-    public synchronized List<Transaccion> obtenerTodasTransacciones() {
-        List<Transaccion> transacciones = new ArrayList<>();
+    @Override
+    public void cerrar() {
+        bitacora.cerrar();
+        ExecutorService c;
+        synchronized (this) {
+            c = compactador;
+        }
+        if (c != null) {
+            c.shutdown();
+            try {
+                c.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (sinCheckpoint > 0) {
+            guardarManifiesto();
+        }
+        indiceActivo.cerrar();
+    }
+
+    private static LocalDate diaDeModificacion(String ruta) {
+        File file = new File(ruta);
+        if (!file.exists()) return LocalDate.now();
+        return LocalDate.ofInstant(Instant.ofEpochMilli(file.lastModified()), ZoneId.systemDefault());
+    }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(FILE_PRINCIPAL))) {
-            // Saltamos la primera línea si hubiera cabecera (en este caso, no la hay, pero es buena práctica)
-            String linea;
-            while ((linea = br.readLine()) != null) {
-                // Parsear la línea CSV a objeto Transaccion
-                Transaccion t = parsearLineaCSV(linea);
-                if (t != null) {
-                    transacciones.add(t);
+    /**
+     * Lo consulta el escritor antes de cada lote: el segmento activo se sella al superar el tamaño máximo o al
+     * cambiar el día. Un segmento vacío nunca se sella. */
+    private boolean segmentoLleno(long longitudPrincipal) {
+        long vacio = formato == Formato.BINARIO ? RegistroBinario.TAMANO_CABECERA : 0;
+        if (longitudPrincipal <= vacio) {
+            diaSegmento = LocalDate.now();
+            return false;
+        }
+        if (politica.getMaxBytes() > 0 && longitudPrincipal >= politica.getMaxBytes()) return true;
+        return politica.isRotarPorDia() && !LocalDate.now().equals(diaSegmento);
+    }
+
+    /**
+     * Sella el segmento activo de ambas réplicas con el mismo número y crea archivos activos nuevos. Lo llama la
+     * bitácora con las réplicas al día y sin canales abiertos. */
+    private void rotarSegmento() throws IOException {
+        int numero = Math.max(segmentosPrincipal.siguienteNumero(), segmentosBackup.siguienteNumero());
+        indiceActivo.sellar();
+        Path sellado = segmentosPrincipal.sellar(numero);
+        segmentosBackup.sellar(numero);
+        synchronized (registrosSellados) {
+            registrosSellados.put(numero, registrosActivo);
+        }
+        registrosActivo = 0;
+        offsetCubierto = inicioDatos();
+        inicializarArchivos();
+        sumasPrincipal.recargar();
+        sumasBackup.recargar();
+        indiceActivo = new IndiceSegmento(Paths.get(FILE_PRINCIPAL));
+        diaSegmento = LocalDate.now();
+        System.out.println("[" + idDistribuidor + "] Segmento sellado: " + sellado.getFileName());
+        guardarManifiesto();
+        programarMantenimiento();
+    }
+
+    private synchronized void programarMantenimiento() {
+        if (!politica.isComprimir() && politica.getRetencionDias() == 0) return;
+        if (compactador == null) {
+            compactador = Executors.newSingleThreadExecutor(r -> {
+                Thread hilo = new Thread(r, "compactador-" + idDistribuidor);
+                hilo.setDaemon(true);
+                return hilo;
+            });
+        }
+        compactador.submit(this::mantenerSegmentos);
+    }
+
+    /**
+     * HILO compactador: comprime los segmentos sellados y borra los que superan la retención. Los cursores
+     * abiertos no se ven afectados: un segmento se reemplaza recién cuando su versión comprimida está completa. */
+    private void mantenerSegmentos() {
+        try {
+            if (politica.isComprimir()) {
+                for (Segmentos segmentos : new Segmentos[]{segmentosPrincipal, segmentosBackup}) {
+                    for (Path segmento : segmentos.sellados()) {
+                        if (Segmentos.comprimido(segmento)) continue;
+                        long ahorro = Segmentos.comprimir(segmento);
+                        System.out.println("[" + idDistribuidor + "] Segmento comprimido: " +
+                                segmento.getFileName() + " (" + ahorro / 1024 + " KiB ahorrados)");
+                    }
                 }
             }
-        } catch (IOException e) {
+            if (politica.getRetencionDias() > 0) {
+                long limite = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(politica.getRetencionDias());
+                for (Path segmento : segmentosPrincipal.vencidos(limite)) {
+                    AgregadosVentas retirados = new AgregadosVentas();
+                    CursorTransacciones cursor = CursorTransacciones.sellado(formato, segmento, null, null, null);
+                    if (cursor == null) continue;
+                    try (CursorTransacciones c = cursor) {
+                        c.forEachRemaining(retirados::registrar);
+                    }
+                    // con el escritor en pausa, para que ningún checkpoint vea el borrado sin el descuento
+                    bitacora.ejecutarExclusivo(() -> {
+                        Segmentos.borrar(segmento);
+                        indicesSellados.remove(IndiceSegmento.rutaIndice(segmento));
+                        synchronized (registrosSellados) {
+                            registrosSellados.remove(segmentosPrincipal.numero(segmento));
+                        }
+                        agregados.restar(retirados);
+                        totalTransacciones.addAndGet(-retirados.getRegistros());
+                        guardarManifiesto();
+                        return null;
+                    });
+                    System.out.println("[" + idDistribuidor + "] Segmento retirado por retención: " +
+                            segmento.getFileName() + " (" + retirados.getRegistros() + " transacciones)");
+                }
+                for (Path segmento : segmentosBackup.vencidos(limite)) {
+                    Segmentos.borrar(segmento);
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR en mantenimiento de segmentos: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Carga todas las transacciones del archivo principal.
+     * Para recorridos grandes conviene abrirCursor() o transacciones(), que no materializan la lista.
+     */
+    @Override
+    public List<Transaccion> obtenerTodasTransacciones() {
+        List<Transaccion> transacciones = new ArrayList<>();
+
+        try (CursorTransacciones cursor = abrirCursor()) {
+            cursor.forEachRemaining(transacciones::add);
+        } catch (IOException | UncheckedIOException e) {
             System.err.println("[" + idDistribuidor + "] ERROR al leer transacciones de archivo: " + e.getMessage());
         }
 
@@ -101,83 +638,439 @@ public class BaseDatos {
     }
 
     /**
-     * Parsea una línea CSV para crear un objeto Transaccion.
+     * Abre un cursor sobre todas las transacciones confirmadas del principal (segmentos sellados y activo).
      */
-    private Transaccion parsearLineaCSV(String linea) {
-        if (linea == null || linea.isEmpty()) return null;
+    @Override
+    public CursorTransacciones abrirCursor() throws IOException {
+        return abrirCursor(null, null, null);
+    }
 
-        try {
-            // El formato CSV está definido en Transaccion.toCSV()
-            String[] campos = linea.split(";");
+    /**
+     * Abre un cursor sobre las transacciones confirmadas del principal, de los segmentos sellados al activo.
+     * No toma el lock de la BD: lee hasta la longitud confirmada al momento de abrirlo, así que los escritores
+     * pueden seguir guardando (y rotando) mientras se recorre.
+     * @param desde  fecha mínima (inclusive) o null
+     * @param hasta  fecha máxima (exclusiva) o null
+     * @param filtro predicado adicional o null
+     */
+    @Override
+    public CursorTransacciones abrirCursor(LocalDateTime desde, LocalDateTime hasta, Predicate<Transaccion> filtro)
+            throws IOException {
+        // la lista de sellados y el activo se toman juntos, sin una rotación en el medio
+        return bitacora.sinRotar(() -> {
+            long limite = bitacora.longitudConfirmada(0);
+            List<Path> sellados = segmentosPrincipal.sellados();
+            Predicate<Transaccion> filtroActivo = sellados.isEmpty() ? filtro : null;
+            CursorTransacciones activo = formato == Formato.BINARIO
+                    ? CursorTransacciones.binario(FILE_PRINCIPAL, limite, desde, hasta, filtroActivo)
+                    : CursorTransacciones.csv(FILE_PRINCIPAL, limite, desde, hasta, filtroActivo);
+            if (sellados.isEmpty()) return activo;
+            List<CursorTransacciones.Apertura> partes = new ArrayList<>();
+            for (Path segmento : sellados) {
+                partes.add(() -> CursorTransacciones.sellado(formato, segmento, desde, hasta, null));
+            }
+            return CursorTransacciones.encadenado(partes, activo, desde, hasta, filtro);
+        });
+    }
+
+    /**
+     * Carga todas las transacciones confirmadas del principal en paralelo (ver CargaParalela), en el mismo orden
+     * que abrirCursor(). Para auditorías de la BD completa; materializa la lista.
+     */
+    public List<Transaccion> cargarEnParalelo() throws IOException {
+        return procesarEnParalelo(ArrayList::new, List::add, (a, b) -> {
+            a.addAll(b);
+            return a;
+        });
+    }
+
+    /**
+     * Recalcula en paralelo los agregados de todas las transacciones confirmadas, sin tocar los que mantiene la BD
+     * (p. ej. para conciliarlos con getAgregados()).
+     */
+    public AgregadosVentas agregarEnParalelo() throws IOException {
+        return procesarEnParalelo(AgregadosVentas::new, AgregadosVentas::registrar, (a, b) -> {
+            a.sumar(b);
+            return a;
+        });
+    }
 
-            // Asegurarse de tener 8 campos: id, idCliente, idDistribuidor, TipoCombustible, litros, precioLitro, montoTotal, fechaHora
-            if (campos.length != 8) {
-                System.err.println("Error: Línea CSV con formato incorrecto: " + linea);
-                return null;
+    private <R> R procesarEnParalelo(Supplier<R> nuevo, BiConsumer<R, Transaccion> agregar, BinaryOperator<R> unir)
+            throws IOException {
+        // como en abrirCursor: sellados, longitud confirmada y canal del activo sin una rotación en el medio
+        List<Path> archivos = new ArrayList<>();
+        long[] limite = new long[1];
+        FileChannel activo = bitacora.sinRotar(() -> {
+            archivos.addAll(segmentosPrincipal.sellados());
+            limite[0] = bitacora.longitudConfirmada(0);
+            return FileChannel.open(Paths.get(FILE_PRINCIPAL), StandardOpenOption.READ);
+        });
+        try (FileChannel canal = activo) {
+            archivos.add(Paths.get(FILE_PRINCIPAL));
+            long[] limites = new long[archivos.size()];
+            Arrays.fill(limites, Long.MAX_VALUE);
+            limites[limites.length - 1] = limite[0];
+            R total = nuevo.get();
+            for (R parcial : CargaParalela.porArchivo(formato, archivos, limites, canal, ForkJoinPool.commonPool(),
+                    nuevo, agregar, unir)) {
+                total = unir.apply(total, parcial);
             }
+            return total;
+        }
+    }
 
-            // Los campos que realmente necesitamos para el cálculo (litros y precioLitro)
-            String idCliente = campos[1];
-            String idDistribuidor = campos[2];
-            TipoCombustible tipoCombustible = TipoCombustible.valueOf(campos[3]);
-            double litros = Double.parseDouble(campos[4]);
-            double precioLitro = Double.parseDouble(campos[5]);
+    /**
+     * Transacciones de un surtidor (null = todos) dentro de la ventana [desde, hasta) (null = sin límite).
+     * Usa los índices dispersos de cada segmento: solo se leen los tramos que pueden contener resultados y los
+     * segmentos sin coincidencias no se abren. Un segmento sellado sin índice (anterior a los índices) se recorre
+     * completo. Mismas garantías de lectura que abrirCursor.
+     */
+    @Override
+    public CursorTransacciones consultar(String idCliente, LocalDateTime desde, LocalDateTime hasta)
+            throws IOException {
+        Predicate<Transaccion> filtro = idCliente == null ? null : t -> idCliente.equals(t.getIdCliente());
+        return bitacora.sinRotar(() -> {
+            long limite = bitacora.longitudConfirmada(0);
+            List<CursorTransacciones.Apertura> partes = new ArrayList<>();
+            for (Path segmento : segmentosPrincipal.sellados()) {
+                IndiceSegmento indice = indiceSellado(segmento);
+                if (indice == null) {
+                    partes.add(() -> CursorTransacciones.sellado(formato, segmento, desde, hasta, null));
+                    continue;
+                }
+                List<long[]> rangos = indice.seleccionar(idCliente, desde, hasta, Long.MAX_VALUE);
+                if (!rangos.isEmpty()) {
+                    partes.add(() -> CursorTransacciones.porRangos(formato, segmento, rangos, desde, hasta, null));
+                }
+            }
 
-            // Creamos un nuevo objeto Transaccion con los datos relevantes
-            // Nota: Se usa el constructor existente, pero se ignoran los campos id y fechaHora del CSV para esta simple reconstrucción.
-            // Para una reconstrucción precisa, se necesitarían setters o un constructor completo.
-            return new Transaccion(idCliente, idDistribuidor, tipoCombustible, litros, precioLitro);
+            // del activo: los tramos indexados que sirven y la cola que el escritor todavía no indexó
+            IndiceSegmento indice = indiceActivo;
+            long cubierto = Math.min(indice.cubiertoHasta(), limite);
+            List<long[]> rangos = indice.seleccionar(idCliente, desde, hasta, cubierto);
+            long inicioCola = Math.max(cubierto, formato == Formato.BINARIO ? RegistroBinario.TAMANO_CABECERA : 0);
+            if (inicioCola < limite) {
+                rangos.add(new long[]{inicioCola, limite});
+            }
+            CursorTransacciones activo = rangos.isEmpty() ? null
+                    : CursorTransacciones.porRangos(formato, Paths.get(FILE_PRINCIPAL), rangos, desde, hasta, null);
+            return CursorTransacciones.encadenado(partes, activo, desde, hasta, filtro);
+        });
+    }
+
+    /**
+     * Igual que consultar(), pero materializa el resultado.
+     */
+    @Override
+    public List<Transaccion> buscar(String idCliente, LocalDateTime desde, LocalDateTime hasta) {
+        List<Transaccion> resultado = new ArrayList<>();
+        try (CursorTransacciones cursor = consultar(idCliente, desde, hasta)) {
+            cursor.forEachRemaining(resultado::add);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR al consultar transacciones: " + e.getMessage());
+        }
+        return resultado;
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error al parsear línea de transacción: " + e.getMessage());
-            return null;
+    private IndiceSegmento indiceSellado(Path segmento) {
+        Path ruta = IndiceSegmento.rutaIndice(segmento);
+        if (!Files.exists(ruta)) return null;
+        return indicesSellados.computeIfAbsent(ruta, r -> new IndiceSegmento(segmento));
+    }
+
+    /**
+     * Igual que abrirCursor(desde, hasta, filtro) pero como Stream; usar con try-with-resources para liberar
+     * el archivo.
+     */
+    public Stream<Transaccion> transacciones(LocalDateTime desde, LocalDateTime hasta,
+                                             Predicate<Transaccion> filtro) throws IOException {
+        return abrirCursor(desde, hasta, filtro).stream();
+    }
+
+    /**
+     * Exporta todas las transacciones a un archivo CSV (mismo formato que Transaccion.toCSV()).
+     * @return cantidad de transacciones exportadas, o -1 si falló la escritura
+     */
+    public long exportarCSV(String destino) {
+        long exportadas = 0;
+        try (CursorTransacciones cursor = abrirCursor();
+             BufferedWriter bw = new BufferedWriter(new FileWriter(destino))) {
+            while (cursor.hasNext()) {
+                bw.write(cursor.next().toCSV());
+                bw.newLine();
+                exportadas++;
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR al exportar a " + destino + ": " + e.getMessage());
+            return -1;
         }
+        System.out.println("[" + idDistribuidor + "] Exportadas " + exportadas + " transacciones a " + destino);
+        return exportadas;
     }
 
     /**
      * Verifica la integridad: compara el contenido de Principal y Backup.
      * Escenario de Error: Sincronización incorrecta de réplicas.
+     * Compara los árboles de checksums por bloque de ambas réplicas (sin releer los archivos); si difieren,
+     * informa el primer bloque divergente y relee solo ese bloque en cada réplica para saber cuál está dañada.
+     * Compara con la escritura en pausa y el backup al día, así un lote a medio escribir no cuenta como divergencia.
      */
+    @Override
     public boolean verificarIntegridad() {
         System.out.println("[" + idDistribuidor + "] Verificando integridad de BD...");
 
-        List<String> principal = leerContenido(FILE_PRINCIPAL);
-        List<String> backup = leerContenido(FILE_BACKUP);
+        // en los modos asíncronos, comparar recién cuando el backup alcanzó al principal
+        try {
+            bitacora.sincronizar();
+            return bitacora.ejecutarExclusivo(this::compararReplicas);
+        } catch (IOException e) {
+            System.err.println("[" + idDistribuidor + "] No se pudo sincronizar el backup: " + e.getMessage());
+        }
+        return compararReplicas();
+    }
+
+    private boolean compararReplicas() {
+        int divergente = sumasPrincipal.primerBloqueDivergente(sumasBackup);
+        if (divergente < 0) {
+            System.out.println("[" + idDistribuidor + "] Integridad verificada. Ambos archivos contienen " +
+                    totalTransacciones.get() + " registros (" + sumasPrincipal.getLongitud() + " bytes, hash " +
+                    String.format("%08x", sumasPrincipal.hashRaiz()) + ").");
+            return true;
+        }
 
-        if (principal.size() != backup.size()) {
-            System.err.println("[" + idDistribuidor + "] INCONSISTENCIA: Tamaño de archivos difiere. Principal: " +
-                    principal.size() + ", Backup: " + backup.size());
-            return false;
+        long inicio = (long) divergente * SumasBloques.TAMANO_BLOQUE;
+        System.err.println("[" + idDistribuidor + "] INCONSISTENCIA: réplicas difieren desde el bloque " + divergente +
+                " (byte " + inicio + "). Principal: " + sumasPrincipal.getLongitud() + " bytes, Backup: " +
+                sumasBackup.getLongitud() + " bytes.");
+        try {
+            if (!sumasPrincipal.bloqueCoincide(divergente)) {
+                System.err.println("[" + idDistribuidor + "] El bloque " + divergente +
+                        " del archivo principal no coincide con su checksum.");
+            }
+            if (!sumasBackup.bloqueCoincide(divergente)) {
+                System.err.println("[" + idDistribuidor + "] El bloque " + divergente +
+                        " del backup no coincide con su checksum.");
+            }
+        } catch (IOException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR al releer bloque " + divergente + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Repara la réplica dañada o atrasada copiando desde la sana solo los bloques divergentes y la cola, con
+     * FileChannel.transferTo (sin pasar los datos por el heap). La escritura queda en pausa mientras dura.
+     * La réplica sana es la que coincide con sus propios checksums en los bloques divergentes; si ambas
+     * coinciden (p. ej. a una le faltó la escritura de un lote) se toma la más larga.
+     */
+    @Override
+    public ReporteReparacion repararReplicas() {
+        return repararReplicas(false);
+    }
+
+    /**
+     * @param releerBloques además relee cada bloque de ambas réplicas y restaura desde la otra los que no
+     *                      coinciden con su checksum (daño en disco). Es O(tamaño de la BD).
+     */
+    public ReporteReparacion repararReplicas(boolean releerBloques) {
+        long inicio = System.currentTimeMillis();
+        try {
+            ReporteReparacion reporte = bitacora.ejecutarExclusivo(() -> reparar(releerBloques, inicio));
+            System.out.println("[" + idDistribuidor + "] " + reporte);
+            return reporte;
+        } catch (IOException e) {
+            System.err.println("[" + idDistribuidor + "] ERROR al reparar réplicas: " + e.getMessage());
+            return ReporteReparacion.fallida(e.getMessage(), System.currentTimeMillis() - inicio);
         }
+    }
 
-        // Si se implementa un mecanismo de hash o checksum, se aplicaría aquí.
+    private ReporteReparacion reparar(boolean releerBloques, long inicio) throws IOException {
+        List<Integer> copiados = new ArrayList<>();
+        Set<String> reparadas = new LinkedHashSet<>();
+        Set<String> origenes = new LinkedHashSet<>();
+        long inicioCola = -1;
+        long bytes = 0;
+        long longitudAnterior = 0;
+        long longitudFinal = 0;
+
+        // 1. divergencias entre réplicas, según los árboles de checksums
+        List<Integer> divergentes = sumasPrincipal.bloquesDivergentes(sumasBackup, Integer.MAX_VALUE);
+        if (!divergentes.isEmpty()) {
+            boolean principalSano = coincideEnBloques(sumasPrincipal, divergentes);
+            boolean backupSano = coincideEnBloques(sumasBackup, divergentes);
+            if (!principalSano && !backupSano) {
+                return ReporteReparacion.fallida("Ambas réplicas fallan sus checksums en los bloques " + divergentes,
+                        System.currentTimeMillis() - inicio);
+            }
+            SumasBloques sana;
+            if (principalSano != backupSano) {
+                sana = principalSano ? sumasPrincipal : sumasBackup;
+            } else {
+                sana = sumasPrincipal.getLongitud() >= sumasBackup.getLongitud() ? sumasPrincipal : sumasBackup;
+            }
+            SumasBloques rota = sana == sumasPrincipal ? sumasBackup : sumasPrincipal;
+
+            int comunes = Math.min(sana.cantidadBloques(), rota.cantidadBloques());
+            longitudAnterior = rota.getLongitud();
+            longitudFinal = sana.getLongitud();
+
+            try (FileChannel origen = FileChannel.open(sana.getRuta(), StandardOpenOption.READ);
+                 FileChannel destino = FileChannel.open(rota.getRuta(), StandardOpenOption.WRITE)) {
+                for (int bloque : divergentes) {
+                    long pos = (long) bloque * SumasBloques.TAMANO_BLOQUE;
+                    if (bloque < comunes) {
+                        bytes += transferir(origen, destino, pos, SumasBloques.TAMANO_BLOQUE);
+                        copiados.add(bloque);
+                    } else {
+                        // la cola diverge: se copia entera desde el primer bloque no común
+                        inicioCola = pos;
+                        bytes += transferir(origen, destino, pos, longitudFinal - pos);
+                    }
+                }
+                destino.truncate(longitudFinal);
+                destino.force(false);
+            }
+            rota.recargarDesde(sana);
+            reparadas.add(nombreReplica(rota));
+            origenes.add(nombreReplica(sana));
+        }
 
-        System.out.println("[" + idDistribuidor + "] Integridad verificada. Ambos archivos contienen " +
-                principal.size() + " registros.");
+        // 2. daño en disco: bloques que no coinciden con su propio checksum (ahora ambos árboles son iguales)
+        if (releerBloques) {
+            for (SumasBloques danada : new SumasBloques[]{sumasPrincipal, sumasBackup}) {
+                SumasBloques otra = danada == sumasPrincipal ? sumasBackup : sumasPrincipal;
+                List<Integer> danados = danada.bloquesDanados(Integer.MAX_VALUE);
+                if (danados.isEmpty()) continue;
+                if (!coincideEnBloques(otra, danados)) {
+                    return ReporteReparacion.fallida("Ambas réplicas dañadas en alguno de los bloques " + danados,
+                            System.currentTimeMillis() - inicio);
+                }
+                try (FileChannel origen = FileChannel.open(otra.getRuta(), StandardOpenOption.READ);
+                     FileChannel destino = FileChannel.open(danada.getRuta(), StandardOpenOption.WRITE)) {
+                    for (int bloque : danados) {
+                        bytes += transferir(origen, destino, (long) bloque * SumasBloques.TAMANO_BLOQUE,
+                                SumasBloques.TAMANO_BLOQUE);
+                        copiados.add(bloque);
+                    }
+                    destino.force(false);
+                }
+                reparadas.add(nombreReplica(danada));
+                origenes.add(nombreReplica(otra));
+                if (longitudFinal == 0) {
+                    longitudAnterior = longitudFinal = danada.getLongitud();
+                }
+            }
+        }
+
+        if (reparadas.isEmpty()) {
+            return ReporteReparacion.sinCambios(System.currentTimeMillis() - inicio);
+        }
+        if (reparadas.contains("principal")) {
+            // el activo cambió por debajo del manifiesto: conteos y agregados se recalculan desde los archivos. La
+            // longitud confirmada es la de antes de reparar (se actualiza al salir de ejecutarExclusivo)
+            reconstruirConteos(new File(FILE_PRINCIPAL).length());
+            completarIndice(indiceActivo);
+            guardarManifiesto();
+        }
+        return ReporteReparacion.reparada(String.join(" y ", reparadas), String.join(" y ", origenes),
+                copiados, inicioCola, bytes, longitudAnterior, longitudFinal, System.currentTimeMillis() - inicio);
+    }
+
+    private String nombreReplica(SumasBloques sumas) {
+        return sumas == sumasPrincipal ? "principal" : "backup";
+    }
+
+    private boolean coincideEnBloques(SumasBloques sumas, List<Integer> bloques) throws IOException {
+        for (int bloque : bloques) {
+            if (!sumas.bloqueCoincide(bloque)) return false;
+        }
         return true;
     }
 
-    private List<String> leerContenido(String filePath) {
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            return br.lines().collect(Collectors.toList());
+    private long transferir(FileChannel origen, FileChannel destino, long pos, long cantidad) throws IOException {
+        destino.position(pos);
+        long copiados = 0;
+        while (copiados < cantidad) {
+            long n = origen.transferTo(pos + copiados, cantidad - copiados, destino);
+            if (n <= 0) break;
+            copiados += n;
+        }
+        return copiados;
+    }
+
+    /**
+     * Verificación completa: además de comparar las réplicas, relee cada bloque y lo contrasta con su checksum
+     * para detectar daño en disco. Es O(tamaño de la BD); para el chequeo rutinario usar verificarIntegridad().
+     */
+    public boolean verificarIntegridadCompleta() {
+        boolean integra = verificarIntegridad();
+        try {
+            int danadoPrincipal = sumasPrincipal.primerBloqueDanado();
+            int danadoBackup = sumasBackup.primerBloqueDanado();
+            if (danadoPrincipal >= 0) {
+                System.err.println("[" + idDistribuidor + "] Principal dañado en el bloque " + danadoPrincipal);
+            }
+            if (danadoBackup >= 0) {
+                System.err.println("[" + idDistribuidor + "] Backup dañado en el bloque " + danadoBackup);
+            }
+            return integra && danadoPrincipal < 0 && danadoBackup < 0;
         } catch (IOException e) {
-            System.err.println("[" + idDistribuidor + "] ERROR al leer archivo: " + filePath + " - " + e.getMessage());
-            return new ArrayList<>();
+            System.err.println("[" + idDistribuidor + "] ERROR al releer bloques: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Cantidad de segmentos de la bitácora y cuántos están sellados y comprimidos, para las estadísticas. */
+    private String describirSegmentos() {
+        try {
+            List<Path> sellados = segmentosPrincipal.sellados();
+            long comprimidos = sellados.stream().filter(Segmentos::comprimido).count();
+            return (sellados.size() + 1) + " (" + sellados.size() + " sellados, " + comprimidos + " comprimidos; " +
+                    politica + ")";
+        } catch (IOException e) {
+            return "desconocido (" + e.getMessage() + ")";
         }
     }
 
     /**
      * Simula la obtención de estadísticas a partir de las transacciones.
      */
+    @Override
     public String obtenerEstadisticas() {
-        // En un sistema real, se sumarían montos, contarían por tipo, etc.
+        // desde los agregados: no recorre la BD
+        AgregadosVentas.Acumulado total = agregados.getTotal();
+        StringBuilder ventas = new StringBuilder();
+        ventas.append(String.format("Total Ventas: $%.2f (%.2f litros)\n", total.getMonto(), total.getLitros()));
+        ventas.append("Por Combustible:\n");
+        for (Map.Entry<TipoCombustible, AgregadosVentas.Acumulado> e : agregados.porCombustible().entrySet()) {
+            ventas.append("  ").append(e.getKey().getNombre()).append(": ").append(e.getValue()).append("\n");
+        }
+        ventas.append("Por Surtidor:\n");
+        for (Map.Entry<String, AgregadosVentas.Acumulado> e : agregados.porCliente().entrySet()) {
+            ventas.append("  ").append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+        }
+
         return String.format("Estadísticas de %s:\n" +
                         "Transacciones Registradas: %d\n" +
+                        "%s" +
                         "Estado de Archivos: Principal (%s), Backup (%s)\n" +
-                        "Redundancia OK.",
+                        "Segmentos: %s\n" +
+                        "Durabilidad: %s\n" +
+                        "Última Secuencia: %d\n" +
+                        "Retraso del Backup: %d transacciones, %d ms\n" +
+                        "%s",
                 idDistribuidor,
                 totalTransacciones.get(),
+                ventas,
                 new File(FILE_PRINCIPAL).exists() ? "OK" : "FALTA",
-                new File(FILE_BACKUP).exists() ? "OK" : "FALTA");
+                new File(FILE_BACKUP).exists() ? "OK" : "FALTA",
+                describirSegmentos(),
+                bitacora.getModo(),
+                bitacora.getUltimaSecuencia(),
+                bitacora.getRetrasoReplicaRegistros(),
+                bitacora.getRetrasoReplicaMs(),
+                bitacora.getErroresReplica() == 0 ? "Redundancia OK." :
+                        "Errores de replicación: " + bitacora.getErroresReplica() + " (verificar y reparar)");
     }
 }
\ No newline at end of file
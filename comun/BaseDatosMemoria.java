@@ -0,0 +1,136 @@
+package comun;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/***********************************************************************************************************************
+ * Motor de almacenamiento en memoria (ver MotorAlmacenamiento).
+ * Sin archivos ni réplica: las transacciones se pierden al cerrar. Sirve para pruebas y como referencia al comparar
+ * motores con la misma carga de escritura. Las escrituras se serializan con un lock; los cursores leen una
+ * instantánea (arreglo y cantidad publicados con volatile) sin bloquear a los escritores. */
+/**********************************************************************************************************************/
+public class BaseDatosMemoria implements MotorAlmacenamiento {
+    private static final int CAPACIDAD_INICIAL = 1024;
+
+    private final String idDistribuidor;
+    private final Object lockEscritura = new Object();
+    private volatile Transaccion[] registros;
+    private volatile int cantidad;
+    private volatile boolean cerrada;
+    private final AgregadosVentas agregados;
+
+    //CONSTRUCTOR
+    public BaseDatosMemoria(String idDistribuidor) {
+        this.idDistribuidor = idDistribuidor;
+        this.registros = new Transaccion[CAPACIDAD_INICIAL];
+        this.agregados = new AgregadosVentas();
+    }
+
+    @Override
+    public boolean guardarTransaccion(Transaccion transaccion) {
+        synchronized (lockEscritura) {
+            if (cerrada) {
+                System.err.println("[" + idDistribuidor + "] ERROR: BD en memoria cerrada: " + transaccion.getId());
+                return false;
+            }
+            Transaccion[] actual = registros;
+            if (cantidad == actual.length) {
+                // el arreglo nuevo se publica antes que la cantidad, así un cursor nunca lee fuera de su instantánea
+                actual = Arrays.copyOf(actual, actual.length * 2);
+                registros = actual;
+            }
+            actual[cantidad] = transaccion;
+            agregados.registrar(transaccion);
+            cantidad = cantidad + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Todo el lote con una sola toma del lock y a lo sumo una copia del arreglo. */
+    @Override
+    public int guardarTransacciones(List<Transaccion> transacciones) {
+        synchronized (lockEscritura) {
+            if (cerrada) {
+                System.err.println("[" + idDistribuidor + "] ERROR: BD en memoria cerrada: lote de " +
+                        transacciones.size());
+                return 0;
+            }
+            Transaccion[] actual = registros;
+            int nueva = cantidad + transacciones.size();
+            if (nueva > actual.length) {
+                actual = Arrays.copyOf(actual, Math.max(nueva, actual.length * 2));
+                registros = actual;
+            }
+            int i = cantidad;
+            for (Transaccion t : transacciones) {
+                actual[i++] = t;
+                agregados.registrar(t);
+            }
+            cantidad = nueva;
+        }
+        return transacciones.size();
+    }
+
+    @Override
+    public CursorTransacciones abrirCursor(LocalDateTime desde, LocalDateTime hasta, Predicate<Transaccion> filtro) {
+        int n = cantidad;
+        return CursorTransacciones.enMemoria(registros, n, desde, hasta, filtro);
+    }
+
+    @Override
+    public CursorTransacciones consultar(String idCliente, LocalDateTime desde, LocalDateTime hasta) {
+        return abrirCursor(desde, hasta, idCliente == null ? null : t -> idCliente.equals(t.getIdCliente()));
+    }
+
+    @Override
+    public AgregadosVentas getAgregados() {
+        return agregados;
+    }
+
+    /**
+     * No hay réplicas que comparar: solo controla que los agregados cubran todas las transacciones. */
+    @Override
+    public boolean verificarIntegridad() {
+        synchronized (lockEscritura) {
+            boolean integra = agregados.getRegistros() == cantidad;
+            System.out.println("[" + idDistribuidor + "] BD en memoria: " + cantidad + " registros" +
+                    (integra ? "." : ", agregados desfasados (" + agregados.getRegistros() + ")."));
+            return integra;
+        }
+    }
+
+    @Override
+    public ReporteReparacion repararReplicas() {
+        return ReporteReparacion.sinCambios(0);
+    }
+
+    @Override
+    public String obtenerEstadisticas() {
+        AgregadosVentas.Acumulado total = agregados.getTotal();
+        StringBuilder texto = new StringBuilder();
+        texto.append("Estadísticas de ").append(idDistribuidor).append(" (en memoria):\n");
+        texto.append("Transacciones Registradas: ").append(cantidad).append("\n");
+        texto.append(String.format("Total Ventas: $%.2f (%.2f litros)\n", total.getMonto(), total.getLitros()));
+        texto.append("Por Combustible:\n");
+        for (Map.Entry<TipoCombustible, AgregadosVentas.Acumulado> e : agregados.porCombustible().entrySet()) {
+            texto.append("  ").append(e.getKey().getNombre()).append(": ").append(e.getValue()).append("\n");
+        }
+        texto.append("Por Surtidor:\n");
+        for (Map.Entry<String, AgregadosVentas.Acumulado> e : agregados.porCliente().entrySet()) {
+            texto.append("  ").append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+        }
+        texto.append("Persistencia: ninguna (se pierde al cerrar)");
+        return texto.toString();
+    }
+
+    @Override
+    public void cerrar() {
+        synchronized (lockEscritura) {
+            cerrada = true;
+        }
+    }
+}
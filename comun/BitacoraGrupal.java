@@ -0,0 +1,681 @@
+package comun;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***********************************************************************************************************************
+ * Bitácora de escritura (write-ahead log) con commit agrupado.
+ * Los llamadores encolan registros y un único hilo escritor los agrupa en lotes: cada lote se escribe con una sola
+ * operación por réplica y se fuerza a disco una vez. Recién entonces se completan los futuros de todo el lote.
+ * En los modos asíncronos (ver ModoDurabilidad) el escritor solo escribe el principal y pasa cada lote, por una cola
+ * acotada, a un hilo replicador que escribe las demás réplicas. Con una Rotacion configurada, el escritor sella los
+ * archivos entre dos lotes y sigue escribiendo en archivos nuevos en las mismas rutas. */
+/**********************************************************************************************************************/
+public class BitacoraGrupal {
+    public static final int MAX_LOTE_DEFECTO = 256;
+    public static final long MAX_ESPERA_MS_DEFECTO = 2;
+    public static final int CAPACIDAD_REPLICA_DEFECTO = 64; // lotes en espera antes de frenar al escritor
+
+    private final String nombre; // para los logs
+    private final Path[] rutas; // réplicas (principal, backup, ...)
+    private final int maxLote;
+    private final long maxEsperaNanos;
+    private final ModoDurabilidad modo;
+
+    private final BlockingQueue<Pendiente> cola;
+    private final ReentrantLock lockLote; // se toma por lote; ejecutarExclusivo lo usa para pausar escrituras
+    private final AtomicBoolean iniciada;
+    private final AtomicBoolean cerrada;
+    private final AtomicLong[] confirmados; // bytes durables por réplica
+    private final SumasBloques[] sumas; // checksums por bloque de cada réplica (opcional)
+    private FileChannel[] canales;
+    private volatile Thread escritor;
+
+    // replicación asíncrona (réplicas 1..n)
+    private final BlockingQueue<LoteReplica> colaReplica;
+    private final ReentrantLock lockReplica;
+    private final AtomicInteger lotesReplicaPendientes; // encolados o en curso
+    private final AtomicLong registrosPrincipal; // registros durables en el principal
+    private final AtomicLong registrosReplicados; // registros durables en todas las réplicas
+    private final AtomicLong erroresReplica;
+    private volatile long encoladoLoteEnCurso; // momento (ms) en que se encoló el lote que se está replicando
+    private Thread replicador;
+
+    private volatile Rotacion rotacion;
+    private volatile OyenteConfirmacion alConfirmar;
+    private volatile Numeracion numeracion;
+    private volatile long ultimaSecuencia; // la avanza solo el hilo escritor
+    private final Object lockRotacion = new Object(); // los lectores lo toman para no ver una rotación a medias
+
+    /**
+     * Operación que necesita las réplicas quietas (sin lotes en curso). */
+    public interface AccionExclusiva<T> {
+        T ejecutar() throws IOException;
+    }
+
+    /**
+     * Política de rotación de las réplicas; el escritor la consulta antes de cada lote. */
+    public interface Rotacion {
+        boolean debeRotar(long longitudPrincipal);
+
+        /**
+         * Sella los archivos actuales y deja réplicas vacías en las mismas rutas. Se llama con todas las réplicas
+         * al día y sus canales (y sumas) cerrados. */
+        void rotar() throws IOException;
+    }
+
+    /**
+     * Recibe cada registro confirmado en el principal, en el hilo escritor y en orden de archivo. */
+    public interface OyenteConfirmacion {
+        /**
+         * @param posicion byte del archivo activo del principal donde empieza el registro */
+        void confirmado(Object adjunto, long posicion, int largo);
+    }
+
+    /**
+     * Completa cada registro con su número de secuencia justo antes de escribirlo, en el hilo escritor: así las
+     * secuencias quedan crecientes en el orden del archivo aunque los registros se encolen desde varios hilos. */
+    public interface Numeracion {
+        byte[] numerar(byte[] registro, long secuencia);
+    }
+
+    /**
+     * Lote ya durable en el principal, a la espera de las demás réplicas. */
+    private static class LoteReplica {
+        static final LoteReplica FIN = new LoteReplica(null, 0);
+
+        final ByteBuffer datos;
+        final int registros;
+        final long encoladoMs = System.currentTimeMillis();
+
+        LoteReplica(ByteBuffer datos, int registros) {
+            this.datos = datos;
+            this.registros = registros;
+        }
+    }
+
+    /**
+     * Registro encolado a la espera de ser durable. */
+    private static class Pendiente {
+        byte[] datos; // lo reemplaza la numeración al escribir el lote
+        final Object adjunto; // lo recibe alConfirmar, en orden de commit
+        final CompletableFuture<Void> confirmacion = new CompletableFuture<>();
+
+        Pendiente(byte[] datos, Object adjunto) {
+            this.datos = datos;
+            this.adjunto = adjunto;
+        }
+    }
+
+    /**
+     * Registros de agregarTodos: entran a la cola como un solo elemento, así el escritor no puede tomar una parte en
+     * un lote y el resto en el siguiente. */
+    private static final class Grupo extends Pendiente {
+        final List<Pendiente> registros;
+
+        Grupo(List<Pendiente> registros) {
+            super(null, null);
+            this.registros = registros;
+        }
+    }
+
+    //CONSTRUCTOR
+    public BitacoraGrupal(String nombre, int maxLote, long maxEsperaMs, String... rutas) {
+        this(nombre, maxLote, maxEsperaMs, ModoDurabilidad.SINCRONA_AMBAS, rutas, null);
+    }
+
+    /**
+     * @param modo  en qué momento se confirma cada registro (la réplica 0 es el principal)
+     * @param sumas checksums por bloque de cada réplica (mismo orden que rutas), o null. La bitácora es su único
+     *              escritor: los actualiza con cada lote escrito. */
+    public BitacoraGrupal(String nombre, int maxLote, long maxEsperaMs, ModoDurabilidad modo, String[] rutas,
+                          SumasBloques[] sumas) {
+        if (maxLote < 1) {
+            throw new IllegalArgumentException("maxLote debe ser al menos 1: " + maxLote);
+        }
+        this.nombre = nombre;
+        this.maxLote = maxLote;
+        this.maxEsperaNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxEsperaMs));
+        this.modo = modo;
+        this.rutas = new Path[rutas.length];
+        this.confirmados = new AtomicLong[rutas.length];
+        for (int i = 0; i < rutas.length; i++) {
+            this.rutas[i] = Paths.get(rutas[i]);
+            this.confirmados[i] = new AtomicLong(this.rutas[i].toFile().length());
+        }
+        this.sumas = sumas;
+        this.cola = new LinkedBlockingQueue<>();
+        this.lockLote = new ReentrantLock();
+        this.iniciada = new AtomicBoolean(false);
+        this.cerrada = new AtomicBoolean(false);
+        this.colaReplica = new ArrayBlockingQueue<>(CAPACIDAD_REPLICA_DEFECTO);
+        this.lockReplica = new ReentrantLock();
+        this.lotesReplicaPendientes = new AtomicInteger();
+        this.registrosPrincipal = new AtomicLong();
+        this.registrosReplicados = new AtomicLong();
+        this.erroresReplica = new AtomicLong();
+    }
+
+    /**
+     * Encola un registro. El futuro se completa cuando el lote que lo contiene quedó forzado a disco en todas
+     * las réplicas (solo en el principal en SINCRONA_PRINCIPAL_ASINCRONA_BACKUP), o falla con la IOException del
+     * lote. En ASINCRONA_AMBAS se completa apenas queda encolado. */
+    public CompletableFuture<Void> agregar(byte[] registro) {
+        return agregar(registro, null);
+    }
+
+    /**
+     * Como agregar(registro), pero además entrega 'adjunto' a alConfirmar cuando el registro queda durable en el
+     * principal (en el hilo escritor y en el mismo orden que en el archivo). */
+    public CompletableFuture<Void> agregar(byte[] registro, Object adjunto) {
+        Pendiente pendiente = new Pendiente(registro, adjunto);
+        if (cerrada.get()) {
+            pendiente.confirmacion.completeExceptionally(new IOException("Bitácora " + nombre + " cerrada"));
+            return pendiente.confirmacion;
+        }
+        iniciarSiHaceFalta();
+        cola.add(pendiente);
+        // carrera con cerrar(): si el escritor ya terminó nadie va a tomar este registro
+        if (cerrada.get() && (escritor == null || !escritor.isAlive()) && cola.remove(pendiente)) {
+            pendiente.confirmacion.completeExceptionally(new IOException("Bitácora " + nombre + " cerrada"));
+        } else if (modo == ModoDurabilidad.ASINCRONA_AMBAS) {
+            pendiente.confirmacion.complete(null);
+        }
+        return pendiente.confirmacion;
+    }
+
+    /**
+     * Encola varios registros seguidos (adjuntos en el mismo orden) que quedan en un mismo commit, aunque superen
+     * maxLote. Un futuro por registro, como agregar(registro, adjunto). */
+    public List<CompletableFuture<Void>> agregarTodos(List<byte[]> registros, List<?> adjuntos) {
+        List<Pendiente> pendientes = new ArrayList<>(registros.size());
+        List<CompletableFuture<Void>> confirmaciones = new ArrayList<>(registros.size());
+        for (int i = 0; i < registros.size(); i++) {
+            Pendiente pendiente = new Pendiente(registros.get(i), adjuntos.get(i));
+            pendientes.add(pendiente);
+            confirmaciones.add(pendiente.confirmacion);
+        }
+        if (cerrada.get()) {
+            for (Pendiente p : pendientes) {
+                p.confirmacion.completeExceptionally(new IOException("Bitácora " + nombre + " cerrada"));
+            }
+            return confirmaciones;
+        }
+        iniciarSiHaceFalta();
+        Grupo grupo = new Grupo(pendientes);
+        cola.add(grupo);
+        // misma carrera con cerrar() que en agregar()
+        boolean descartado = cerrada.get() && (escritor == null || !escritor.isAlive()) && cola.remove(grupo);
+        for (Pendiente p : pendientes) {
+            if (descartado) {
+                p.confirmacion.completeExceptionally(new IOException("Bitácora " + nombre + " cerrada"));
+            } else if (modo == ModoDurabilidad.ASINCRONA_AMBAS) {
+                p.confirmacion.complete(null);
+            }
+        }
+        return confirmaciones;
+    }
+
+    /**
+     * Abre los canales y arranca el hilo escritor recién con el primer registro, así las instancias que solo
+     * leen (p. ej. verificaciones) no retienen archivos ni hilos. */
+    private void iniciarSiHaceFalta() {
+        if (iniciada.get()) return;
+        synchronized (this) {
+            if (iniciada.get() || cerrada.get()) return;
+            canales = abrirCanales();
+            escritor = new Thread(this::bucleEscritor, "bitacora-" + nombre);
+            escritor.setDaemon(true);
+            escritor.start();
+            if (esAsincrona() && rutas.length > 1) {
+                replicador = new Thread(this::bucleReplicador, "replicador-" + nombre);
+                replicador.setDaemon(true);
+                replicador.start();
+            }
+            iniciada.set(true);
+        }
+    }
+
+    /**
+     * Abre las réplicas para agregar y toma su longitud como confirmada. null si alguna no se pudo abrir: los
+     * registros fallarán en el escritor al no haber canales. */
+    private FileChannel[] abrirCanales() {
+        FileChannel[] abiertos = new FileChannel[rutas.length];
+        try {
+            for (int i = 0; i < rutas.length; i++) {
+                abiertos[i] = FileChannel.open(rutas[i],
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                confirmados[i].set(abiertos[i].size());
+                if (sumas != null) {
+                    sumas[i].abrirParaEscritura();
+                }
+            }
+            return abiertos;
+        } catch (IOException e) {
+            cerrarCanales(abiertos);
+            System.err.println("[" + nombre + "] ERROR al abrir bitácora: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * HILO escritor: toma el primer registro disponible y agrupa los que lleguen hasta completar maxLote o
+     * agotar la ventana de espera. Un Grupo entra entero al lote. */
+    private void bucleEscritor() {
+        List<Pendiente> lote = new ArrayList<>(maxLote);
+        List<Pendiente> tomados = new ArrayList<>(maxLote);
+        while (!cerrada.get() || !cola.isEmpty()) {
+            try {
+                Pendiente primero = cola.poll(100, TimeUnit.MILLISECONDS);
+                if (primero == null) continue;
+                agregarAlLote(primero, lote);
+
+                long limite = System.nanoTime() + maxEsperaNanos;
+                while (lote.size() < maxLote) {
+                    // primero lo que ya está encolado, sin esperar
+                    if (cola.drainTo(tomados, maxLote - lote.size()) > 0) {
+                        for (Pendiente p : tomados) agregarAlLote(p, lote);
+                        tomados.clear();
+                        continue;
+                    }
+                    long restante = limite - System.nanoTime();
+                    if (restante <= 0) break;
+                    Pendiente siguiente = cola.poll(restante, TimeUnit.NANOSECONDS);
+                    if (siguiente == null) break;
+                    agregarAlLote(siguiente, lote);
+                }
+
+                confirmarLote(lote);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                lote.clear();
+            }
+        }
+        // si el hilo terminó por interrupción no quedan llamadores esperando para siempre
+        Pendiente resto;
+        while ((resto = cola.poll()) != null) {
+            agregarAlLote(resto, lote);
+        }
+        for (Pendiente p : lote) {
+            p.confirmacion.completeExceptionally(new IOException("Bitácora " + nombre + " detenida"));
+        }
+    }
+
+    private static void agregarAlLote(Pendiente pendiente, List<Pendiente> lote) {
+        if (pendiente instanceof Grupo) {
+            lote.addAll(((Grupo) pendiente).registros);
+        } else {
+            lote.add(pendiente);
+        }
+    }
+
+    private void confirmarLote(List<Pendiente> lote) {
+        lockLote.lock();
+        try {
+            Rotacion r = rotacion;
+            if (r != null && canales != null && r.debeRotar(confirmados[0].get())) {
+                rotar(r);
+            }
+            escribirLote(lote);
+        } finally {
+            lockLote.unlock();
+        }
+    }
+
+    /**
+     * Sella las réplicas entre dos lotes (con lockLote tomado). Si falla, se sigue escribiendo donde se pueda. */
+    private void rotar(Rotacion r) {
+        try {
+            esperarReplicaAlDia();
+        } catch (IOException e) {
+            System.err.println("[" + nombre + "] Rotación postergada: " + e.getMessage());
+            return;
+        }
+        lockReplica.lock();
+        try {
+            synchronized (lockRotacion) {
+                cerrarCanales(canales);
+                if (sumas != null) {
+                    for (SumasBloques suma : sumas) suma.cerrar();
+                }
+                try {
+                    r.rotar();
+                } catch (IOException e) {
+                    System.err.println("[" + nombre + "] ERROR al rotar segmentos: " + e.getMessage());
+                }
+                canales = abrirCanales();
+            }
+        } finally {
+            lockReplica.unlock();
+        }
+    }
+
+    public void setRotacion(Rotacion rotacion) {
+        this.rotacion = rotacion;
+    }
+
+    /**
+     * Recibe los adjuntos de cada lote confirmado en el principal; corre en el hilo escritor, antes de completar
+     * los futuros del lote, así que debe ser breve. */
+    public void setAlConfirmar(OyenteConfirmacion alConfirmar) {
+        this.alConfirmar = alConfirmar;
+    }
+
+    /**
+     * @param ultimaSecuencia secuencia del último registro ya escrito; el próximo recibe la siguiente */
+    public void setNumeracion(Numeracion numeracion, long ultimaSecuencia) {
+        this.ultimaSecuencia = ultimaSecuencia;
+        this.numeracion = numeracion;
+    }
+
+    /**
+     * Secuencia asignada al último registro escrito (o en escritura) en el principal. */
+    public long getUltimaSecuencia() {
+        return ultimaSecuencia;
+    }
+
+    /**
+     * Ejecuta una lectura corta (p. ej. abrir los archivos de un cursor) sin que el escritor rote en el medio. */
+    public <T> T sinRotar(AccionExclusiva<T> accion) throws IOException {
+        synchronized (lockRotacion) {
+            return accion.ejecutar();
+        }
+    }
+
+    private void escribirLote(List<Pendiente> lote) {
+        Numeracion n = numeracion;
+        if (n != null) {
+            // una secuencia consumida por un lote fallido queda como hueco: solo importa que crezcan
+            for (Pendiente p : lote) {
+                if (p.datos.length > 0) p.datos = n.numerar(p.datos, ++ultimaSecuencia);
+            }
+        }
+        int total = 0;
+        int registros = 0; // sin contar las marcas vacías de sincronizar()
+        for (Pendiente p : lote) {
+            total += p.datos.length;
+            if (p.datos.length > 0) registros++;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+        for (Pendiente p : lote) buffer.put(p.datos);
+        buffer.flip();
+
+        // en los modos asíncronos este hilo solo escribe el principal
+        int replicas = esAsincrona() ? 1 : rutas.length;
+        try {
+            if (canales == null) {
+                throw new IOException("canales no disponibles");
+            }
+            long posicion = confirmados[0].get();
+            for (int i = 0; i < replicas; i++) {
+                escribir(i, buffer);
+            }
+            for (int i = 0; i < replicas; i++) {
+                canales[i].force(false);
+            }
+            for (int i = 0; i < replicas; i++) {
+                confirmados[i].addAndGet(total);
+            }
+            registrosPrincipal.addAndGet(registros);
+            if (replicas == rutas.length) {
+                registrosReplicados.addAndGet(registros);
+            }
+            OyenteConfirmacion oyente = alConfirmar;
+            if (oyente != null) {
+                for (Pendiente p : lote) {
+                    if (p.adjunto != null) oyente.confirmado(p.adjunto, posicion, p.datos.length);
+                    posicion += p.datos.length;
+                }
+            }
+            for (Pendiente p : lote) p.confirmacion.complete(null);
+        } catch (IOException e) {
+            System.err.println("[" + nombre + "] ERROR al confirmar lote de " + lote.size() +
+                    " registros: " + e.getMessage());
+            descartarLoteFallido(replicas);
+            for (Pendiente p : lote) p.confirmacion.completeExceptionally(e);
+            return;
+        }
+
+        if (replicas < rutas.length) {
+            lotesReplicaPendientes.incrementAndGet();
+            try {
+                // cola acotada: si el backup se atrasa demasiado, frena al escritor
+                colaReplica.put(new LoteReplica(buffer, registros));
+            } catch (InterruptedException e) {
+                lotesReplicaPendientes.decrementAndGet();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Tras un lote fallido, trunca cada réplica escrita a lo confirmado (y rehace sus sumas): el lote siguiente y las
+     * posiciones que recibe el oyente parten del final real. Si no se puede truncar, se toma como confirmado el
+     * tamaño actual; el lote a medio escribir queda como divergencia para verificarIntegridad/reparación. */
+    private void descartarLoteFallido(int replicas) {
+        if (canales == null) return;
+        for (int i = 0; i < replicas; i++) {
+            try {
+                if (canales[i].size() > confirmados[i].get()) {
+                    canales[i].truncate(confirmados[i].get());
+                }
+            } catch (IOException e) {
+                System.err.println("[" + nombre + "] No se pudo descartar el lote fallido de " + rutas[i] + ": " +
+                        e.getMessage());
+                confirmados[i].set(rutas[i].toFile().length());
+            }
+            try {
+                if (sumas != null) sumas[i].recargar();
+            } catch (IOException e) {
+                System.err.println("[" + nombre + "] No se pudieron recargar las sumas de " + rutas[i] + ": " +
+                        e.getMessage());
+            }
+        }
+    }
+
+    private void escribir(int replica, ByteBuffer buffer) throws IOException {
+        ByteBuffer vista = buffer.duplicate();
+        while (vista.hasRemaining()) {
+            canales[replica].write(vista);
+        }
+        if (sumas != null) {
+            sumas[replica].agregar(buffer);
+        }
+    }
+
+    /**
+     * HILO replicador: escribe en las réplicas secundarias los lotes ya durables en el principal. */
+    private void bucleReplicador() {
+        while (true) {
+            LoteReplica lote;
+            try {
+                lote = colaReplica.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (lote == LoteReplica.FIN) break;
+
+            encoladoLoteEnCurso = lote.encoladoMs;
+            lockReplica.lock();
+            try {
+                for (int i = 1; i < rutas.length; i++) {
+                    escribir(i, lote.datos);
+                }
+                for (int i = 1; i < rutas.length; i++) {
+                    canales[i].force(false);
+                    confirmados[i].addAndGet(lote.datos.remaining());
+                }
+                registrosReplicados.addAndGet(lote.registros);
+            } catch (IOException e) {
+                // el principal ya tiene el lote: la divergencia queda para verificarIntegridad/reparación
+                erroresReplica.incrementAndGet();
+                System.err.println("[" + nombre + "] ERROR al replicar lote de " + lote.registros +
+                        " registros: " + e.getMessage());
+            } finally {
+                lockReplica.unlock();
+                encoladoLoteEnCurso = 0;
+                lotesReplicaPendientes.decrementAndGet();
+                synchronized (lotesReplicaPendientes) {
+                    lotesReplicaPendientes.notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean esAsincrona() {
+        return modo != ModoDurabilidad.SINCRONA_AMBAS;
+    }
+
+    /**
+     * Espera a que el replicador vacíe su cola (el llamador debe tener frenado al escritor). */
+    private void esperarReplicaAlDia() throws IOException {
+        synchronized (lotesReplicaPendientes) {
+            while (lotesReplicaPendientes.get() > 0) {
+                if (replicador == null || !replicador.isAlive()) {
+                    throw new IOException("replicador detenido con lotes pendientes");
+                }
+                try {
+                    lotesReplicaPendientes.wait(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("espera de réplica interrumpida");
+                }
+            }
+        }
+    }
+
+    /**
+     * Ejecuta una acción entre dos lotes, con la escritura detenida (los llamadores siguen encolando). Al terminar
+     * toma como confirmado el tamaño actual de cada réplica, ya que la acción pudo reescribirlas o truncarlas; los
+     * canales están en modo APPEND, así que los lotes siguientes van al nuevo final. */
+    public <T> T ejecutarExclusivo(AccionExclusiva<T> accion) throws IOException {
+        lockLote.lock();
+        try {
+            // lo que ya está en el principal tiene que llegar al backup antes de comparar o copiar
+            esperarReplicaAlDia();
+            lockReplica.lock();
+            try {
+                return accion.ejecutar();
+            } finally {
+                for (int i = 0; i < rutas.length; i++) {
+                    confirmados[i].set(rutas[i].toFile().length());
+                }
+                lockReplica.unlock();
+            }
+        } finally {
+            lockLote.unlock();
+        }
+    }
+
+    /**
+     * Espera a que todo lo aceptado hasta ahora esté escrito en todas las réplicas. En SINCRONA_AMBAS no hace
+     * falta: cada registro confirmado ya lo está. */
+    public void sincronizar() throws IOException {
+        if (!esAsincrona() || !iniciada.get() || cerrada.get()) return;
+        // una marca vacía detrás de los registros pendientes: cuando se confirma, el principal está al día
+        Pendiente marca = new Pendiente(new byte[0], null);
+        cola.add(marca);
+        try {
+            marca.confirmacion.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("sincronización interrumpida");
+        } catch (ExecutionException e) {
+            throw new IOException("no se pudo sincronizar: " + e.getCause().getMessage());
+        }
+        ejecutarExclusivo(() -> null);
+    }
+
+    /**
+     * Bytes de la réplica indicada que ya están confirmados en disco. Los lectores no deben pasar de aquí para no
+     * ver un lote a medio escribir. */
+    public long longitudConfirmada(int replica) {
+        return confirmados[replica].get();
+    }
+
+    public ModoDurabilidad getModo() {
+        return modo;
+    }
+
+    /**
+     * Registros durables en el principal que todavía no llegaron a todas las réplicas. */
+    public long getRetrasoReplicaRegistros() {
+        return Math.max(0, registrosPrincipal.get() - registrosReplicados.get());
+    }
+
+    /**
+     * Antigüedad (ms) del lote más viejo que espera ser replicado, 0 si las réplicas están al día. */
+    public long getRetrasoReplicaMs() {
+        long masViejo = encoladoLoteEnCurso;
+        LoteReplica siguiente = colaReplica.peek();
+        if (masViejo == 0 && siguiente != null && siguiente != LoteReplica.FIN) {
+            masViejo = siguiente.encoladoMs;
+        }
+        return masViejo == 0 ? 0 : Math.max(0, System.currentTimeMillis() - masViejo);
+    }
+
+    /**
+     * Registros aceptados que aún no se escribieron en el principal (solo crece en ASINCRONA_AMBAS). */
+    public int getPendientesPrincipal() {
+        return cola.size();
+    }
+
+    public long getErroresReplica() {
+        return erroresReplica.get();
+    }
+
+    /**
+     * Deja de aceptar registros, espera a que el escritor y el replicador vacíen sus colas y cierra los canales. */
+    public void cerrar() {
+        if (!cerrada.compareAndSet(false, true)) return;
+        synchronized (this) {
+            try {
+                if (escritor != null) {
+                    escritor.join();
+                }
+                if (replicador != null) {
+                    colaReplica.put(LoteReplica.FIN);
+                    replicador.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (canales != null) {
+                cerrarCanales(canales);
+            }
+            if (sumas != null) {
+                for (SumasBloques suma : sumas) suma.cerrar();
+            }
+        }
+    }
+
+    private void cerrarCanales(FileChannel[] lista) {
+        for (FileChannel canal : lista) {
+            if (canal == null) continue;
+            try {
+                canal.close();
+            } catch (IOException e) {
+                // Ignorar
+            }
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package comun;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/***********************************************************************************************************************
+ * Contenido tipado de un Mensaje, según su Tipo, con campos primitivos.
+ * Reemplaza al mapa genérico de datos para los mensajes frecuentes: quien lo recibe lee los campos sin casts ni
+ * Double/Integer, y CodecMensaje los escribe y lee campo a campo (las transacciones se arman directo desde la trama).
+ * Cada clase tiene un de(Mensaje) que también acepta el mensaje de un nodo anterior, que trae los mismos datos en el
+ * mapa (y null si el mensaje no trae ese contenido); agregarDatosLegado hace lo inverso para enviarle a ese nodo (ver
+ * Mensaje.comoLegado).
+ *   Precios   ACTUALIZAR_PRECIO_BASE, ACTUALIZAR_PRECIO_CLIENTE
+ *   ConsultaPrecios   SOLICITAR_PRECIOS, y ERROR de una actualización de precios que no se pudo aplicar
+ *   ConfirmacionPrecios   CONFIRMACION_PRECIO
+ *   Registro  REGISTRAR_TRANSACCION
+ *   Lote      SINCRONIZAR_TRANSACCIONES
+ *   LoteRegistro   REGISTRAR_LOTE
+ *   AckAcumulado   ACK y ERROR de REGISTRAR_LOTE
+ *   Reporte   ENVIAR_REPORTE
+ *   Ack       ACK y ERROR
+ *   Estado    ESTADO_CLIENTE
+ *   Saludo    SALUDO (el de quien conecta va en el mapa de un RECONEXION, ver Protocolo) */
+/**********************************************************************************************************************/
+public abstract class CargaMensaje implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final TipoCombustible[] TIPOS = TipoCombustible.values();
+
+    CargaMensaje() {
+    }
+
+    /**
+     * Pone el contenido en el mapa de datos con las claves que lee un nodo anterior a la carga. Lo que ese nodo no
+     * conoce (versiones, secuencias, saludo) no se agrega. */
+    void agregarDatosLegado(Mensaje mensaje) {
+    }
+
+    /**
+     * Precios por TipoCombustible (NaN = no informado) que llevan a la versión 'version' del linaje 'linaje'. Si
+     * versionBase es COMPLETA es la tabla entera; si no, un delta: solo los precios que cambiaron desde la versión
+     * versionBase, y solo se puede aplicar sobre esa versión del mismo linaje (ver TablaPrecios.admite y
+     * HistorialPrecios). */
+    public static final class Precios extends CargaMensaje {
+        private static final long serialVersionUID = 1L;
+        public static final long COMPLETA = -1;
+
+        private final double[] precios; // por ordinal, no se modifica
+        private final long version;
+        private final long versionBase;
+        private final long linaje; // ver TablaPrecios; 0 en los mensajes de nodos anteriores
+
+        /**
+         * La tabla completa. */
+        public Precios(TablaPrecios tabla) {
+            this(tabla.arreglo(), tabla.getVersion(), COMPLETA, tabla.getLinaje());
+        }
+
+        Precios(double[] precios, long version) {
+            this(precios, version, COMPLETA, 0);
+        }
+
+        Precios(double[] precios, long version, long versionBase, long linaje) {
+            this.precios = precios;
+            this.version = version;
+            this.versionBase = versionBase;
+            this.linaje = linaje;
+        }
+
+        public static Precios de(Mensaje mensaje) {
+            if (mensaje.getCarga() instanceof Precios) return (Precios) mensaje.getCarga();
+            Object datos = mensaje.obtenerDato("precios");
+            if (!(datos instanceof Map)) return null;
+            double[] precios = new double[TIPOS.length];
+            Arrays.fill(precios, Double.NaN);
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) datos).entrySet()) {
+                try {
+                    precios[TipoCombustible.valueOf(String.valueOf(e.getKey())).ordinal()] =
+                            ((Number) e.getValue()).doubleValue();
+                } catch (IllegalArgumentException | ClassCastException | NullPointerException ex) {
+                    System.err.println("[" + mensaje.getIdOrigen() + "] Precio inválido: " + e.getKey());
+                }
+            }
+            return new Precios(precios, 0);
+        }
+
+        public boolean incluye(TipoCombustible tipo) {
+            return !Double.isNaN(precios[tipo.ordinal()]);
+        }
+
+        public double precio(TipoCombustible tipo) {
+            return precios[tipo.ordinal()];
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getVersionBase() {
+            return versionBase;
+        }
+
+        public long getLinaje() {
+            return linaje;
+        }
+
+        public boolean esCompleta() {
+            return versionBase == COMPLETA;
+        }
+
+        /**
+         * Cantidad de precios informados. */
+        public int getCantidad() {
+            int cantidad = 0;
+            for (double precio : precios) {
+                if (!Double.isNaN(precio)) cantidad++;
+            }
+            return cantidad;
+        }
+
+        double[] arreglo() {
+            return precios;
+        }
+
+        @Override
+        void agregarDatosLegado(Mensaje mensaje) {
+            Map<String, Double> porNombre = new HashMap<>();
+            for (TipoCombustible tipo : TIPOS) {
+                if (incluye(tipo)) porNombre.put(tipo.name(), precio(tipo));
+            }
+            mensaje.agregarDato("precios", porNombre);
+        }
+
+        @Override
+        public String toString() {
+            return "Precios{v" + (esCompleta() ? "" : versionBase + "->v") + version + ", " +
+                    Arrays.toString(precios) + '}';
+        }
+    }
+
+    /**
+     * Versión y linaje de precios que tiene un nodo: pide los cambios desde ellos (ver HistorialPrecios.desde). */
+    public static final class ConsultaPrecios extends CargaMensaje {
+        private static final long serialVersionUID = 1L;
+
+        private final long version;
+        private final long linaje;
+
+        public ConsultaPrecios(TablaPrecios tabla) {
+            this(tabla.getVersion(), tabla.getLinaje());
+        }
+
+        ConsultaPrecios(long version, long linaje) {
+            this.version = version;
+            this.linaje = linaje;
+        }
+
+        public static ConsultaPrecios de(Mensaje mensaje) {
+            return mensaje.getCarga() instanceof ConsultaPrecios ? (ConsultaPrecios) mensaje.getCarga() : null;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getLinaje() {
+            return linaje;
+        }
+
+        @Override
+        public String toString() {
+            return "ConsultaPrecios{desde v" + version + '}';
+        }
+    }
+
+    /**
+     * Una transacción. */
+    public static final class Registro extends CargaMensaje {
+        private static final long serialVersionUID = 1L;
+
+        private final Transaccion transaccion;
+
+        public Registro(Transaccion transaccion) {
+            this.transaccion = transaccion;
+        }
+
+        public static Registro de(Mensaje mensaje) {
+            if (mensaje.getCarga() instanceof Registro) return (Registro) mensaje.getCarga();
+            Object datos = mensaje.obtenerDato("transaccion");
+            return datos instanceof Transaccion ? new Registro((Transaccion) datos) : null;
+        }
+
+        public Transaccion getTransaccion() {
+            return transaccion;
+        }
+
+        @Override
+        void agregarDatosLegado(Mensaje mensaje) {
+            mensaje.agregarDato("transaccion", transaccion);
+        }
+
+        @Override
+        public String toString() {
+            return "Registro{" + transaccion + '}';
+        }
+    }
+
+    /**
+     * Varias transacciones (p. ej. las pendientes de sincronizar). */
+    public static class Lote extends CargaMensaje {
+        private static final long serialVersionUID = 1L;
+
+        private final Transaccion[] transacciones;
+
+        public Lote(Collection<Transaccion> transacciones) {
+            this(transacciones.toArray(new Transaccion[0]));
+        }
+
+        Lote(Transaccion[] transacciones) {
+            this.transacciones = transacciones;
+        }
+
+        public static Lote de(Mensaje mensaje) {
+            if (mensaje.getCarga() instanceof Lote) return (Lote) mensaje.getCarga();
+            Transaccion[] transacciones = transaccionesLegado(mensaje);
+            return transacciones == null ? null : new Lote(transacciones);
+        }
+
+        static Transaccion[] transaccionesLegado(Mensaje mensaje) {
+            Object datos = mensaje.obtenerDato("transacciones");
+            if (!(datos instanceof List)) return null;
+            List<?> lista = (List<?>) datos;
+            Transaccion[] transacciones = new Transaccion[lista.size()];
+            for (int i = 0; i < transacciones.length; i++) {
+                if (!(lista.get(i) instanceof Transaccion)) return null;
+                transacciones[i] = (Transaccion) lista.get(i);
+            }
+            return transacciones;
+        }
+
+        public int getCantidad() {
+            return transacciones.length;
+        }
+
+        public Transaccion get(int i) {
+            return transacciones[i];
+        }
+
+        /**
+         * Vista de solo lectura, sin copiar. */
+        public List<Transaccion> comoLista() {
+            return Collections.unmodifiableList(Arrays.asList(transacciones));
+        }
+
+        /**
+         * Suma de los montos, en milésimas (Transaccion.UNIDADES). */
+        public long getMontoMilesimas() {
+            long total = 0;
+            for (Transaccion t : transacciones) total += t.getMontoMilesimas();
+            return total;
+        }
+
+        @Override
+        void agregarDatosLegado(Mensaje mensaje) {
+            mensaje.agregarDato("transacciones", new ArrayList<>(comoLista()));
+            mensaje.agregarDato("cantidad", transacciones.length);
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" + transacciones.length + " transacciones}";
+        }
+    }
+
+    /**
+     * Ventas de un surtidor numeradas: la i-ésima tiene la secuencia primeraSecuencia + i. La secuencia es del
+     * surtidor y solo avanza, así el distribuidor confirma todo lo recibido con un único AckAcumulado. */
+    public static final class LoteRegistro extends Lote {
+        private static final long serialVersionUID = 1L;
+
+        private final long primeraSecuencia;
+
+        public LoteRegistro(long primeraSecuencia, Collection<Transaccion> transacciones) {
+            this(primeraSecuencia, transacciones.toArray(new Transaccion[0]));
+        }
+
+        LoteRegistro(long primeraSecuencia, Transaccion[] transacciones) {
+            super(transacciones);
+            this.primeraSecuencia = primeraSecuencia;
+        }
+
+        public static LoteRegistro de(Mensaje mensaje) {
+            return mensaje.getCarga() instanceof LoteRegistro ? (LoteRegistro) mensaje.getCarga() : null;
+        }
+
+        public long getPrimeraSecuencia() {
+            return primeraSecuencia;
+        }
+
+        public long getUltimaSecuencia() {
+            return primeraSecuencia + getCantidad() - 1;
+        }
+
+        @Override
+        public String toString() {
+            return "LoteRegistro{" + primeraSecuencia + ".." + getUltimaSecuencia() + '}';
+        }
+    }
+
+    /**
+     * Confirmación acumulada de REGISTRAR_LOTE: todas las ventas hasta 'secuencia' (inclusive, sin huecos) son
+     * durables. Con tipo ERROR, lo que sigue a 'secuencia' no se guardó y hay que volver a mandarlo. */
+    public static final class AckAcumulado extends CargaMensaje {
+        private static final long serialVersionUID = 1L;
+
+        private final long secuencia;
+
+        public AckAcumulado(long secuencia) {
+            this.secuencia = secuencia;
+        }
+
+        public static AckAcumulado de(Mensaje mensaje) {
+            return mensaje.getCarga() instanceof AckAcumulado ? (AckAcumulado) mensaje.getCarga() : null;
+        }
+
+        public long getSecuencia() {
+            return secuencia;
+        }
+
+        @Override
+        public String toString() {
+            return "AckAcumulado{" + secuencia + '}';
+        }
+    }
+
+    /**
+     * Una página del reporte de un distribuidor. Los totales (de toda la BD, no de la página) vienen en la primera y
+     * la última página. */
+    public static final class Reporte extends Lote {
+        private static final long serialVersionUID = 1L;
+
+        private final int pagina;
+        private final boolean ultima;
+        private final boolean conTotales;
+        private final long totalTransacciones;
+        private final long totalVentas; // milésimas
+        private final long totalLitros; // milésimas
+
+        /**
+         * Página sin totales. */
+        public Reporte(int pagina, boolean ultima, Collection<Transaccion> transacciones) {
+            this(pagina, ultima, transacciones.toArray(new Transaccion[0]), false, 0, 0, 0);
+        }
+
+        public Reporte(int pagina, boolean ultima, Collection<Transaccion> transacciones,
+                       AgregadosVentas.Acumulado totales) {
+            this(pagina, ultima, transacciones.toArray(new Transaccion[0]), true, totales.getCantidad(),
+                    totales.getMontoMilesimas(), totales.getLitrosMilesimas());
+        }
+
+        Reporte(int pagina, boolean ultima, Transaccion[] transacciones, boolean conTotales, long totalTransacciones,
+                long totalVentas, long totalLitros) {
+            super(transacciones);
+            this.pagina = pagina;
+            this.ultima = ultima;
+            this.conTotales = conTotales;
+            this.totalTransacciones = totalTransacciones;
+            this.totalVentas = totalVentas;
+            this.totalLitros = totalLitros;
+        }
+
+        public static Reporte de(Mensaje mensaje) {
+            if (mensaje.getCarga() instanceof Reporte) return (Reporte) mensaje.getCarga();
+            Transaccion[] transacciones = transaccionesLegado(mensaje);
+            Integer pagina = mensaje.obtenerEntero("pagina");
+            Boolean ultima = mensaje.obtenerBoolean("ultimaPagina");
+            Integer total = mensaje.obtenerEntero("totalTransacciones");
+            Double ventas = mensaje.obtenerDouble("totalVentas");
+            Double litros = mensaje.obtenerDouble("totalLitros");
+            return new Reporte(pagina == null ? 0 : pagina, ultima == null || ultima,
+                    transacciones == null ? new Transaccion[0] : transacciones, total != null,
+                    total == null ? 0 : total, ventas == null ? 0 : Transaccion.aMilesimas(ventas),
+                    litros == null ? 0 : Transaccion.aMilesimas(litros));
+        }
+
+        //GETTERS
+        public int getPagina() { return pagina; }
+        public boolean isUltima() { return ultima; }
+        public boolean isConTotales() { return conTotales; }
+        public long getTotalTransacciones() { return totalTransacciones; }
+        public long getTotalVentasMilesimas() { return totalVentas; }
+        public long getTotalLitrosMilesimas() { return totalLitros; }
+        public double getTotalVentas() { return Transaccion.deMilesimas(totalVentas); }
+        public double getTotalLitros() { return Transaccion.deMilesimas(totalLitros); }
+
+        @Override
+        void agregarDatosLegado(Mensaje mensaje) {
+            super.agregarDatosLegado(mensaje);
+            mensaje.agregarDato("pagina", pagina);
+            mensaje.agregarDato("ultimaPagina", ultima);
+            if (conTotales) {
+                mensaje.agregarDato("totalTransacciones", (int) totalTransacciones);
+                mensaje.agregarDato("totalVentas", getTotalVentas());
+                mensaje.agregarDato("totalLitros", getTotalLitros());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Reporte{pagina=" + pagina + (ultima ? " (última)" : "") + ", " + getCantidad() + " transacciones" +
+                    (conTotales ? ", total " + totalTransacciones + " / $" + getTotalVentas() : "") + '}';
+        }
+    }
+
+    /**
+     * Confirmación (ACK) o error (ERROR): un texto y, si corresponde, una cantidad. */
+    public static final class Ack extends CargaMensaje {
+        private static final long serialVersionUID = 1L;
+
+        private final String texto;
+        private final int cantidad;
+
+        public Ack(String texto) {
+            this(texto, 0);
+        }
+
+        public Ack(String texto, int cantidad) {
+            this.texto = texto;
+            this.cantidad = cantidad;
+        }
+
+        public static Ack de(Mensaje mensaje) {
+            if (mensaje.getCarga() instanceof Ack) return (Ack) mensaje.getCarga();
+            String texto = mensaje.obtenerString("mensaje");
+            Integer cantidad = mensaje.obtenerEntero("cantidad");
+            if (texto == null && cantidad == null) return null;
+            return new Ack(texto, cantidad == null ? 0 : cantidad);
+        }
+
+        public String getTexto() {
+            return texto;
+        }
+
+        public int getCantidad() {
+            return cantidad;
+        }
+
+        @Override
+        void agregarDatosLegado(Mensaje mensaje) {
+            if (texto != null) mensaje.agregarDato("mensaje", texto);
+            if (cantidad != 0) mensaje.agregarDato("cantidad", cantidad);
+        }
+
+        @Override
+        public String toString() {
+            return "Ack{" + texto + (cantidad != 0 ? ", " + cantidad : "") + '}';
+        }
+    }
+
+    /**
+     * Estado de un surtidor. */
+    public static final class Estado extends CargaMensaje {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean enOperacion;
+        private final int totalCargas;
+        private final double totalLitros;
+        private final String accion; // o null
+
+        public Estado(boolean enOperacion, int totalCargas, double totalLitros, String accion) {
+            this.enOperacion = enOperacion;
+            this.totalCargas = totalCargas;
+            this.totalLitros = totalLitros;
+            this.accion = accion;
+        }
+
+        public static Estado de(Mensaje mensaje) {
+            if (mensaje.getCarga() instanceof Estado) return (Estado) mensaje.getCarga();
+            Boolean enOperacion = mensaje.obtenerBoolean("enOperacion");
+            if (enOperacion == null) return null;
+            Integer cargas = mensaje.obtenerEntero("totalCargas");
+            Double litros = mensaje.obtenerDouble("totalLitros");
+            return new Estado(enOperacion, cargas == null ? 0 : cargas, litros == null ? 0 : litros,
+                    mensaje.obtenerString("accion"));
+        }
+
+        //GETTERS
+        public boolean isEnOperacion() { return enOperacion; }
+        public int getTotalCargas() { return totalCargas; }
+        public double getTotalLitros() { return totalLitros; }
+        public String getAccion() { return accion; }
+
+        @Override
+        void agregarDatosLegado(Mensaje mensaje) {
+            mensaje.agregarDato("enOperacion", enOperacion);
+            mensaje.agregarDato("totalCargas", totalCargas);
+            mensaje.agregarDato("totalLitros", totalLitros);
+            if (accion != null) mensaje.agregarDato("accion", accion);
+        }
+
+        @Override
+        public String toString() {
+            return "Estado{" + (enOperacion ? "en operación" : "libre") + ", " + totalCargas + " cargas, " +
+                    totalLitros + " L" + (accion != null ? ", " + accion : "") + '}';
+        }
+    }
+
+    /**
+     * Id del nodo, versión de protocolo y capacidades (bits de Protocolo). En la respuesta, las acordadas. */
+    public static final class Saludo extends CargaMensaje {
+        private static final long serialVersionUID = 1L;
+
+        private final String idNodo;
+        private final int version;
+        private final int capacidades;
+
+        public Saludo(String idNodo, int version, int capacidades) {
+            this.idNodo = idNodo;
+            this.version = version;
+            this.capacidades = capacidades;
+        }
+
+        /**
+         * La respuesta trae la carga; el saludo de quien conecta (Protocolo.saludo), los datos en el mapa. */
+        public static Saludo de(Mensaje mensaje) {
+            if (mensaje.getCarga() instanceof Saludo) return (Saludo) mensaje.getCarga();
+            Integer version = mensaje.obtenerEntero("protocolo");
+            if (version == null) return null;
+            Integer capacidades = mensaje.obtenerEntero("capacidades");
+            return new Saludo(mensaje.getIdOrigen(), version, capacidades == null ? 0 : capacidades);
+        }
+
+        //GETTERS
+        public String getIdNodo() { return idNodo; }
+        public int getVersion() { return version; }
+        public int getCapacidades() { return capacidades; }
+
+        @Override
+        public String toString() {
+            return "Saludo{" + idNodo + ", v" + version + ", " + Protocolo.describir(capacidades) + '}';
+        }
+    }
+
+    /**
+     * Un nodo ya usa la versión de precios 'version'. El distribuidor la manda como respuesta a
+     * ACTUALIZAR_PRECIO_BASE, con la cantidad de surtidores a los que propagó los precios, y reenvía la de cada
+     * surtidor (sin correlación, surtidores = 0) para que la Administración siga la convergencia de la red. */
+    public static final class ConfirmacionPrecios extends CargaMensaje {
+        private static final long serialVersionUID = 1L;
+
+        private final String idNodo;
+        private final long version;
+        private final int surtidores;
+
+        public ConfirmacionPrecios(String idNodo, long version, int surtidores) {
+            this.idNodo = idNodo;
+            this.version = version;
+            this.surtidores = surtidores;
+        }
+
+        public static ConfirmacionPrecios de(Mensaje mensaje) {
+            return mensaje.getCarga() instanceof ConfirmacionPrecios ? (ConfirmacionPrecios) mensaje.getCarga() : null;
+        }
+
+        //GETTERS
+        public String getIdNodo() { return idNodo; }
+        public long getVersion() { return version; }
+        public int getSurtidores() { return surtidores; }
+
+        @Override
+        public String toString() {
+            return "ConfirmacionPrecios{" + idNodo + ", v" + version + ", " + surtidores + " surtidores}";
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package comun;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+/***********************************************************************************************************************
+ * Carga masiva en paralelo de archivos de la BD local (réplicas o segmentos), para auditorías y conciliaciones.
+ * Cada archivo sin comprimir se mapea en memoria y se corta en trozos de TAMANO_TROZO bytes en límites de registro
+ * (fin de línea en CSV, múltiplo de TAMANO_REGISTRO en binario); los trozos se procesan en un ForkJoinPool y sus
+ * resultados se combinan en orden, así que una lista sale en el mismo orden que el archivo. Los segmentos en GZIP no
+ * se pueden mapear: cada uno se lee secuencialmente, pero en paralelo con los demás archivos. */
+/**********************************************************************************************************************/
+public final class CargaParalela {
+    static final int TAMANO_TROZO = 8 * 1024 * 1024;
+    private static final int BUSQUEDA_FIN_LINEA = 64 * 1024;
+
+    private CargaParalela() {
+    }
+
+    /**
+     * Todas las transacciones de los archivos, en orden (archivo por archivo). */
+    public static List<Transaccion> cargar(BaseDatos.Formato formato, List<Path> archivos) throws IOException {
+        return combinar(porArchivo(formato, archivos, null, null, ForkJoinPool.commonPool(), ArrayList::new,
+                List::add, CargaParalela::concatenar), CargaParalela::concatenar, ArrayList::new);
+    }
+
+    /**
+     * Agregados de ventas de todas las transacciones de los archivos (p. ej. los principales de todas las
+     * estaciones, para la conciliación de fin de mes). */
+    public static AgregadosVentas agregar(BaseDatos.Formato formato, List<Path> archivos) throws IOException {
+        return combinar(porArchivo(formato, archivos, null, null, ForkJoinPool.commonPool(), AgregadosVentas::new,
+                AgregadosVentas::registrar, CargaParalela::sumar), CargaParalela::sumar, AgregadosVentas::new);
+    }
+
+    /**
+     * Procesa cada archivo (en paralelo entre archivos y entre trozos de un mismo archivo) y devuelve un resultado
+     * por archivo, en el mismo orden.
+     * @param limites bytes a leer de cada archivo sin comprimir (p. ej. la longitud confirmada del activo), o null
+     * @param abierto canal ya abierto del último archivo (el activo, abierto antes de que pueda rotar), o null; no se
+     *                cierra
+     * @param nuevo   crea un resultado vacío para cada trozo
+     * @param agregar acumula una transacción en el resultado del trozo
+     * @param unir    combina el resultado de un trozo con el del trozo siguiente */
+    static <R> List<R> porArchivo(BaseDatos.Formato formato, List<Path> archivos, long[] limites,
+                                  FileChannel abierto, ForkJoinPool pool, Supplier<R> nuevo,
+                                  BiConsumer<R, Transaccion> agregar, BinaryOperator<R> unir) throws IOException {
+        try {
+            return pool.invoke(new RecursiveTask<List<R>>() {
+                @Override
+                protected List<R> compute() {
+                    List<Archivo<R>> tareas = new ArrayList<>();
+                    for (int i = 0; i < archivos.size(); i++) {
+                        long limite = limites == null ? Long.MAX_VALUE : limites[i];
+                        FileChannel canal = i == archivos.size() - 1 ? abierto : null;
+                        tareas.add(new Archivo<>(formato, archivos.get(i), limite, canal, nuevo, agregar, unir));
+                    }
+                    List<R> resultados = new ArrayList<>();
+                    for (Archivo<R> tarea : ForkJoinTask.invokeAll(tareas)) resultados.add(tarea.join());
+                    return resultados;
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static <R> R combinar(List<R> resultados, BinaryOperator<R> unir, Supplier<R> nuevo) {
+        R total = nuevo.get();
+        for (R r : resultados) total = unir.apply(total, r);
+        return total;
+    }
+
+    private static List<Transaccion> concatenar(List<Transaccion> a, List<Transaccion> b) {
+        a.addAll(b);
+        return a;
+    }
+
+    private static AgregadosVentas sumar(AgregadosVentas a, AgregadosVentas b) {
+        a.sumar(b);
+        return a;
+    }
+
+    /**
+     * Un archivo: corta en trozos (o lee secuencialmente si está comprimido) y combina. */
+    private static final class Archivo<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final BaseDatos.Formato formato;
+        private final Path ruta;
+        private final long limite;
+        private final FileChannel abierto;
+        private final Supplier<R> nuevo;
+        private final BiConsumer<R, Transaccion> agregar;
+        private final BinaryOperator<R> unir;
+
+        Archivo(BaseDatos.Formato formato, Path ruta, long limite, FileChannel abierto, Supplier<R> nuevo,
+                BiConsumer<R, Transaccion> agregar, BinaryOperator<R> unir) {
+            this.formato = formato;
+            this.ruta = ruta;
+            this.limite = limite;
+            this.abierto = abierto;
+            this.nuevo = nuevo;
+            this.agregar = agregar;
+            this.unir = unir;
+        }
+
+        @Override
+        protected R compute() {
+            try {
+                if (abierto != null) {
+                    return trozos(abierto);
+                }
+                if (Segmentos.comprimido(ruta) || !Files.exists(ruta)) {
+                    return secuencial();
+                }
+                try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+                    return trozos(canal);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(ruta + ": " + e.getMessage(), e);
+            }
+        }
+
+        private R trozos(FileChannel canal) throws IOException {
+            long[] cortes = cortar(canal);
+            return new Trozos<>(this, canal, cortes, 0, cortes.length - 1).compute();
+        }
+
+        /**
+         * Segmento en GZIP (o ya reemplazado por su versión comprimida): no se puede mapear ni cortar. */
+        private R secuencial() throws IOException {
+            R resultado = nuevo.get();
+            CursorTransacciones cursor = CursorTransacciones.sellado(formato, ruta, null, null, null);
+            if (cursor == null) return resultado;
+            try (CursorTransacciones c = cursor) {
+                while (c.hasNext()) agregar.accept(resultado, c.next());
+            }
+            return resultado;
+        }
+
+        /**
+         * Límites de los trozos: cortes[i] es el inicio del trozo i y el último elemento el fin de los datos. */
+        private long[] cortar(FileChannel canal) throws IOException {
+            long fin = Math.min(limite, canal.size());
+            long inicio = 0;
+            if (formato == BaseDatos.Formato.BINARIO) {
+                RegistroBinario.validarCabecera(canal);
+                inicio = RegistroBinario.TAMANO_CABECERA;
+                fin = inicio + RegistroBinario.contarRegistros(fin) * RegistroBinario.TAMANO_REGISTRO;
+            }
+            long[] cortes = new long[(int) Math.max(1, (fin - inicio + TAMANO_TROZO - 1) / TAMANO_TROZO) + 1];
+            int n = 0;
+            cortes[n++] = inicio;
+            for (long pos = inicio + TAMANO_TROZO; pos < fin; pos += TAMANO_TROZO) {
+                long corte = formato == BaseDatos.Formato.BINARIO
+                        ? pos - (pos - inicio) % RegistroBinario.TAMANO_REGISTRO
+                        : despuesDeFinDeLinea(canal, pos, fin);
+                if (corte > cortes[n - 1] && corte < fin) cortes[n++] = corte;
+            }
+            cortes[n++] = Math.max(fin, inicio);
+            return Arrays.copyOf(cortes, n);
+        }
+
+        private static long despuesDeFinDeLinea(FileChannel canal, long pos, long fin) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(BUSQUEDA_FIN_LINEA);
+            while (pos < fin) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), fin - pos));
+                int leidos = canal.read(buffer, pos);
+                if (leidos <= 0) break;
+                for (int i = 0; i < leidos; i++) {
+                    if (buffer.get(i) == '\n') return pos + i + 1;
+                }
+                pos += leidos;
+            }
+            return fin;
+        }
+
+        /**
+         * Procesa un trozo mapeado: en binario decodifica sobre el mapeo, en CSV copia el trozo a un arreglo y
+         * separa las líneas con un LectorCSV propio del trozo. */
+        R procesar(FileChannel canal, long desde, long hasta) throws IOException {
+            R resultado = nuevo.get();
+            if (hasta <= desde) return resultado;
+            MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, desde, hasta - desde);
+            if (formato == BaseDatos.Formato.BINARIO) {
+                for (int pos = 0; pos + RegistroBinario.TAMANO_REGISTRO <= mapa.limit();
+                     pos += RegistroBinario.TAMANO_REGISTRO) {
+                    agregar.accept(resultado, RegistroBinario.decodificar(mapa, pos));
+                }
+                return resultado;
+            }
+            byte[] datos = new byte[mapa.limit()];
+            mapa.get(datos);
+            LectorCSV lector = new LectorCSV();
+            int inicioLinea = 0;
+            for (int i = 0; i < datos.length; i++) {
+                if (datos[i] != '\n') continue;
+                lector.separar(datos, inicioLinea, i);
+                Transaccion t = lector.esTransaccion() ? lector.transaccion() : null;
+                if (t != null) agregar.accept(resultado, t);
+                inicioLinea = i + 1;
+            }
+            return resultado;
+        }
+    }
+
+    /**
+     * Rango de trozos [desde, hasta) de un archivo: divide a la mitad hasta llegar a un trozo. */
+    private static final class Trozos<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final Archivo<R> archivo;
+        private final FileChannel canal;
+        private final long[] cortes;
+        private final int desde;
+        private final int hasta;
+
+        Trozos(Archivo<R> archivo, FileChannel canal, long[] cortes, int desde, int hasta) {
+            this.archivo = archivo;
+            this.canal = canal;
+            this.cortes = cortes;
+            this.desde = desde;
+            this.hasta = hasta;
+        }
+
+        @Override
+        protected R compute() {
+            if (hasta - desde <= 1) {
+                try {
+                    return hasta > desde ? archivo.procesar(canal, cortes[desde], cortes[hasta])
+                            : archivo.nuevo.get();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int medio = (desde + hasta) >>> 1;
+            Trozos<R> izquierda = new Trozos<>(archivo, canal, cortes, desde, medio);
+            izquierda.fork();
+            R derecha = new Trozos<>(archivo, canal, cortes, medio, hasta).compute();
+            return archivo.unir.apply(izquierda.join(), derecha);
+        }
+    }
+}
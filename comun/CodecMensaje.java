@@ -0,0 +1,557 @@
+package comun;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/***********************************************************************************************************************
+ * Codificación binaria de un Mensaje para ConexionMensajes (una trama, sin el largo que la precede).
+ * Trama: tipo (byte; con el bit alto, seguido de la correlación en varint), idOrigen, idDestino, timestamp
+ * (varint), la carga (byte con su clase y sus campos, ver
+ * CargaMensaje), cantidad de datos sueltos (varint) y cada dato como clave y valor etiquetado. Los enteros van como
+ * varint zigzag, los double en 8 bytes y las transacciones campo a campo en su forma compacta (ver Transaccion); al
+ * leer, la carga se arma directo desde los bytes de la trama, sin mapas ni números en caja. Los textos (claves e
+ * ids) se escriben una sola vez por trama y después por su número; las claves de CLAVES ya vienen numeradas. Un dato
+ * de otro tipo viaja con serialización Java dentro de la trama. No es thread-safe: cada conexión usa el suyo para
+ * enviar y otro para recibir. */
+/**********************************************************************************************************************/
+final class CodecMensaje {
+    // claves frecuentes, numeradas de antemano en ambos extremos: solo agregar al final
+    private static final String[] CLAVES = {
+            "precios", "mensaje", "transacciones", "transaccion", "cantidad", "pagina", "ultimaPagina",
+            "totalTransacciones", "totalVentas", "totalLitros", "totalCargas", "enOperacion", "accion"
+    };
+
+    private static final byte NULO = 0;
+    private static final byte ENTERO = 1;
+    private static final byte LARGO = 2;
+    private static final byte DOBLE = 3;
+    private static final byte VERDADERO = 4;
+    private static final byte FALSO = 5;
+    private static final byte TEXTO = 6;
+    private static final byte TRANSACCION = 7;
+    private static final byte LISTA = 8;
+    private static final byte MAPA = 9; // claves String
+    private static final byte SERIALIZADO = 10;
+
+    // clase de la carga
+    private static final byte SIN_CARGA = 0;
+    private static final byte PRECIOS = 1; // tabla completa, solo se lee (tramas de nodos anteriores)
+    private static final byte REGISTRO = 2;
+    private static final byte LOTE = 3;
+    private static final byte REPORTE = 4;
+    private static final byte ACK = 5;
+    private static final byte ESTADO = 6;
+    private static final byte SALUDO = 7;
+    private static final byte LOTE_REGISTRO = 8;
+    private static final byte ACK_ACUMULADO = 9;
+    private static final byte PRECIOS_VERSION = 10; // sin linaje, solo se lee
+    private static final byte CONSULTA_PRECIOS = 11; // sin linaje, solo se lee
+    private static final byte CONFIRMACION_PRECIOS = 12;
+    private static final byte PRECIOS_LINAJE = 13; // PRECIOS_VERSION con el linaje delante
+    private static final byte CONSULTA_LINAJE = 14; // CONSULTA_PRECIOS con el linaje delante
+
+    private static final int CON_CORRELACION = 0x80; // bit alto del byte de tipo
+    private static final Mensaje.Tipo[] TIPOS = Mensaje.Tipo.values();
+    private static final TipoCombustible[] COMBUSTIBLES = TipoCombustible.values();
+
+    // escritura
+    private byte[] buffer = new byte[512];
+    private int largo;
+    private final Map<String, Integer> textosEscritos = new HashMap<>();
+
+    // lectura
+    private byte[] trama;
+    private int pos;
+    private int fin;
+    private final List<String> textosLeidos = new ArrayList<>();
+
+    /**
+     * Codifica el mensaje; el resultado queda en getBuffer()[0, getLargo()) hasta el próximo codificar(). */
+    void codificar(Mensaje mensaje) throws IOException {
+        largo = 0;
+        escribirCabecera(mensaje.getTipo(), mensaje.getCorrelacion());
+        escribirCuerpo(mensaje);
+    }
+
+    /**
+     * Solo el comienzo de la trama, tipo y correlación, en getBuffer()[0, getLargo()): lo que va delante de
+     * codificarCuerpo() en cada conexión (ver MensajeDifundido). */
+    void codificarCabecera(Mensaje.Tipo tipo, long correlacion) {
+        largo = 0;
+        escribirCabecera(tipo, correlacion);
+    }
+
+    /**
+     * El resto de la trama, en un arreglo propio: igual para todas las conexiones, sea cual sea la correlación. */
+    byte[] codificarCuerpo(Mensaje mensaje) throws IOException {
+        largo = 0;
+        escribirCuerpo(mensaje);
+        return Arrays.copyOf(buffer, largo);
+    }
+
+    private void escribirCabecera(Mensaje.Tipo tipo, long correlacion) {
+        if (correlacion != 0) {
+            escribirByte(tipo.ordinal() | CON_CORRELACION);
+            escribirVarLong(correlacion);
+        } else {
+            escribirByte(tipo.ordinal());
+        }
+    }
+
+    // los textos se numeran desde acá: el cuerpo no depende de la cabecera
+    private void escribirCuerpo(Mensaje mensaje) throws IOException {
+        textosEscritos.clear();
+        for (int i = 0; i < CLAVES.length; i++) textosEscritos.put(CLAVES[i], i);
+        escribirTexto(mensaje.getIdOrigen());
+        escribirTexto(mensaje.getIdDestino());
+        escribirVarLong(mensaje.getTimestamp());
+        escribirCarga(mensaje.getCarga());
+        Map<String, Object> datos = mensaje.getDatos();
+        escribirVarLong(datos.size());
+        for (Map.Entry<String, Object> e : datos.entrySet()) {
+            escribirTexto(e.getKey());
+            escribirValor(e.getValue());
+        }
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int getLargo() {
+        return largo;
+    }
+
+    /**
+     * Decodifica una trama completa. */
+    Mensaje decodificar(byte[] datos, int inicio, int fin) throws IOException {
+        this.trama = datos;
+        this.pos = inicio;
+        this.fin = fin;
+        textosLeidos.clear();
+        textosLeidos.addAll(Arrays.asList(CLAVES));
+        try {
+            int cabecera = leerByte();
+            int tipo = cabecera & ~CON_CORRELACION;
+            if (tipo >= TIPOS.length) throw new IOException("tipo de mensaje desconocido: " + tipo);
+            long correlacion = (cabecera & CON_CORRELACION) != 0 ? leerVarLong() : 0;
+            String idOrigen = leerTexto();
+            String idDestino = leerTexto();
+            long timestamp = leerVarLong();
+            Mensaje mensaje = new Mensaje(TIPOS[tipo], idOrigen, idDestino, timestamp, leerCarga());
+            mensaje.setCorrelacion(correlacion);
+            for (long i = leerVarLong(); i > 0; i--) {
+                String clave = leerTexto();
+                mensaje.agregarDato(clave, leerValor());
+            }
+            if (pos != fin) throw new IOException("trama con " + (fin - pos) + " bytes de más");
+            return mensaje;
+        } finally {
+            trama = null;
+        }
+    }
+
+    private void escribirCarga(CargaMensaje carga) {
+        if (carga == null) {
+            escribirByte(SIN_CARGA);
+        } else if (carga instanceof CargaMensaje.Precios) {
+            // linaje, versión, base (zigzag, COMPLETA = -1), máscara de los tipos informados y solo esos precios
+            CargaMensaje.Precios precios = (CargaMensaje.Precios) carga;
+            escribirByte(PRECIOS_LINAJE);
+            escribirFijo(precios.getLinaje());
+            escribirVarLong(precios.getVersion());
+            escribirZigZag(precios.getVersionBase());
+            double[] valores = precios.arreglo();
+            long mascara = 0;
+            for (int i = 0; i < valores.length; i++) {
+                if (!Double.isNaN(valores[i])) mascara |= 1L << i;
+            }
+            escribirVarLong(mascara);
+            for (double valor : valores) {
+                if (!Double.isNaN(valor)) escribirFijo(Double.doubleToLongBits(valor));
+            }
+        } else if (carga instanceof CargaMensaje.ConsultaPrecios) {
+            CargaMensaje.ConsultaPrecios consulta = (CargaMensaje.ConsultaPrecios) carga;
+            escribirByte(CONSULTA_LINAJE);
+            escribirFijo(consulta.getLinaje());
+            escribirVarLong(consulta.getVersion());
+        } else if (carga instanceof CargaMensaje.ConfirmacionPrecios) {
+            CargaMensaje.ConfirmacionPrecios confirmacion = (CargaMensaje.ConfirmacionPrecios) carga;
+            escribirByte(CONFIRMACION_PRECIOS);
+            escribirTexto(confirmacion.getIdNodo());
+            escribirVarLong(confirmacion.getVersion());
+            escribirVarLong(confirmacion.getSurtidores());
+        } else if (carga instanceof CargaMensaje.Registro) {
+            escribirByte(REGISTRO);
+            escribirTransaccion(((CargaMensaje.Registro) carga).getTransaccion());
+        } else if (carga instanceof CargaMensaje.Reporte) {
+            CargaMensaje.Reporte reporte = (CargaMensaje.Reporte) carga;
+            escribirByte(REPORTE);
+            escribirVarLong(reporte.getPagina());
+            escribirByte((reporte.isUltima() ? 1 : 0) | (reporte.isConTotales() ? 2 : 0));
+            if (reporte.isConTotales()) {
+                escribirVarLong(reporte.getTotalTransacciones());
+                escribirZigZag(reporte.getTotalVentasMilesimas());
+                escribirZigZag(reporte.getTotalLitrosMilesimas());
+            }
+            escribirTransacciones(reporte);
+        } else if (carga instanceof CargaMensaje.LoteRegistro) {
+            escribirByte(LOTE_REGISTRO);
+            escribirVarLong(((CargaMensaje.LoteRegistro) carga).getPrimeraSecuencia());
+            escribirTransacciones((CargaMensaje.Lote) carga);
+        } else if (carga instanceof CargaMensaje.AckAcumulado) {
+            escribirByte(ACK_ACUMULADO);
+            escribirZigZag(((CargaMensaje.AckAcumulado) carga).getSecuencia());
+        } else if (carga instanceof CargaMensaje.Lote) {
+            escribirByte(LOTE);
+            escribirTransacciones((CargaMensaje.Lote) carga);
+        } else if (carga instanceof CargaMensaje.Ack) {
+            CargaMensaje.Ack ack = (CargaMensaje.Ack) carga;
+            escribirByte(ACK);
+            escribirTexto(ack.getTexto());
+            escribirZigZag(ack.getCantidad());
+        } else if (carga instanceof CargaMensaje.Estado) {
+            CargaMensaje.Estado estado = (CargaMensaje.Estado) carga;
+            escribirByte(ESTADO);
+            escribirByte(estado.isEnOperacion() ? 1 : 0);
+            escribirZigZag(estado.getTotalCargas());
+            escribirFijo(Double.doubleToLongBits(estado.getTotalLitros()));
+            escribirTexto(estado.getAccion());
+        } else if (carga instanceof CargaMensaje.Saludo) {
+            CargaMensaje.Saludo saludo = (CargaMensaje.Saludo) carga;
+            escribirByte(SALUDO);
+            escribirTexto(saludo.getIdNodo());
+            escribirVarLong(saludo.getVersion());
+            escribirVarLong(saludo.getCapacidades() & 0xFFFFFFFFL);
+        } else {
+            throw new IllegalArgumentException("carga sin codificación: " + carga.getClass().getName());
+        }
+    }
+
+    private CargaMensaje leerCarga() throws IOException {
+        int clase = leerByte();
+        switch (clase) {
+            case SIN_CARGA:
+                return null;
+            case PRECIOS: {
+                long version = leerVarLong();
+                int cantidad = leerCantidad();
+                double[] precios = new double[COMBUSTIBLES.length];
+                Arrays.fill(precios, Double.NaN);
+                for (int i = 0; i < cantidad; i++) {
+                    double precio = Double.longBitsToDouble(leerFijo());
+                    if (i < precios.length) precios[i] = precio; // tipos que este nodo no conoce: se ignoran
+                }
+                return new CargaMensaje.Precios(precios, version);
+            }
+            case PRECIOS_VERSION:
+            case PRECIOS_LINAJE: {
+                long linaje = clase == PRECIOS_LINAJE ? leerFijo() : 0;
+                long version = leerVarLong();
+                long base = leerZigZag();
+                long mascara = leerVarLong();
+                double[] precios = new double[COMBUSTIBLES.length];
+                Arrays.fill(precios, Double.NaN);
+                for (int i = 0; mascara >>> i != 0; i++) {
+                    if ((mascara & (1L << i)) == 0) continue;
+                    double precio = Double.longBitsToDouble(leerFijo());
+                    if (i < precios.length) precios[i] = precio;
+                }
+                return new CargaMensaje.Precios(precios, version, base, linaje);
+            }
+            case CONSULTA_PRECIOS:
+                return new CargaMensaje.ConsultaPrecios(leerVarLong(), 0);
+            case CONSULTA_LINAJE: {
+                long linaje = leerFijo();
+                return new CargaMensaje.ConsultaPrecios(leerVarLong(), linaje);
+            }
+            case CONFIRMACION_PRECIOS: {
+                String idNodo = leerTexto();
+                long version = leerVarLong();
+                return new CargaMensaje.ConfirmacionPrecios(idNodo, version, (int) leerVarLong());
+            }
+            case REGISTRO:
+                return new CargaMensaje.Registro(leerTransaccion());
+            case LOTE:
+                return new CargaMensaje.Lote(leerTransacciones());
+            case REPORTE: {
+                int pagina = (int) leerVarLong();
+                int marcas = leerByte();
+                boolean conTotales = (marcas & 2) != 0;
+                long total = conTotales ? leerVarLong() : 0;
+                long ventas = conTotales ? leerZigZag() : 0;
+                long litros = conTotales ? leerZigZag() : 0;
+                return new CargaMensaje.Reporte(pagina, (marcas & 1) != 0, leerTransacciones(), conTotales, total,
+                        ventas, litros);
+            }
+            case ACK: {
+                String texto = leerTexto();
+                return new CargaMensaje.Ack(texto, (int) leerZigZag());
+            }
+            case ESTADO: {
+                boolean enOperacion = leerByte() != 0;
+                int cargas = (int) leerZigZag();
+                double litros = Double.longBitsToDouble(leerFijo());
+                return new CargaMensaje.Estado(enOperacion, cargas, litros, leerTexto());
+            }
+            case LOTE_REGISTRO: {
+                long primera = leerVarLong();
+                return new CargaMensaje.LoteRegistro(primera, leerTransacciones());
+            }
+            case ACK_ACUMULADO:
+                return new CargaMensaje.AckAcumulado(leerZigZag());
+            case SALUDO: {
+                String idNodo = leerTexto();
+                int version = (int) leerVarLong();
+                return new CargaMensaje.Saludo(idNodo, version, (int) leerVarLong());
+            }
+            default:
+                throw new IOException("carga desconocida: " + clase);
+        }
+    }
+
+    private void escribirTransacciones(CargaMensaje.Lote lote) {
+        escribirVarLong(lote.getCantidad());
+        for (int i = 0; i < lote.getCantidad(); i++) escribirTransaccion(lote.get(i));
+    }
+
+    private Transaccion[] leerTransacciones() throws IOException {
+        Transaccion[] transacciones = new Transaccion[leerCantidad()];
+        for (int i = 0; i < transacciones.length; i++) transacciones[i] = leerTransaccion();
+        return transacciones;
+    }
+
+    private void escribirValor(Object valor) throws IOException {
+        if (valor == null) {
+            escribirByte(NULO);
+        } else if (valor instanceof Integer) {
+            escribirByte(ENTERO);
+            escribirZigZag((Integer) valor);
+        } else if (valor instanceof Long) {
+            escribirByte(LARGO);
+            escribirZigZag((Long) valor);
+        } else if (valor instanceof Double) {
+            escribirByte(DOBLE);
+            escribirFijo(Double.doubleToLongBits((Double) valor));
+        } else if (valor instanceof Boolean) {
+            escribirByte((Boolean) valor ? VERDADERO : FALSO);
+        } else if (valor instanceof String) {
+            escribirByte(TEXTO);
+            escribirTexto((String) valor);
+        } else if (valor instanceof Transaccion) {
+            escribirByte(TRANSACCION);
+            escribirTransaccion((Transaccion) valor);
+        } else if (valor instanceof List) {
+            List<?> lista = (List<?>) valor;
+            escribirByte(LISTA);
+            escribirVarLong(lista.size());
+            for (Object elemento : lista) escribirValor(elemento);
+        } else if (valor instanceof Map && clavesTexto((Map<?, ?>) valor)) {
+            Map<?, ?> mapa = (Map<?, ?>) valor;
+            escribirByte(MAPA);
+            escribirVarLong(mapa.size());
+            for (Map.Entry<?, ?> e : mapa.entrySet()) {
+                escribirTexto((String) e.getKey());
+                escribirValor(e.getValue());
+            }
+        } else {
+            escribirByte(SERIALIZADO);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(valor);
+            }
+            escribirVarLong(bytes.size());
+            escribirBytes(bytes.toByteArray(), 0, bytes.size());
+        }
+    }
+
+    private static boolean clavesTexto(Map<?, ?> mapa) {
+        for (Object clave : mapa.keySet()) {
+            if (!(clave instanceof String)) return false;
+        }
+        return true;
+    }
+
+    private Object leerValor() throws IOException {
+        byte etiqueta = (byte) leerByte();
+        switch (etiqueta) {
+            case NULO:
+                return null;
+            case ENTERO:
+                return (int) leerZigZag();
+            case LARGO:
+                return leerZigZag();
+            case DOBLE:
+                return Double.longBitsToDouble(leerFijo());
+            case VERDADERO:
+                return Boolean.TRUE;
+            case FALSO:
+                return Boolean.FALSE;
+            case TEXTO:
+                return leerTexto();
+            case TRANSACCION:
+                return leerTransaccion();
+            case LISTA: {
+                int cantidad = leerCantidad();
+                List<Object> lista = new ArrayList<>(cantidad);
+                for (int i = 0; i < cantidad; i++) lista.add(leerValor());
+                return lista;
+            }
+            case MAPA: {
+                int cantidad = leerCantidad();
+                Map<String, Object> mapa = new HashMap<>();
+                for (int i = 0; i < cantidad; i++) mapa.put(leerTexto(), leerValor());
+                return mapa;
+            }
+            case SERIALIZADO: {
+                int cantidad = leerCantidad();
+                necesitar(cantidad);
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(trama, pos, cantidad))) {
+                    pos += cantidad;
+                    return in.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("clase desconocida en el mensaje: " + e.getMessage());
+                }
+            }
+            default:
+                throw new IOException("etiqueta de valor desconocida: " + etiqueta);
+        }
+    }
+
+    private void escribirTransaccion(Transaccion t) {
+        escribirFijo(t.getIdAlto());
+        escribirFijo(t.getIdBajo());
+        escribirTexto(t.getIdCliente());
+        escribirTexto(t.getIdDistribuidor());
+        escribirByte(t.getTipoCombustible().ordinal());
+        escribirZigZag(t.getLitrosMilesimas());
+        escribirZigZag(t.getPrecioMilesimas());
+        escribirZigZag(t.getMontoMilesimas());
+        escribirZigZag(t.getFechaMilis());
+    }
+
+    private Transaccion leerTransaccion() throws IOException {
+        long idAlto = leerFijo();
+        long idBajo = leerFijo();
+        int cliente = Identificadores.codigo(leerTexto());
+        int distribuidor = Identificadores.codigo(leerTexto());
+        int tipo = leerByte();
+        if (tipo >= COMBUSTIBLES.length) throw new IOException("tipo de combustible desconocido: " + tipo);
+        return Transaccion.reconstruir(idAlto, idBajo, cliente, distribuidor, COMBUSTIBLES[tipo], leerZigZag(),
+                leerZigZag(), leerZigZag(), leerZigZag());
+    }
+
+    /**
+     * Texto por número si ya apareció en la trama (número + 1; 0 = null), o -(largo) + bytes UTF-8 la primera vez. */
+    private void escribirTexto(String texto) {
+        if (texto == null) {
+            escribirZigZag(0);
+            return;
+        }
+        Integer numero = textosEscritos.get(texto);
+        if (numero != null) {
+            escribirZigZag(numero + 1);
+            return;
+        }
+        textosEscritos.put(texto, textosEscritos.size());
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        escribirZigZag(-(bytes.length + 1));
+        escribirBytes(bytes, 0, bytes.length);
+    }
+
+    private String leerTexto() throws IOException {
+        long valor = leerZigZag();
+        if (valor == 0) return null;
+        if (valor > 0) {
+            if (valor > textosLeidos.size()) throw new IOException("referencia a texto inválida: " + valor);
+            return textosLeidos.get((int) valor - 1);
+        }
+        long cantidad = -valor - 1;
+        if (cantidad > fin - pos) throw new IOException("texto fuera de la trama");
+        String texto = new String(trama, pos, (int) cantidad, StandardCharsets.UTF_8);
+        pos += (int) cantidad;
+        textosLeidos.add(texto);
+        return texto;
+    }
+
+    private void escribirZigZag(long valor) {
+        escribirVarLong((valor << 1) ^ (valor >> 63));
+    }
+
+    private long leerZigZag() throws IOException {
+        long valor = leerVarLong();
+        return (valor >>> 1) ^ -(valor & 1);
+    }
+
+    private void escribirVarLong(long valor) {
+        asegurar(10);
+        while ((valor & ~0x7FL) != 0) {
+            buffer[largo++] = (byte) ((valor & 0x7F) | 0x80);
+            valor >>>= 7;
+        }
+        buffer[largo++] = (byte) valor;
+    }
+
+    private long leerVarLong() throws IOException {
+        long valor = 0;
+        for (int desplazamiento = 0; desplazamiento < 64; desplazamiento += 7) {
+            int b = leerByte();
+            valor |= (long) (b & 0x7F) << desplazamiento;
+            if ((b & 0x80) == 0) return valor;
+        }
+        throw new IOException("varint demasiado largo");
+    }
+
+    private int leerCantidad() throws IOException {
+        long cantidad = leerVarLong();
+        if (cantidad > fin - pos) throw new IOException("cantidad fuera de la trama: " + cantidad);
+        return (int) cantidad;
+    }
+
+    private void escribirFijo(long valor) {
+        asegurar(8);
+        for (int i = 56; i >= 0; i -= 8) buffer[largo++] = (byte) (valor >>> i);
+    }
+
+    private long leerFijo() throws IOException {
+        necesitar(8);
+        long valor = 0;
+        for (int i = 0; i < 8; i++) valor = (valor << 8) | (trama[pos++] & 0xFF);
+        return valor;
+    }
+
+    private void escribirByte(int valor) {
+        asegurar(1);
+        buffer[largo++] = (byte) valor;
+    }
+
+    private int leerByte() throws IOException {
+        necesitar(1);
+        return trama[pos++] & 0xFF;
+    }
+
+    private void escribirBytes(byte[] bytes, int desde, int cantidad) {
+        asegurar(cantidad);
+        System.arraycopy(bytes, desde, buffer, largo, cantidad);
+        largo += cantidad;
+    }
+
+    private void asegurar(int cantidad) {
+        if (largo + cantidad > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, largo + cantidad));
+        }
+    }
+
+    private void necesitar(int cantidad) throws IOException {
+        if (cantidad > fin - pos) throw new IOException("trama incompleta");
+    }
+}
@@ -0,0 +1,428 @@
+package comun;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***********************************************************************************************************************
+ * Conexión por la que dos nodos intercambian Mensajes (Cliente - Distribuidor - Administracion).
+ * En formato BINARIO cada mensaje viaja como una trama con su largo (varint) delante, codificada con CodecMensaje: sin
+ * descriptores de clase ni tabla de objetos que crezca con la conexión. SERIALIZADO es el modo anterior
+ * (ObjectOutputStream, con reset() tras cada mensaje) y queda para hablar con nodos que no conocen las tramas.
+ * Toda conexión empieza en SERIALIZADO, que entiende cualquier nodo (la aceptada responde en el formato en que le
+ * hablan). Si el saludo acordó Protocolo.CODEC_BINARIO, cada lado con BINARIO configurado pasa a tramas
+ * (usarFormatoAcordado): escribe la MAGIA a continuación de lo serializado y el otro lado la reconoce al leer.
+ * Lleva también lo acordado en el saludo (ver Protocolo): versión, capacidades e id del otro nodo. A un nodo sin saludo
+ * (acordarLegado) los mensajes le salen como Mensaje.comoLegado, con los datos en el mapa que él lee.
+ * solicitar() envía una solicitud con correlación y devuelve el futuro de su respuesta; con PIPELINING acordado puede
+ * haber hasta VENTANA solicitudes en vuelo por conexión, en lugar de esperar cada respuesta.
+ * Un MensajeDifundido (el mismo mensaje a varias conexiones) se codifica una vez y cada conexión escribe esos bytes.
+ * enviar() y solicitar() son thread-safe; recibir() se llama desde un único hilo lector. */
+/**********************************************************************************************************************/
+public final class ConexionMensajes implements Closeable {
+    private static final int MAGIA = 0x4D534A32; // "MSJ2" (tramas con CargaMensaje), primeros bytes en BINARIO
+    private static final int MAGIA_SERIALIZACION = 0xACED; // STREAM_MAGIC de ObjectOutputStream
+    private static final int TC_RESET = 0x79; // lo escribe ObjectOutputStream.reset() tras cada mensaje
+    private static final int MAX_TRAMA = 64 * 1024 * 1024;
+    public static final int VENTANA = 32; // solicitudes en vuelo por conexión
+    private static final long ESPERA_VENTANA_MS = 30_000;
+
+    /**
+     * Formato de envío preferido. El de la propiedad del sistema PROPIEDAD si no se indica otro (p. ej.
+     * -Dmensajes.formato=SERIALIZADO para no pasar a tramas aunque el otro lado las acepte). */
+    public enum Formato {
+        BINARIO,
+        SERIALIZADO;
+
+        public static final String PROPIEDAD = "mensajes.formato";
+
+        /**
+         * Formato configurado en PROPIEDAD; BINARIO si no está definida o no es válida. */
+        public static Formato configurado() {
+            String valor = System.getProperty(PROPIEDAD);
+            if (valor == null) return BINARIO;
+            try {
+                return valueOf(valor.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Formato de mensajes desconocido '" + valor + "', se usa BINARIO");
+                return BINARIO;
+            }
+        }
+    }
+
+    private final Socket socket;
+    private final Object lockEnvio = new Object();
+
+    // envío (lockEnvio); formato null hasta abrir la salida
+    private final Formato preferido;
+    private volatile Formato formato;
+    private OutputStream salidaSocket;
+    private DataOutputStream salida;
+    private ObjectOutputStream salidaObjetos; // solo SERIALIZADO
+    private final CodecMensaje codificador = new CodecMensaje();
+
+    // recepción (hilo lector)
+    private final BufferedInputStream entrada;
+    private volatile Formato formatoRemoto; // null hasta leer el primer mensaje
+    private boolean tramasAnunciadas; // el otro lado saludó con CODEC_BINARIO: puede pasar a tramas
+    private DataInputStream entradaTramas;
+    private ObjectInputStream entradaObjetos;
+    private final CodecMensaje decodificador = new CodecMensaje();
+    private byte[] trama = new byte[512];
+
+    // solicitudes en vuelo, por correlación
+    private final Semaphore ventana = new Semaphore(VENTANA);
+    private final Map<Long, CompletableFuture<Mensaje>> enVuelo = new ConcurrentHashMap<>();
+    private final AtomicLong ultimaCorrelacion = new AtomicLong();
+    private volatile IOException cierre; // causa con la que fallan las solicitudes una vez cerrada
+
+    // acordado en el saludo
+    private volatile String idRemoto;
+    private volatile int versionAcordada = Protocolo.VERSION_LEGADO;
+    private volatile int capacidades;
+    private volatile boolean legado; // el otro nodo es anterior a Protocolo
+
+    //CONSTRUCTOR
+    /**
+     * Conexión de quien conecta: empieza en SERIALIZADO y pasa al formato configurado si el saludo lo permite. */
+    public ConexionMensajes(Socket socket) throws IOException {
+        this(socket, Formato.SERIALIZADO, Formato.configurado());
+    }
+
+    /**
+     * Conexión en un formato fijo, para cuando ya se sabe qué entiende el otro lado. Escribe de inmediato la cabecera
+     * del formato (como lo hacía ObjectOutputStream), así el otro lado puede reconocerlo aunque todavía no haya
+     * mensajes. */
+    public ConexionMensajes(Socket socket, Formato formato) throws IOException {
+        this(socket, formato, formato);
+    }
+
+    private ConexionMensajes(Socket socket, Formato inicial, Formato preferido) throws IOException {
+        this.socket = socket;
+        this.entrada = new BufferedInputStream(socket.getInputStream());
+        this.preferido = preferido;
+        if (inicial != null) {
+            abrirSalida(inicial);
+        }
+    }
+
+    /**
+     * Conexión del lado que acepta: no escribe nada hasta reconocer el formato del primer mensaje recibido y usa ese
+     * mismo para enviar, así un nodo anterior a las tramas recibe las respuestas en el formato que entiende. Si hay que
+     * enviar antes de recibir, se usa SERIALIZADO. Pasa al formato configurado como quien conecta. */
+    public static ConexionMensajes aceptada(Socket socket) throws IOException {
+        return new ConexionMensajes(socket, null, Formato.configurado());
+    }
+
+    private void abrirSalida(Formato formato) throws IOException {
+        salidaSocket = new BufferedOutputStream(socket.getOutputStream());
+        if (formato == Formato.SERIALIZADO) {
+            salidaObjetos = new ObjectOutputStream(salidaSocket);
+            salidaObjetos.flush();
+            this.formato = formato;
+        } else {
+            pasarATramas();
+        }
+    }
+
+    // lo serializado ya se vació en salidaSocket: la MAGIA y las tramas van a continuación
+    private void pasarATramas() throws IOException {
+        salida = new DataOutputStream(salidaSocket);
+        salida.writeInt(MAGIA);
+        salida.flush();
+        salidaObjetos = null;
+        formato = Formato.BINARIO;
+    }
+
+    /**
+     * Pasa el envío a tramas si la conexión acordó Protocolo.CODEC_BINARIO y el formato preferido es BINARIO; si no,
+     * no cambia nada. Quien acepta la llama después de responder el saludo y quien conecta al recibir la respuesta. */
+    public void usarFormatoAcordado() throws IOException {
+        if (preferido != Formato.BINARIO || !soporta(Protocolo.CODEC_BINARIO)) return;
+        synchronized (lockEnvio) {
+            if (formato == null) {
+                abrirSalida(Formato.BINARIO);
+            } else if (formato == Formato.SERIALIZADO) {
+                pasarATramas();
+            }
+        }
+    }
+
+    public void enviar(Mensaje mensaje) throws IOException {
+        synchronized (lockEnvio) {
+            if (formato == null) {
+                abrirSalida(Formato.SERIALIZADO);
+            }
+            if (formato == Formato.SERIALIZADO) {
+                salidaObjetos.writeObject(legado ? mensaje.comoLegado() : mensaje);
+                // no retener en el stream los mensajes ya enviados
+                salidaObjetos.reset();
+                salidaObjetos.flush();
+                return;
+            }
+            codificador.codificar(mensaje);
+            escribirVarInt(salida, codificador.getLargo());
+            salida.write(codificador.getBuffer(), 0, codificador.getLargo());
+            salida.flush();
+        }
+    }
+
+    /**
+     * Envía un mensaje que va igual a varias conexiones: en BINARIO escribe la cabecera propia y el cuerpo ya
+     * codificado, sin volver a codificarlo. */
+    public void enviar(MensajeDifundido difundido) throws IOException {
+        enviar(difundido, 0);
+    }
+
+    private void enviar(MensajeDifundido difundido, long correlacion) throws IOException {
+        synchronized (lockEnvio) {
+            if (formato == null) {
+                abrirSalida(Formato.SERIALIZADO);
+            }
+            if (formato == Formato.SERIALIZADO) {
+                Mensaje mensaje = difundido.getMensaje().conCorrelacion(correlacion);
+                salidaObjetos.writeObject(legado ? mensaje.comoLegado() : mensaje);
+                salidaObjetos.reset();
+                salidaObjetos.flush();
+                return;
+            }
+            byte[] cuerpo = difundido.cuerpo();
+            codificador.codificarCabecera(difundido.getMensaje().getTipo(), correlacion);
+            escribirVarInt(salida, codificador.getLargo() + cuerpo.length);
+            salida.write(codificador.getBuffer(), 0, codificador.getLargo());
+            salida.write(cuerpo);
+            salida.flush();
+        }
+    }
+
+    /**
+     * Envía una solicitud con una correlación nueva y devuelve el futuro de su respuesta (ACK, ERROR o
+     * CONFIRMACION_PRECIO con la misma correlación, ver Mensaje.responder), que recibir() completa en el hilo lector:
+     * lo que se encadene al futuro no debe bloquear. Si ya hay VENTANA en vuelo, espera a que llegue una respuesta.
+     * Sin PIPELINING acordado el otro nodo no devuelve la correlación: se envía como con enviar() y el futuro se
+     * completa con null, la respuesta llega por recibir() como antes.
+     * El futuro falla con IOException si la conexión se cierra antes de la respuesta. */
+    public CompletableFuture<Mensaje> solicitar(Mensaje solicitud) throws IOException {
+        return solicitar(solicitud, null);
+    }
+
+    /**
+     * solicitar() de un mensaje que va igual a varias conexiones: cada una le pone su correlación en la cabecera. */
+    public CompletableFuture<Mensaje> solicitar(MensajeDifundido solicitud) throws IOException {
+        return solicitar(solicitud.getMensaje(), solicitud);
+    }
+
+    private CompletableFuture<Mensaje> solicitar(Mensaje solicitud, MensajeDifundido difundido) throws IOException {
+        if (!soporta(Protocolo.PIPELINING)) {
+            if (difundido != null) enviar(difundido);
+            else enviar(solicitud);
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            if (!ventana.tryAcquire(ESPERA_VENTANA_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("sin respuesta de " + idRemoto + " a " + VENTANA + " solicitudes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("solicitud interrumpida");
+        }
+        long correlacion = ultimaCorrelacion.incrementAndGet();
+        CompletableFuture<Mensaje> respuesta = new CompletableFuture<>();
+        enVuelo.put(correlacion, respuesta);
+        try {
+            if (cierre != null) throw cierre;
+            if (difundido != null) {
+                enviar(difundido, correlacion);
+            } else {
+                solicitud.setCorrelacion(correlacion);
+                enviar(solicitud);
+            }
+        } catch (IOException e) {
+            if (enVuelo.remove(correlacion) != null) ventana.release();
+            throw e;
+        }
+        if (cierre != null) fallarEnVuelo(cierre); // carrera con un cierre mientras se enviaba
+        return respuesta;
+    }
+
+    /**
+     * Bloquea hasta el próximo mensaje. Las respuestas a solicitudes de solicitar() completan su futuro y no se
+     * devuelven acá.
+     * @throws EOFException si el otro lado cerró la conexión */
+    public Mensaje recibir() throws IOException {
+        try {
+            while (true) {
+                Mensaje mensaje = leerMensaje();
+                if (mensaje.getCorrelacion() != 0 && mensaje.esRespuesta()) {
+                    CompletableFuture<Mensaje> respuesta = enVuelo.remove(mensaje.getCorrelacion());
+                    if (respuesta != null) {
+                        ventana.release();
+                        respuesta.complete(mensaje);
+                        continue;
+                    }
+                }
+                return mensaje;
+            }
+        } catch (IOException e) {
+            cierre = e;
+            fallarEnVuelo(e);
+            throw e;
+        }
+    }
+
+    private void fallarEnVuelo(IOException causa) {
+        for (Long correlacion : enVuelo.keySet()) {
+            CompletableFuture<Mensaje> respuesta = enVuelo.remove(correlacion);
+            if (respuesta != null) {
+                ventana.release();
+                respuesta.completeExceptionally(causa);
+            }
+        }
+    }
+
+    private Mensaje leerMensaje() throws IOException {
+        if (formatoRemoto == null) {
+            reconocerFormato();
+        }
+        if (formatoRemoto == Formato.SERIALIZADO && !(tramasAnunciadas && siguenTramas())) {
+            Mensaje mensaje;
+            try {
+                mensaje = (Mensaje) entradaObjetos.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new IOException("mensaje serializado inválido: " + e.getMessage(), e);
+            }
+            CargaMensaje.Saludo saludo = CargaMensaje.Saludo.de(mensaje);
+            if (saludo != null && (saludo.getCapacidades() & Protocolo.CODEC_BINARIO) != 0) {
+                tramasAnunciadas = true;
+            }
+            return mensaje;
+        }
+        int largo = leerVarInt(entradaTramas);
+        if (largo < 0 || largo > MAX_TRAMA) throw new IOException("trama demasiado grande: " + largo + " bytes");
+        if (largo > trama.length) trama = new byte[Math.max(largo, trama.length * 2)];
+        entradaTramas.readFully(trama, 0, largo);
+        return decodificador.decodificar(trama, 0, largo);
+    }
+
+    /**
+     * true si lo que sigue son la MAGIA y tramas (el otro lado pasó a BINARIO): la consume y la lectura sigue en
+     * tramas. Si no, deja la entrada como estaba para el próximo readObject. */
+    private boolean siguenTramas() throws IOException {
+        entrada.mark(5);
+        int b = entrada.read();
+        if (b == TC_RESET) b = entrada.read();
+        int magia = b << 24 | entrada.read() << 16 | entrada.read() << 8 | entrada.read();
+        if (magia != MAGIA) {
+            entrada.reset();
+            return false;
+        }
+        entradaObjetos = null;
+        entradaTramas = new DataInputStream(entrada);
+        formatoRemoto = Formato.BINARIO;
+        return true;
+    }
+
+    private void reconocerFormato() throws IOException {
+        entrada.mark(4);
+        int b0 = entrada.read();
+        int b1 = entrada.read();
+        if ((b0 | b1) < 0) throw new EOFException("conexión cerrada antes del primer mensaje");
+        entrada.reset();
+        if ((b0 << 8 | b1) == MAGIA_SERIALIZACION) {
+            entradaObjetos = new ObjectInputStream(entrada);
+            formatoRemoto = Formato.SERIALIZADO;
+        } else {
+            entradaTramas = new DataInputStream(entrada);
+            if (entradaTramas.readInt() != MAGIA) throw new IOException("protocolo de mensajes desconocido");
+            formatoRemoto = Formato.BINARIO;
+        }
+        if (formato == null) {
+            synchronized (lockEnvio) {
+                if (formato == null) abrirSalida(formatoRemoto);
+            }
+        }
+    }
+
+    /**
+     * Registra el saludo del otro nodo: versión acordada la menor de ambas, capacidades las que tienen los dos.
+     * Devuelve la carga con lo acordado y el id de este nodo, que es la respuesta de quien acepta; quien conecta la
+     * recibe y la vuelve a pasar por acá, con el mismo resultado.
+     * @throws IOException si la versión del otro nodo ya no está soportada */
+    public CargaMensaje.Saludo acordar(String idLocal, CargaMensaje.Saludo remoto) throws IOException {
+        if (remoto.getVersion() < Protocolo.VERSION_MINIMA) {
+            throw new IOException("versión de protocolo " + remoto.getVersion() + " no soportada por " +
+                    remoto.getIdNodo());
+        }
+        idRemoto = remoto.getIdNodo();
+        versionAcordada = Math.min(Protocolo.VERSION, remoto.getVersion());
+        capacidades = Protocolo.CAPACIDADES_LOCALES & remoto.getCapacidades();
+        legado = false;
+        return new CargaMensaje.Saludo(idLocal, versionAcordada, capacidades);
+    }
+
+    /**
+     * Otro nodo sin saludo (anterior a Protocolo): se lo identifica por el idOrigen de su primer mensaje. */
+    public void acordarLegado(String idRemoto) {
+        this.idRemoto = idRemoto;
+        this.versionAcordada = Protocolo.VERSION_LEGADO;
+        this.capacidades = 0;
+        this.legado = true;
+    }
+
+    /**
+     * true si la conexión acordó la capacidad (bit de Protocolo). */
+    public boolean soporta(int capacidad) {
+        return (capacidades & capacidad) == capacidad;
+    }
+
+    private static void escribirVarInt(DataOutputStream out, int valor) throws IOException {
+        while ((valor & ~0x7F) != 0) {
+            out.write((valor & 0x7F) | 0x80);
+            valor >>>= 7;
+        }
+        out.write(valor);
+    }
+
+    private static int leerVarInt(InputStream in) throws IOException {
+        int valor = 0;
+        for (int desplazamiento = 0; desplazamiento < 32; desplazamiento += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException("conexión cerrada");
+            valor |= (b & 0x7F) << desplazamiento;
+            if ((b & 0x80) == 0) return valor;
+        }
+        throw new IOException("largo de trama inválido");
+    }
+
+    //GETTERS
+    public Formato getFormato() { return formato; }
+    public Formato getFormatoRemoto() { return formatoRemoto; }
+    public String getIdRemoto() { return idRemoto; }
+    public int getVersionAcordada() { return versionAcordada; }
+    public int getCapacidades() { return capacidades; }
+    public int getEnVuelo() { return enVuelo.size(); }
+
+    @Override
+    public void close() throws IOException {
+        IOException causa = new IOException("conexión cerrada");
+        cierre = causa;
+        fallarEnVuelo(causa);
+        socket.close();
+    }
+}
@@ -0,0 +1,456 @@
+package comun;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/***********************************************************************************************************************
+ * Cursor de lectura secuencial sobre una réplica de la BD local.
+ * Lee el archivo de a un registro (memoria constante) y solo hasta la longitud confirmada al abrirlo, de modo que no
+ * toma el lock de la BD ni ve lotes a medio escribir. El rango de fechas se evalúa antes de construir la transacción
+ * y el filtro antes de entregarla. Con segmentos sellados, recorre primero esos (descomprimiendo los que estén en
+ * GZIP) y termina en el archivo activo. Debe cerrarse (try-with-resources). */
+/**********************************************************************************************************************/
+public abstract class CursorTransacciones implements Iterator<Transaccion>, AutoCloseable {
+    private final LocalDateTime desde; // inclusive, null = sin límite
+    private final LocalDateTime hasta; // exclusivo, null = sin límite
+    private final Predicate<Transaccion> filtro;
+    private Transaccion siguiente;
+    private boolean agotado;
+
+    protected CursorTransacciones(LocalDateTime desde, LocalDateTime hasta, Predicate<Transaccion> filtro) {
+        this.desde = desde;
+        this.hasta = hasta;
+        this.filtro = filtro;
+    }
+
+    /**
+     * Abre un cursor CSV que lee hasta el byte 'limite' del archivo. */
+    static CursorTransacciones csv(String ruta, long limite, LocalDateTime desde, LocalDateTime hasta,
+                                   Predicate<Transaccion> filtro) throws IOException {
+        return new Csv(ruta, limite, desde, hasta, filtro);
+    }
+
+    /**
+     * Abre un cursor binario que mapea el archivo hasta el byte 'limite'. */
+    static CursorTransacciones binario(String ruta, long limite, LocalDateTime desde, LocalDateTime hasta,
+                                       Predicate<Transaccion> filtro) throws IOException {
+        return new Binario(ruta, limite, desde, hasta, filtro);
+    }
+
+    /**
+     * Abre un cursor sobre un segmento sellado, completo y posiblemente comprimido. null si ya no existe. */
+    static CursorTransacciones sellado(BaseDatos.Formato formato, Path segmento, LocalDateTime desde,
+                                       LocalDateTime hasta, Predicate<Transaccion> filtro) throws IOException {
+        InputStream entrada = Segmentos.abrir(segmento);
+        if (entrada == null) return null;
+        if (formato == BaseDatos.Formato.BINARIO) {
+            return new BinarioSecuencial(entrada, true, desde, hasta, filtro);
+        }
+        return new Csv(entrada, desde, hasta, filtro);
+    }
+
+    /**
+     * Abre un cursor que lee solo los rangos de bytes [inicio, fin) indicados (en orden) de un segmento, p. ej. los
+     * tramos que elige un IndiceSegmento. Los rangos deben empezar y terminar en un límite de registro. El flujo
+     * se abre ya, así que un segmento activo que rota después se sigue leyendo igual. null si ya no existe. */
+    static CursorTransacciones porRangos(BaseDatos.Formato formato, Path segmento, List<long[]> rangos,
+                                         LocalDateTime desde, LocalDateTime hasta, Predicate<Transaccion> filtro)
+            throws IOException {
+        InputStream entrada = Segmentos.abrir(segmento);
+        if (entrada == null) return null;
+        return new PorRangos(formato, entrada, rangos, desde, hasta, filtro);
+    }
+
+    /**
+     * Cursor sobre los primeros 'cantidad' elementos de un arreglo de transacciones en memoria (BaseDatosMemoria). */
+    static CursorTransacciones enMemoria(Transaccion[] registros, int cantidad, LocalDateTime desde,
+                                         LocalDateTime hasta, Predicate<Transaccion> filtro) {
+        return new Memoria(registros, cantidad, desde, hasta, filtro);
+    }
+
+    /**
+     * Parte de un cursor encadenado, que se abre recién al llegar a ella (null = ya no existe, se saltea). */
+    interface Apertura {
+        CursorTransacciones abrir() throws IOException;
+    }
+
+    /**
+     * Encadena los segmentos sellados (abiertos de a uno, a medida que se llega a cada uno) y termina con el
+     * cursor del archivo activo (o null), que el llamador abre sin filtro. Cada parte aplica el rango de fechas. */
+    static CursorTransacciones encadenado(List<Apertura> sellados, CursorTransacciones activo,
+                                          LocalDateTime desde, LocalDateTime hasta, Predicate<Transaccion> filtro) {
+        return new Encadenado(sellados, activo, desde, hasta, filtro);
+    }
+
+    /**
+     * Avanza al próximo registro que cae en el rango; null al final del archivo. */
+    protected abstract Transaccion leerSiguiente() throws IOException;
+
+    protected boolean enRango(LocalDateTime fecha) {
+        if (desde != null && fecha.isBefore(desde)) return false;
+        return hasta == null || fecha.isBefore(hasta);
+    }
+
+    /**
+     * Igual que enRango(LocalDateTime), con la fecha en milisegundos epoch (Transaccion.getFechaMilis()). */
+    protected boolean enRango(long milis) {
+        if (desde != null && milis < Transaccion.aMilis(desde)) return false;
+        return hasta == null || milis < Transaccion.aMilis(hasta);
+    }
+
+    protected boolean tieneRango() {
+        return desde != null || hasta != null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (siguiente == null && !agotado) {
+            Transaccion t;
+            try {
+                t = leerSiguiente();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (t == null) {
+                agotado = true;
+            } else if (filtro == null || filtro.test(t)) {
+                siguiente = t;
+            }
+        }
+        return siguiente != null;
+    }
+
+    @Override
+    public Transaccion next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Transaccion t = siguiente;
+        siguiente = null;
+        return t;
+    }
+
+    @Override
+    public abstract void close();
+
+    /**
+     * Vista del cursor como Stream secuencial; cerrar el stream cierra el cursor. */
+    public Stream<Transaccion> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::close);
+    }
+
+    /**
+     * Cursor sobre el formato CSV histórico. */
+    private static class Csv extends CursorTransacciones {
+        private final InputStream entrada;
+        private final LectorCSV lector;
+
+        Csv(String ruta, long limite, LocalDateTime desde, LocalDateTime hasta, Predicate<Transaccion> filtro)
+                throws IOException {
+            this(new LimitadoInputStream(Channels.newInputStream(
+                    FileChannel.open(Paths.get(ruta), StandardOpenOption.READ)), limite), desde, hasta, filtro);
+        }
+
+        Csv(InputStream entrada, LocalDateTime desde, LocalDateTime hasta, Predicate<Transaccion> filtro) {
+            super(desde, hasta, filtro);
+            this.entrada = entrada;
+            this.lector = new LectorCSV(entrada, Long.MAX_VALUE);
+        }
+
+        @Override
+        protected Transaccion leerSiguiente() throws IOException {
+            while (lector.avanzar()) {
+                if (!lector.esTransaccion()) {
+                    System.err.println("Error: Línea CSV con formato incorrecto (" + lector.largo() + " bytes)");
+                    continue;
+                }
+                if (tieneRango()) {
+                    LocalDateTime fecha = lector.fecha();
+                    if (fecha == null || !enRango(fecha)) continue;
+                }
+                Transaccion t = lector.transaccion();
+                if (t != null) return t;
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            try {
+                entrada.close();
+            } catch (IOException e) {
+                // Ignorar
+            }
+        }
+    }
+
+    /**
+     * Cursor sobre registros binarios de ancho fijo, mapeando el archivo por ventanas. */
+    private static class Binario extends CursorTransacciones {
+        private static final int REGISTROS_POR_VENTANA = 64 * 1024; // 6 MiB
+
+        private final FileChannel canal;
+        private final long total;
+        private long leidos;
+        private MappedByteBuffer ventana;
+        private int enVentana;
+        private int posEnVentana;
+
+        Binario(String ruta, long limite, LocalDateTime desde, LocalDateTime hasta, Predicate<Transaccion> filtro)
+                throws IOException {
+            super(desde, hasta, filtro);
+            this.canal = FileChannel.open(Paths.get(ruta), StandardOpenOption.READ);
+            try {
+                RegistroBinario.validarCabecera(canal);
+            } catch (IOException e) {
+                canal.close();
+                throw e;
+            }
+            this.total = RegistroBinario.contarRegistros(Math.min(limite, canal.size()));
+        }
+
+        @Override
+        protected Transaccion leerSiguiente() throws IOException {
+            while (true) {
+                if (posEnVentana == enVentana) {
+                    if (leidos == total) return null;
+                    enVentana = (int) Math.min(REGISTROS_POR_VENTANA, total - leidos);
+                    long inicio = RegistroBinario.TAMANO_CABECERA + leidos * RegistroBinario.TAMANO_REGISTRO;
+                    ventana = canal.map(FileChannel.MapMode.READ_ONLY, inicio,
+                            (long) enVentana * RegistroBinario.TAMANO_REGISTRO);
+                    leidos += enVentana;
+                    posEnVentana = 0;
+                }
+                int pos = posEnVentana++ * RegistroBinario.TAMANO_REGISTRO;
+                // el rango se evalúa sobre la fecha cruda, sin decodificar el registro completo
+                if (tieneRango() && !enRango(RegistroBinario.leerFecha(ventana, pos))) continue;
+                return RegistroBinario.decodificar(ventana, pos);
+            }
+        }
+
+        @Override
+        public void close() {
+            ventana = null;
+            try {
+                canal.close();
+            } catch (IOException e) {
+                // Ignorar
+            }
+        }
+    }
+
+    /**
+     * Cursor binario sobre un flujo (segmento comprimido), que no se puede mapear: lee de a bloques de
+     * registros completos. */
+    private static class BinarioSecuencial extends CursorTransacciones {
+        private static final int REGISTROS_POR_BLOQUE = 1024;
+
+        private final InputStream entrada;
+        private final byte[] bloque;
+        private final ByteBuffer vista;
+        private int enBloque;
+        private int posEnBloque;
+
+        BinarioSecuencial(InputStream entrada, boolean conCabecera, LocalDateTime desde, LocalDateTime hasta,
+                          Predicate<Transaccion> filtro) throws IOException {
+            super(desde, hasta, filtro);
+            this.entrada = entrada;
+            try {
+                if (conCabecera) {
+                    RegistroBinario.validarCabecera(
+                            ByteBuffer.wrap(entrada.readNBytes(RegistroBinario.TAMANO_CABECERA)));
+                }
+            } catch (IOException e) {
+                entrada.close();
+                throw e;
+            }
+            this.bloque = new byte[REGISTROS_POR_BLOQUE * RegistroBinario.TAMANO_REGISTRO];
+            this.vista = ByteBuffer.wrap(bloque);
+        }
+
+        @Override
+        protected Transaccion leerSiguiente() throws IOException {
+            while (true) {
+                if (posEnBloque == enBloque) {
+                    // un registro incompleto al final no se entrega
+                    enBloque = entrada.readNBytes(bloque, 0, bloque.length) / RegistroBinario.TAMANO_REGISTRO;
+                    posEnBloque = 0;
+                    if (enBloque == 0) return null;
+                }
+                int pos = posEnBloque++ * RegistroBinario.TAMANO_REGISTRO;
+                if (tieneRango() && !enRango(RegistroBinario.leerFecha(vista, pos))) continue;
+                return RegistroBinario.decodificar(vista, pos);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                entrada.close();
+            } catch (IOException e) {
+                // Ignorar
+            }
+        }
+    }
+
+    /**
+     * Recorre en orden los segmentos sellados y después el activo. */
+    /**
+     * Cursor sobre una instantánea de las transacciones de un motor en memoria. */
+    private static class Memoria extends CursorTransacciones {
+        private final Transaccion[] registros;
+        private final int cantidad;
+        private int pos;
+
+        Memoria(Transaccion[] registros, int cantidad, LocalDateTime desde, LocalDateTime hasta,
+                Predicate<Transaccion> filtro) {
+            super(desde, hasta, filtro);
+            this.registros = registros;
+            this.cantidad = cantidad;
+        }
+
+        @Override
+        protected Transaccion leerSiguiente() {
+            while (pos < cantidad) {
+                Transaccion t = registros[pos++];
+                if (!tieneRango() || enRango(t.getFechaMilis())) return t;
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class Encadenado extends CursorTransacciones {
+        private final Deque<Apertura> pendientes;
+        private final CursorTransacciones activo;
+        private CursorTransacciones actual;
+
+        Encadenado(List<Apertura> sellados, CursorTransacciones activo, LocalDateTime desde, LocalDateTime hasta,
+                   Predicate<Transaccion> filtro) {
+            super(desde, hasta, filtro);
+            this.pendientes = new ArrayDeque<>(sellados);
+            this.activo = activo;
+        }
+
+        @Override
+        protected Transaccion leerSiguiente() throws IOException {
+            while (true) {
+                if (actual == null) {
+                    Apertura siguiente = pendientes.poll();
+                    if (siguiente == null) {
+                        if (activo == null) return null;
+                        actual = activo;
+                    } else {
+                        // cada parte aplica el rango; el filtro lo aplica este cursor
+                        actual = siguiente.abrir();
+                        if (actual == null) continue; // borrado por la retención mientras se recorría
+                    }
+                }
+                if (actual.hasNext()) return actual.next();
+                if (actual == activo) return null;
+                actual.close();
+                actual = null;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (actual != null && actual != activo) actual.close();
+            if (activo != null) activo.close();
+        }
+    }
+
+    /**
+     * Lee solo algunos rangos de un segmento: avanza el flujo hasta cada rango (en un archivo sin comprimir es un
+     * seek; en GZIP se descomprime sin parsear) y parsea únicamente los registros del rango. */
+    private static class PorRangos extends CursorTransacciones {
+        private final BaseDatos.Formato formato;
+        private final InputStream entrada;
+        private final Deque<long[]> rangos;
+        private final LocalDateTime desde;
+        private final LocalDateTime hasta;
+        private long posicion;
+        private CursorTransacciones actual;
+
+        PorRangos(BaseDatos.Formato formato, InputStream entrada, List<long[]> rangos, LocalDateTime desde,
+                  LocalDateTime hasta, Predicate<Transaccion> filtro) {
+            super(desde, hasta, filtro);
+            this.formato = formato;
+            this.entrada = entrada;
+            this.rangos = new ArrayDeque<>(rangos);
+            this.desde = desde;
+            this.hasta = hasta;
+        }
+
+        @Override
+        protected Transaccion leerSiguiente() throws IOException {
+            while (actual == null || !actual.hasNext()) {
+                long[] rango = rangos.poll();
+                if (rango == null) return null;
+                entrada.skipNBytes(rango[0] - posicion);
+                byte[] bytes = entrada.readNBytes((int) (rango[1] - rango[0]));
+                posicion = rango[0] + bytes.length;
+                InputStream tramo = new ByteArrayInputStream(bytes);
+                actual = formato == BaseDatos.Formato.BINARIO
+                        ? new BinarioSecuencial(tramo, false, desde, hasta, null)
+                        : new Csv(tramo, desde, hasta, null);
+            }
+            return actual.next();
+        }
+
+        @Override
+        public void close() {
+            try {
+                entrada.close();
+            } catch (IOException e) {
+                // Ignorar
+            }
+        }
+    }
+
+    /**
+     * InputStream que deja de entregar datos al llegar a un límite de bytes. */
+    private static class LimitadoInputStream extends FilterInputStream {
+        private long restante;
+
+        LimitadoInputStream(InputStream in, long limite) {
+            super(in);
+            this.restante = limite;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (restante <= 0) return -1;
+            int b = super.read();
+            if (b >= 0) restante--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (restante <= 0) return -1;
+            int leidos = super.read(b, off, (int) Math.min(len, restante));
+            if (leidos > 0) restante -= leidos;
+            return leidos;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package comun;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***********************************************************************************************************************
+ * Ids de transacción ordenables por tiempo, uno por nodo (surtidor dentro de su distribuidor), sin locks.
+ * Cada id es un UUID versión 7 (mismos 128 bits y texto que antes, así que los formatos de la BD no cambian):
+ *   - alto: reloj lógico híbrido = milisegundos epoch (48 bits) y un contador (12 bits) que avanza dentro del mismo
+ *           milisegundo, o cuando el reloj retrocede, sin volver nunca atrás; más los 4 bits de versión.
+ *   - bajo: variante RFC 4122, número del nodo en este proceso (32 bits, asignado al crear su generador: dos nodos
+ *           del mismo proceso nunca lo comparten) y un sufijo al azar de este proceso (30 bits), que separa los ids de
+ *           otros procesos y de un reinicio de los anteriores aunque el reloj haya retrocedido.
+ * Los ids de un mismo nodo son estrictamente crecientes y los de distintos nodos quedan ordenados por milisegundo,
+ * así que los índices y la deduplicación reciben claves casi ordenadas. Solo la creación del sufijo usa
+ * SecureRandom, una vez por proceso. */
+/**********************************************************************************************************************/
+public final class GeneradorIds {
+    private static final int BITS_CONTADOR = 12;
+    private static final long VERSION = 0x7000L;
+    private static final long VARIANTE = 0x8000_0000_0000_0000L;
+    private static final long SUFIJO_PROCESO = new SecureRandom().nextInt() & 0x3FFF_FFFFL;
+    private static final ConcurrentHashMap<Long, GeneradorIds> POR_NODO = new ConcurrentHashMap<>();
+    private static final AtomicInteger NODOS = new AtomicInteger();
+
+    private final AtomicLong reloj = new AtomicLong(); // milisegundos << BITS_CONTADOR | contador
+    private final long bajo;
+
+    private GeneradorIds(int numeroNodo) {
+        this.bajo = VARIANTE | (numeroNodo & 0xFFFF_FFFFL) << 30 | SUFIJO_PROCESO;
+    }
+
+    /**
+     * Generador del surtidor 'idSurtidor' del distribuidor 'idDistribuidor' (uno por JVM y nodo). */
+    public static GeneradorIds para(String idSurtidor, String idDistribuidor) {
+        long clave = (long) Identificadores.codigo(idDistribuidor) << 32 | Identificadores.codigo(idSurtidor);
+        return POR_NODO.computeIfAbsent(clave, k -> new GeneradorIds(NODOS.getAndIncrement()));
+    }
+
+    /**
+     * Avanza el reloj y devuelve la mitad alta del próximo id; la baja es fija (getBajo()). */
+    public long siguienteAlto() {
+        long ahora = System.currentTimeMillis() << BITS_CONTADOR;
+        long anterior;
+        long siguiente;
+        do {
+            anterior = reloj.get();
+            siguiente = Math.max(ahora, anterior + 1);
+        } while (!reloj.compareAndSet(anterior, siguiente));
+        // 48 bits de milisegundos | versión | 12 bits de contador
+        return (siguiente >>> BITS_CONTADOR) << 16 | VERSION | (siguiente & ((1L << BITS_CONTADOR) - 1));
+    }
+
+    public long getBajo() {
+        return bajo;
+    }
+
+    /**
+     * Milisegundos epoch (del reloj lógico) en que se generó un id de este tipo. */
+    public static long milisDe(long idAlto) {
+        return idAlto >>> 16;
+    }
+}
@@ -0,0 +1,52 @@
+package comun;
+
+import java.util.function.UnaryOperator;
+
+/***********************************************************************************************************************
+ * Tabla de precios actual de un nodo y las últimas CAPACIDAD publicadas, para mandar a quien está en una versión
+ * anterior solo los precios que cambiaron desde ella (ver TablaPrecios.delta). Si esa versión ya no está (muy vieja,
+ * o nunca pasó por este nodo) se manda la tabla completa. actual() no toma locks. */
+/**********************************************************************************************************************/
+public final class HistorialPrecios {
+    public static final int CAPACIDAD = 64;
+
+    private final TablaPrecios[] tablas = new TablaPrecios[CAPACIDAD]; // por versión % CAPACIDAD
+    private volatile TablaPrecios actual;
+
+    //CONSTRUCTOR
+    public HistorialPrecios(TablaPrecios inicial) {
+        this.actual = inicial;
+        tablas[indice(inicial.getVersion())] = inicial;
+    }
+
+    /**
+     * Reemplaza la tabla actual por cambio(actual) y devuelve el delta entre ambas. */
+    public synchronized CargaMensaje.Precios actualizar(UnaryOperator<TablaPrecios> cambio) {
+        TablaPrecios anterior = actual;
+        TablaPrecios nueva = cambio.apply(anterior);
+        tablas[indice(nueva.getVersion())] = nueva;
+        actual = nueva;
+        return nueva.delta(anterior);
+    }
+
+    /**
+     * Lo que le falta a un nodo con la versión de 'consulta' para llegar a la actual: un delta si esa versión está en
+     * el historial, la tabla completa si no o si es de otro linaje, o null si ya está al día. */
+    public synchronized CargaMensaje.Precios desde(CargaMensaje.ConsultaPrecios consulta) {
+        if (consulta.getLinaje() != actual.getLinaje()) return new CargaMensaje.Precios(actual);
+        long version = consulta.getVersion();
+        if (version >= actual.getVersion()) return null;
+        TablaPrecios anterior = tablas[indice(version)];
+        if (anterior != null && anterior.getVersion() == version && anterior.getLinaje() == actual.getLinaje()) {
+            return actual.delta(anterior);
+        }
+        return new CargaMensaje.Precios(actual);
+    }
+
+    private static int indice(long version) {
+        return (int) Math.floorMod(version, (long) CAPACIDAD);
+    }
+
+    //GETTERS
+    public TablaPrecios actual() { return actual; }
+}
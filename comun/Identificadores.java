@@ -0,0 +1,38 @@
+package comun;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***********************************************************************************************************************
+ * Diccionario de ids de nodo (surtidores y distribuidores) para Transaccion.
+ * Hay pocos ids distintos y se repiten en millones de transacciones, así que cada una guarda un código int en lugar
+ * del String. Los códigos valen solo dentro de esta JVM: al persistir o serializar se escribe el texto. */
+/**********************************************************************************************************************/
+final class Identificadores {
+    private static final ConcurrentHashMap<String, Integer> CODIGOS = new ConcurrentHashMap<>();
+    private static volatile String[] textos = new String[64];
+    private static int cantidad;
+
+    private Identificadores() {
+    }
+
+    static int codigo(String id) {
+        Integer codigo = CODIGOS.get(id);
+        if (codigo != null) return codigo;
+        return CODIGOS.computeIfAbsent(id, Identificadores::registrar);
+    }
+
+    private static synchronized int registrar(String id) {
+        String[] actual = textos;
+        if (cantidad == actual.length) {
+            actual = Arrays.copyOf(actual, actual.length * 2);
+        }
+        actual[cantidad] = id;
+        textos = actual; // publica el texto antes de que el código sea visible en CODIGOS
+        return cantidad++;
+    }
+
+    static String texto(int codigo) {
+        return textos[codigo];
+    }
+}
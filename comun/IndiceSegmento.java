@@ -0,0 +1,315 @@
+package comun;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/***********************************************************************************************************************
+ * Índice disperso de un segmento del principal.
+ * El segmento se divide en tramos de REGISTROS_POR_TRAMO registros consecutivos; de cada tramo se guarda su rango de
+ * bytes, la fecha mínima y máxima y los surtidores (idCliente) que aparecen. En memoria se arma además la lista de
+ * tramos por surtidor. Una consulta por surtidor y/o ventana de tiempo lee solo los tramos que pueden contener
+ * resultados. Se persiste en "<segmento>.idx" (sin el ".gz": los rangos son del segmento descomprimido). */
+/**********************************************************************************************************************/
+final class IndiceSegmento {
+    static final int REGISTROS_POR_TRAMO = 256;
+    private static final int MAGIA = 0x49445831; // "IDX1"
+    private static final int MAX_RANGO = 1024 * 1024; // tramos contiguos se leen juntos hasta este tamaño
+
+    private final Path rutaIndice;
+    private final List<Tramo> tramos; // cerrados
+    private final Map<String, List<Integer>> tramosPorCliente;
+    private Tramo abierto;
+
+    private FileChannel canal; // solo abierto por el escritor
+    private int persistidos;
+    private long largoValido; // bytes del .idx que contienen tramos completos
+
+    /**
+     * Registros consecutivos del segmento: [inicio, fin) en bytes. Las fechas van en segundos epoch (UTC), como en
+     * RegistroBinario. */
+    private static final class Tramo {
+        final long inicio;
+        long fin;
+        int registros;
+        long minSegundo = Long.MAX_VALUE;
+        long maxSegundo = Long.MIN_VALUE;
+        final Set<String> clientes = new TreeSet<>();
+
+        Tramo(long inicio) {
+            this.inicio = inicio;
+            this.fin = inicio;
+        }
+
+        boolean cruza(long desde, long hasta) {
+            return registros > 0 && maxSegundo >= desde && minSegundo < hasta;
+        }
+    }
+
+    //CONSTRUCTOR
+    /**
+     * Carga el índice persistido del segmento, si existe. */
+    IndiceSegmento(Path segmento) {
+        this.rutaIndice = rutaIndice(segmento);
+        this.tramos = new ArrayList<>();
+        this.tramosPorCliente = new HashMap<>();
+        cargar();
+    }
+
+    static Path rutaIndice(Path segmento) {
+        String ruta = segmento.toString();
+        if (ruta.endsWith(Segmentos.EXTENSION_COMPRIMIDA)) {
+            ruta = ruta.substring(0, ruta.length() - Segmentos.EXTENSION_COMPRIMIDA.length());
+        }
+        return Paths.get(ruta + ".idx");
+    }
+
+    static boolean existe(Path segmento) {
+        return Files.exists(rutaIndice(segmento));
+    }
+
+    private void cargar() {
+        if (!Files.exists(rutaIndice)) return;
+        try {
+            byte[] contenido = Files.readAllBytes(rutaIndice);
+            ByteArrayInputStream bytes = new ByteArrayInputStream(contenido);
+            DataInputStream in = new DataInputStream(bytes);
+            if (contenido.length < 4 || in.readInt() != MAGIA) return;
+            largoValido = 4;
+            while (bytes.available() > 0) {
+                Tramo t;
+                try {
+                    t = new Tramo(in.readLong());
+                    t.fin = in.readLong();
+                    t.registros = in.readInt();
+                    t.minSegundo = in.readLong();
+                    t.maxSegundo = in.readLong();
+                    for (int n = in.readUnsignedShort(); n > 0; n--) {
+                        t.clientes.add(in.readUTF());
+                    }
+                } catch (EOFException e) {
+                    break; // tramo a medio escribir: se vuelve a indexar desde el último completo
+                }
+                agregarTramo(t);
+                largoValido = contenido.length - bytes.available();
+            }
+            persistidos = tramos.size();
+        } catch (IOException e) {
+            System.err.println("Índice inválido, se reconstruye: " + rutaIndice + " - " + e.getMessage());
+            tramos.clear();
+            tramosPorCliente.clear();
+            persistidos = 0;
+            largoValido = 0;
+        }
+    }
+
+    private void agregarTramo(Tramo t) {
+        int indice = tramos.size();
+        tramos.add(t);
+        for (String cliente : t.clientes) {
+            tramosPorCliente.computeIfAbsent(cliente, k -> new ArrayList<>()).add(indice);
+        }
+    }
+
+    /**
+     * Primer byte que el índice todavía no cubre, o -1 si está vacío. */
+    synchronized long cubiertoHasta() {
+        if (abierto != null) return abierto.fin;
+        return tramos.isEmpty() ? -1 : tramos.get(tramos.size() - 1).fin;
+    }
+
+    /**
+     * Descarta los tramos que pasan de 'longitud' (segmento truncado o reparado). */
+    synchronized void descartarDesde(long longitud) throws IOException {
+        if (cubiertoHasta() <= longitud) return;
+        boolean escribiendo = canal != null;
+        cerrar();
+        List<Tramo> validos = new ArrayList<>();
+        for (Tramo t : tramos) {
+            if (t.fin <= longitud) validos.add(t);
+        }
+        tramos.clear();
+        tramosPorCliente.clear();
+        validos.forEach(this::agregarTramo);
+        abierto = null;
+        persistidos = 0;
+        largoValido = 0; // se reescribe al abrir para escritura
+        if (escribiendo) {
+            abrirParaEscritura();
+        }
+    }
+
+    /**
+     * Registra un registro confirmado en la posición dada. */
+    synchronized void agregar(Transaccion t, long posicion, int largo) throws IOException {
+        if (abierto == null || abierto.fin != posicion) {
+            if (abierto != null) cerrarTramo();
+            abierto = new Tramo(posicion);
+        }
+        long segundo = Math.floorDiv(t.getFechaMilis(), 1000);
+        abierto.minSegundo = Math.min(abierto.minSegundo, segundo);
+        abierto.maxSegundo = Math.max(abierto.maxSegundo, segundo);
+        abierto.clientes.add(t.getIdCliente());
+        abierto.registros++;
+        abierto.fin = posicion + largo;
+        if (abierto.registros == REGISTROS_POR_TRAMO) {
+            cerrarTramo();
+        }
+    }
+
+    private void cerrarTramo() throws IOException {
+        agregarTramo(abierto);
+        abierto = null;
+        persistir();
+    }
+
+    /**
+     * Indexa los registros de un archivo sin comprimir desde donde termina el índice hasta 'limite'. Se usa al
+     * abrir la BD para la cola que quedó sin indexar (o todo el archivo, si no había índice). */
+    synchronized void indexar(BaseDatos.Formato formato, Path archivo, long limite) throws IOException {
+        long inicio = cubiertoHasta();
+        if (inicio < 0) inicio = formato == BaseDatos.Formato.BINARIO ? RegistroBinario.TAMANO_CABECERA : 0;
+        if (inicio >= limite || !Files.exists(archivo)) return;
+
+        try (FileChannel lectura = FileChannel.open(archivo, StandardOpenOption.READ)) {
+            limite = Math.min(limite, lectura.size());
+            InputStream entrada = new BufferedInputStream(Channels.newInputStream(
+                    lectura.position(inicio)), 64 * 1024);
+            long pos = inicio;
+            if (formato == BaseDatos.Formato.BINARIO) {
+                byte[] registro = new byte[RegistroBinario.TAMANO_REGISTRO];
+                ByteBuffer vista = ByteBuffer.wrap(registro);
+                while (pos + registro.length <= limite && entrada.readNBytes(registro, 0, registro.length) ==
+                        registro.length) {
+                    agregar(RegistroBinario.decodificar(vista, 0), pos, registro.length);
+                    pos += registro.length;
+                }
+            } else {
+                LectorCSV lector = new LectorCSV(entrada, limite - inicio);
+                while (lector.avanzar()) {
+                    Transaccion t = lector.esTransaccion() ? lector.transaccion() : null;
+                    if (t != null) {
+                        agregar(t, pos, lector.largo());
+                    }
+                    pos += lector.largo();
+                }
+            }
+        }
+    }
+
+    /**
+     * Rangos de bytes [inicio, fin) que pueden contener registros del surtidor (null = cualquiera) dentro de la
+     * ventana [desde, hasta) (null = sin límite), hasta el byte 'limite'. Tramos contiguos se unen. */
+    synchronized List<long[]> seleccionar(String idCliente, LocalDateTime desde, LocalDateTime hasta, long limite) {
+        long d = desde == null ? Long.MIN_VALUE : desde.toEpochSecond(ZoneOffset.UTC);
+        // los segundos se truncan: 'hasta' se redondea hacia arriba para no perder nanos dentro del último segundo
+        long h = hasta == null ? Long.MAX_VALUE : hasta.toEpochSecond(ZoneOffset.UTC) + (hasta.getNano() > 0 ? 1 : 0);
+
+        List<long[]> rangos = new ArrayList<>();
+        if (idCliente != null) {
+            List<Integer> candidatos = tramosPorCliente.get(idCliente);
+            if (candidatos != null) {
+                for (int i : candidatos) agregarRango(rangos, tramos.get(i), d, h, limite);
+            }
+        } else {
+            for (Tramo t : tramos) agregarRango(rangos, t, d, h, limite);
+        }
+        if (abierto != null && (idCliente == null || abierto.clientes.contains(idCliente))) {
+            agregarRango(rangos, abierto, d, h, limite);
+        }
+        return rangos;
+    }
+
+    private static void agregarRango(List<long[]> rangos, Tramo t, long desde, long hasta, long limite) {
+        if (!t.cruza(desde, hasta) || t.inicio >= limite) return;
+        long fin = Math.min(t.fin, limite);
+        if (!rangos.isEmpty()) {
+            long[] ultimo = rangos.get(rangos.size() - 1);
+            if (ultimo[1] == t.inicio && fin - ultimo[0] <= MAX_RANGO) {
+                ultimo[1] = fin;
+                return;
+            }
+        }
+        rangos.add(new long[]{t.inicio, fin});
+    }
+
+    synchronized int cantidadTramos() {
+        return tramos.size() + (abierto != null ? 1 : 0);
+    }
+
+    /**
+     * Abre el ".idx" para agregar y persiste los tramos pendientes. Lo llama solo el escritor del segmento
+     * activo, así las instancias de solo lectura nunca lo escriben. */
+    synchronized void abrirParaEscritura() throws IOException {
+        if (canal != null) return;
+        if (largoValido == 0 || !Files.exists(rutaIndice)) {
+            canal = FileChannel.open(rutaIndice, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer cabecera = ByteBuffer.allocate(4).putInt(MAGIA);
+            cabecera.flip();
+            while (cabecera.hasRemaining()) canal.write(cabecera);
+            persistidos = 0;
+        } else {
+            canal = FileChannel.open(rutaIndice, StandardOpenOption.WRITE);
+            canal.truncate(largoValido);
+            canal.position(largoValido);
+        }
+        persistir();
+    }
+
+    private void persistir() throws IOException {
+        if (canal == null || persistidos >= tramos.size()) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = persistidos; i < tramos.size(); i++) {
+            Tramo t = tramos.get(i);
+            out.writeLong(t.inicio);
+            out.writeLong(t.fin);
+            out.writeInt(t.registros);
+            out.writeLong(t.minSegundo);
+            out.writeLong(t.maxSegundo);
+            out.writeShort(t.clientes.size());
+            for (String cliente : t.clientes) out.writeUTF(cliente);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) canal.write(buffer);
+        persistidos = tramos.size();
+        largoValido = canal.position();
+    }
+
+    /**
+     * Cierra el tramo en curso y persiste todo: el segmento se va a sellar y no recibe más registros. */
+    synchronized void sellar() throws IOException {
+        if (abierto != null) {
+            agregarTramo(abierto);
+            abierto = null;
+        }
+        abrirParaEscritura();
+        persistir();
+        cerrar();
+    }
+
+    synchronized void cerrar() {
+        if (canal == null) return;
+        try {
+            canal.force(false);
+            canal.close();
+        } catch (IOException e) {
+            // Ignorar: el índice se reconstruye desde el segmento
+        }
+        canal = null;
+    }
+}
@@ -0,0 +1,332 @@
+package comun;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.UUID;
+
+/***********************************************************************************************************************
+ * Lector de las líneas CSV de la BD local en una sola pasada sobre un buffer de bytes reutilizable.
+ * No usa BufferedReader, split, valueOf ni parseDouble: separa los campos marcando posiciones, reconoce el
+ * TipoCombustible comparando bytes, convierte litros y montos con el camino exacto de Clinger (mantisa y potencia de
+ * 10 representables), arma la fecha campo a campo y el UUID dígito a dígito. Los códigos de los ids de surtidor y
+ * distribuidor, que se repiten, salen de un pequeño caché. Por línea solo se crean la Transaccion y su fecha; los
+ * casos raros (exponentes, fechas con otro formato) caen en los parsers de la JDK. El resultado conserva id, monto y
+ * fecha (Transaccion.reconstruir).
+ * No es thread-safe. */
+/**********************************************************************************************************************/
+final class LectorCSV {
+    private static final int TAMANO_BUFFER = 64 * 1024;
+    private static final int TAMANO_CACHE = 64; // potencia de 2
+    private static final byte[][] NOMBRES_TIPO = new byte[TipoCombustible.values().length][];
+    private static final double[] POTENCIAS_10 = new double[23];
+    private static final long MAX_MANTISA_EXACTA = 1L << 53;
+
+    static {
+        for (TipoCombustible tipo : TipoCombustible.values()) {
+            NOMBRES_TIPO[tipo.ordinal()] = tipo.name().getBytes(StandardCharsets.US_ASCII);
+        }
+        POTENCIAS_10[0] = 1;
+        for (int i = 1; i < POTENCIAS_10.length; i++) POTENCIAS_10[i] = POTENCIAS_10[i - 1] * 10;
+    }
+
+    private final InputStream entrada; // null si solo se usa con separar()
+    private long restante; // bytes que quedan por leer de la entrada
+    private byte[] buffer;
+    private int leidos; // bytes válidos en buffer
+    private int siguiente; // comienzo de la próxima línea
+
+    // línea actual
+    private byte[] datos;
+    private int inicio;
+    private int fin; // sin el '\n'
+    private int largo; // con el '\n'
+    private final int[] separadores = new int[RegistroCSV.CAMPOS_NUMERADO];
+    private int campos;
+    private LocalDateTime fecha; // ya convertida por fecha(), o null
+
+    private long idAlto; // UUID de la línea actual, lo deja leerUuid()
+    private long idBajo;
+
+    private final int[] cacheIds = new int[TAMANO_CACHE];
+    private final byte[][] cacheBytes = new byte[TAMANO_CACHE][];
+
+    //CONSTRUCTOR
+    /**
+     * @param limite máximo de bytes a leer de la entrada (Long.MAX_VALUE = hasta el final) */
+    LectorCSV(InputStream entrada, long limite) {
+        this.entrada = entrada;
+        this.restante = limite;
+        this.buffer = new byte[entrada == null ? 0 : TAMANO_BUFFER];
+    }
+
+    LectorCSV() {
+        this(null, 0);
+    }
+
+    /**
+     * Avanza a la próxima línea completa (terminada en '\n'); false al final. Un resto sin '\n' (escritura
+     * cortada) se ignora. */
+    boolean avanzar() throws IOException {
+        while (true) {
+            for (int i = siguiente; i < leidos; i++) {
+                if (buffer[i] == '\n') {
+                    separar(buffer, siguiente, i);
+                    largo = i + 1 - siguiente;
+                    siguiente = i + 1;
+                    return true;
+                }
+            }
+            if (!llenar()) return false;
+        }
+    }
+
+    private boolean llenar() throws IOException {
+        if (restante <= 0) return false;
+        if (siguiente > 0) {
+            // corre la línea incompleta al principio del buffer
+            System.arraycopy(buffer, siguiente, buffer, 0, leidos - siguiente);
+            leidos -= siguiente;
+            siguiente = 0;
+        } else if (leidos == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2); // línea más larga que el buffer
+        }
+        int n = entrada.read(buffer, leidos, (int) Math.min(buffer.length - leidos, restante));
+        if (n <= 0) return false;
+        leidos += n;
+        restante -= n;
+        return true;
+    }
+
+    /**
+     * Toma como línea actual los bytes [inicio, fin) de 'datos' (sin el '\n') y marca sus campos. */
+    void separar(byte[] datos, int inicio, int fin) {
+        this.datos = datos;
+        this.inicio = inicio;
+        this.fin = fin;
+        this.largo = fin - inicio;
+        this.fecha = null;
+        campos = 0;
+        for (int i = inicio; i < fin; i++) {
+            if (datos[i] == ';') {
+                if (campos == separadores.length) {
+                    campos++;
+                    return;
+                }
+                separadores[campos++] = i;
+            }
+        }
+    }
+
+    /**
+     * Bytes de la línea actual, contando el '\n'. */
+    int largo() {
+        return largo;
+    }
+
+    /**
+     * La línea tiene los 8 campos de una transacción (con o sin secuencia y CRC detrás). */
+    boolean esTransaccion() {
+        return campos == RegistroCSV.CAMPOS - 1 || campos == RegistroCSV.CAMPOS_NUMERADO - 1;
+    }
+
+    private int inicioCampo(int campo) {
+        return campo == 0 ? inicio : separadores[campo - 1] + 1;
+    }
+
+    private int finCampo(int campo) {
+        return campo < campos ? separadores[campo] : fin;
+    }
+
+    /**
+     * Fecha de la transacción de la línea actual, sin convertir el resto; null si la línea no es válida. */
+    LocalDateTime fecha() {
+        if (fecha == null && esTransaccion()) {
+            fecha = leerFecha(inicioCampo(7), finCampo(7));
+        }
+        return fecha;
+    }
+
+    /**
+     * Transacción de la línea actual con su id, monto y fecha originales; null si la línea no es válida. */
+    Transaccion transaccion() {
+        LocalDateTime fechaHora = fecha();
+        if (fechaHora == null) return null;
+        TipoCombustible tipo = leerTipo(inicioCampo(3), finCampo(3));
+        double litros = leerDouble(inicioCampo(4), finCampo(4));
+        double precioLitro = leerDouble(inicioCampo(5), finCampo(5));
+        double montoTotal = leerDouble(inicioCampo(6), finCampo(6));
+        if (tipo == null || Double.isNaN(litros) || Double.isNaN(precioLitro) || Double.isNaN(montoTotal)) {
+            return null;
+        }
+        if (!leerUuid(inicioCampo(0), finCampo(0))) return null;
+        return Transaccion.reconstruir(idAlto, idBajo, id(inicioCampo(1), finCampo(1)), id(inicioCampo(2), finCampo(2)),
+                tipo, Transaccion.aMilesimas(litros), Transaccion.aMilesimas(precioLitro),
+                Transaccion.aMilesimas(montoTotal), Transaccion.aMilis(fechaHora));
+    }
+
+    private TipoCombustible leerTipo(int desde, int hasta) {
+        for (TipoCombustible tipo : TipoCombustible.values()) {
+            byte[] nombre = NOMBRES_TIPO[tipo.ordinal()];
+            if (Arrays.equals(datos, desde, hasta, nombre, 0, nombre.length)) return tipo;
+        }
+        return null;
+    }
+
+    /**
+     * Número escrito por Double.toString; NaN si no es válido. */
+    private double leerDouble(int desde, int hasta) {
+        int i = desde;
+        boolean negativo = i < hasta && datos[i] == '-';
+        if (negativo) i++;
+        long mantisa = 0;
+        int digitos = 0;
+        int decimales = 0;
+        boolean punto = false;
+        for (; i < hasta; i++) {
+            byte b = datos[i];
+            if (b == '.' && !punto) {
+                punto = true;
+            } else if (b >= '0' && b <= '9') {
+                if (++digitos > 18) return leerDoubleJdk(desde, hasta);
+                mantisa = mantisa * 10 + (b - '0');
+                if (punto) decimales++;
+            } else {
+                return leerDoubleJdk(desde, hasta); // exponente u otra forma
+            }
+        }
+        if (digitos == 0) return Double.NaN;
+        if (mantisa >= MAX_MANTISA_EXACTA || decimales >= POTENCIAS_10.length) return leerDoubleJdk(desde, hasta);
+        // ambos operandos son exactos, así que una sola división da el double correctamente redondeado
+        double valor = decimales == 0 ? mantisa : mantisa / POTENCIAS_10[decimales];
+        return negativo ? -valor : valor;
+    }
+
+    private double leerDoubleJdk(int desde, int hasta) {
+        try {
+            return Double.parseDouble(new String(datos, desde, hasta - desde, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Fecha de LocalDateTime.toString(): aaaa-MM-ddTHH:mm[:ss[.fracción]]. */
+    private LocalDateTime leerFecha(int desde, int hasta) {
+        int largoFecha = hasta - desde;
+        if (largoFecha < 16 || datos[desde + 4] != '-' || datos[desde + 7] != '-' || datos[desde + 10] != 'T' ||
+                datos[desde + 13] != ':') {
+            return leerFechaJdk(desde, hasta);
+        }
+        int anio = digitos(desde, 4);
+        int mes = digitos(desde + 5, 2);
+        int dia = digitos(desde + 8, 2);
+        int hora = digitos(desde + 11, 2);
+        int minuto = digitos(desde + 14, 2);
+        int segundo = 0;
+        int nanos = 0;
+        int i = desde + 16;
+        if (i < hasta) {
+            if (datos[i] != ':' || hasta - i < 3) return leerFechaJdk(desde, hasta);
+            segundo = digitos(i + 1, 2);
+            i += 3;
+            if (i < hasta) {
+                int fraccion = hasta - i - 1;
+                if (datos[i] != '.' || fraccion < 1 || fraccion > 9) return leerFechaJdk(desde, hasta);
+                nanos = digitos(i + 1, fraccion);
+                for (int k = fraccion; k < 9; k++) nanos *= 10;
+            }
+        }
+        if ((anio | mes | dia | hora | minuto | segundo | nanos) < 0) return leerFechaJdk(desde, hasta);
+        try {
+            return LocalDateTime.of(anio, mes, dia, hora, minuto, segundo, nanos);
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    private LocalDateTime leerFechaJdk(int desde, int hasta) {
+        try {
+            return LocalDateTime.parse(new String(datos, desde, hasta - desde, StandardCharsets.US_ASCII));
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Entero de 'cantidad' dígitos decimales; -1 si alguno no es dígito. */
+    private int digitos(int desde, int cantidad) {
+        int valor = 0;
+        for (int i = desde; i < desde + cantidad; i++) {
+            int d = datos[i] - '0';
+            if (d < 0 || d > 9) return -1;
+            valor = valor * 10 + d;
+        }
+        return valor;
+    }
+
+    /**
+     * UUID en la forma de UUID.toString() (36 caracteres), en idAlto e idBajo; otras formas caen en
+     * UUID.fromString. false si no es un UUID. */
+    private boolean leerUuid(int desde, int hasta) {
+        if (hasta - desde != 36) return leerUuidJdk(desde, hasta);
+        long alto = 0;
+        long bajo = 0;
+        int digitos = 0;
+        for (int i = desde; i < hasta; i++) {
+            int c = datos[i];
+            int posicion = i - desde;
+            if (posicion == 8 || posicion == 13 || posicion == 18 || posicion == 23) {
+                if (c != '-') return leerUuidJdk(desde, hasta);
+                continue;
+            }
+            int d = Character.digit(c, 16);
+            if (d < 0) return false;
+            if (digitos++ < 16) {
+                alto = (alto << 4) | d;
+            } else {
+                bajo = (bajo << 4) | d;
+            }
+        }
+        idAlto = alto;
+        idBajo = bajo;
+        return true;
+    }
+
+    private boolean leerUuidJdk(int desde, int hasta) {
+        try {
+            UUID uuid = UUID.fromString(texto(desde, hasta));
+            idAlto = uuid.getMostSignificantBits();
+            idBajo = uuid.getLeastSignificantBits();
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Códigos de ids de nodo (Identificadores): se repiten en casi todas las líneas, así que se recuerdan. */
+    private int id(int desde, int hasta) {
+        int hash = 1;
+        for (int i = desde; i < hasta; i++) hash = 31 * hash + datos[i];
+        int ranura = (hash ^ (hash >>> 16)) & (TAMANO_CACHE - 1);
+        byte[] guardado = cacheBytes[ranura];
+        if (guardado != null && Arrays.equals(datos, desde, hasta, guardado, 0, guardado.length)) {
+            return cacheIds[ranura];
+        }
+        int codigo = Identificadores.codigo(texto(desde, hasta));
+        cacheBytes[ranura] = Arrays.copyOfRange(datos, desde, hasta);
+        cacheIds[ranura] = codigo;
+        return codigo;
+    }
+
+    private String texto(int desde, int hasta) {
+        for (int i = desde; i < hasta; i++) {
+            if (datos[i] < 0) return new String(datos, desde, hasta - desde, StandardCharsets.UTF_8);
+        }
+        return new String(datos, desde, hasta - desde, StandardCharsets.ISO_8859_1); // ASCII: copia directa
+    }
+}
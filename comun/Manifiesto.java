@@ -0,0 +1,147 @@
+package comun;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+/***********************************************************************************************************************
+ * Manifiesto de la BD local: lo necesario para abrirla sin releer las transacciones.
+ * Guarda cuántos registros tiene cada segmento sellado, hasta qué byte del segmento activo se cubrió, el CRC32C de los
+ * últimos bytes cubiertos (para detectar que el activo cambió por debajo), la última secuencia asignada y la foto de
+ * los agregados en ese punto.
+ * Se escribe en los checkpoints; al abrir, si coincide con los archivos, solo se relee la cola posterior. */
+/**********************************************************************************************************************/
+final class Manifiesto {
+    private static final int MAGIA = 0x4D414E33; // "MAN3" (agregados en milésimas)
+    static final int LARGO_COLA = 4096; // bytes del activo que cubre crcCola
+
+    private final long offsetActivo;
+    private final long registrosActivo;
+    private final int crcCola;
+    private final long ultimaSecuencia;
+    private final SortedMap<Integer, Long> sellados; // número de segmento -> registros
+    private final AgregadosVentas agregados;
+
+    //CONSTRUCTOR
+    Manifiesto(long offsetActivo, long registrosActivo, int crcCola, long ultimaSecuencia,
+               SortedMap<Integer, Long> sellados, AgregadosVentas agregados) {
+        this.offsetActivo = offsetActivo;
+        this.registrosActivo = registrosActivo;
+        this.crcCola = crcCola;
+        this.ultimaSecuencia = ultimaSecuencia;
+        this.sellados = Collections.unmodifiableSortedMap(new TreeMap<>(sellados));
+        this.agregados = agregados;
+    }
+
+    //GETTERS
+    long getOffsetActivo() { return offsetActivo; }
+    long getRegistrosActivo() { return registrosActivo; }
+    long getUltimaSecuencia() { return ultimaSecuencia; }
+    SortedMap<Integer, Long> getSellados() { return sellados; }
+    AgregadosVentas getAgregados() { return agregados; }
+
+    long getRegistros() {
+        long total = registrosActivo;
+        for (long registros : sellados.values()) total += registros;
+        return total;
+    }
+
+    /**
+     * El manifiesto describe los archivos actuales: mismos segmentos sellados y un activo que empieza con los
+     * mismos bytes (al menos hasta offsetActivo). Cuesta leer LARGO_COLA bytes, no el archivo entero. */
+    boolean coincideCon(Path activo, long inicioDatos, Iterable<Integer> numerosSellados) throws IOException {
+        TreeMap<Integer, Long> enDisco = new TreeMap<>();
+        for (int numero : numerosSellados) enDisco.put(numero, 0L);
+        if (!enDisco.keySet().equals(sellados.keySet())) return false;
+        if (!Files.exists(activo) || Files.size(activo) < offsetActivo) return false;
+        return crcCola(activo, offsetActivo, inicioDatos) == crcCola;
+    }
+
+    /**
+     * CRC32C de los últimos LARGO_COLA bytes antes de 'offset' (sin contar la cabecera). */
+    static int crcCola(Path activo, long offset, long inicioDatos) throws IOException {
+        long inicio = Math.max(inicioDatos, offset - LARGO_COLA);
+        if (offset <= inicio) return 0;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (offset - inicio));
+        try (FileChannel canal = FileChannel.open(activo, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && canal.read(buffer, inicio + buffer.position()) > 0) {
+                // leer completo
+            }
+        }
+        buffer.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(buffer);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Escribe el manifiesto (con su propio CRC al final) en un temporal y lo renombra atómicamente. */
+    void guardar(String ruta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIA);
+        out.writeLong(offsetActivo);
+        out.writeLong(registrosActivo);
+        out.writeInt(crcCola);
+        out.writeLong(ultimaSecuencia);
+        out.writeInt(sellados.size());
+        for (Map.Entry<Integer, Long> e : sellados.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeLong(e.getValue());
+        }
+        agregados.escribir(out);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        Path destino = Paths.get(ruta);
+        Path temporal = Paths.get(ruta + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temporal.toFile())) {
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        }
+        Files.move(temporal, destino, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Carga un manifiesto; null si no existe o está dañado. */
+    static Manifiesto cargar(String ruta) {
+        Path archivo = Paths.get(ruta);
+        if (!Files.exists(archivo)) return null;
+        try {
+            byte[] contenido = Files.readAllBytes(archivo);
+            if (contenido.length < 8) return null;
+            CRC32C crc = new CRC32C();
+            crc.update(contenido, 0, contenido.length - 4);
+            if ((int) crc.getValue() != ByteBuffer.wrap(contenido, contenido.length - 4, 4).getInt()) {
+                System.err.println("Manifiesto dañado, se ignora: " + ruta);
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(contenido));
+            if (in.readInt() != MAGIA) return null;
+            long offset = in.readLong();
+            long registrosActivo = in.readLong();
+            int crcCola = in.readInt();
+            long ultimaSecuencia = in.readLong();
+            TreeMap<Integer, Long> sellados = new TreeMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                sellados.put(in.readInt(), in.readLong());
+            }
+            return new Manifiesto(offset, registrosActivo, crcCola, ultimaSecuencia, sellados,
+                    AgregadosVentas.leer(in));
+        } catch (IOException e) {
+            System.err.println("Manifiesto inválido, se ignora: " + ruta + " - " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -1,12 +1,15 @@
 package comun;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Clase que representa un mensaje en el protocolo de comunicación
  * Serializable para poder enviarse a través de sockets TCP
+ * Los mensajes frecuentes llevan su contenido tipado en la carga (ver CargaMensaje); el mapa de datos, que se crea
+ * recién con el primer agregarDato, queda para datos sueltos y para los mensajes de nodos anteriores.
  */
 public class Mensaje implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -34,34 +37,95 @@ public class Mensaje implements Serializable {
         ACK,
         ERROR,
         PING,
-        RECONEXION
+        RECONEXION,
+        SALUDO, // primer mensaje de quien conecta, ver Protocolo
+
+        // Nivel 1 -> Nivel 2, con Protocolo.LOTES (respuesta: ACK o ERROR con CargaMensaje.AckAcumulado)
+        REGISTRAR_LOTE,
+
+        // Nivel 1 -> 2 y 2 -> 3, desde Protocolo.VERSION_PRECIOS: cambios de precios desde una versión
+        // (CargaMensaje.ConsultaPrecios); se responde con un ACTUALIZAR_PRECIO_* si hay algo más nuevo
+        SOLICITAR_PRECIOS
     }
 
     private Tipo tipo; //de mensaje
     private String idOrigen;
     private String idDestino;
-    private Map<String, Object> datos;
+    private Map<String, Object> datos; // null hasta el primer agregarDato
+    private CargaMensaje carga;
     private long timestamp;
+    private long correlacion; // 0 = sin correlación; la asigna ConexionMensajes.solicitar y la repite la respuesta
 
     //CONSTRUCTOR
     public Mensaje(Tipo tipo, String idOrigen) {
         this.tipo = tipo;
         this.idOrigen = idOrigen;
-        this.datos = new HashMap<>();
         this.timestamp = System.currentTimeMillis();
     }
 
+    public Mensaje(Tipo tipo, String idOrigen, CargaMensaje carga) {
+        this(tipo, idOrigen);
+        this.carga = carga;
+    }
+
+    /**
+     * Mensaje recibido por la red, con el origen, destino y timestamp con que se envió (ver CodecMensaje). */
+    Mensaje(Tipo tipo, String idOrigen, String idDestino, long timestamp, CargaMensaje carga) {
+        this.tipo = tipo;
+        this.idOrigen = idOrigen;
+        this.idDestino = idDestino;
+        this.timestamp = timestamp;
+        this.carga = carga;
+    }
+
+    /**
+     * Respuesta a este mensaje: lleva su correlación, así quien lo envió sabe a qué solicitud corresponde. */
+    public Mensaje responder(Tipo tipo, String idOrigen, CargaMensaje carga) {
+        Mensaje respuesta = new Mensaje(tipo, idOrigen, carga);
+        respuesta.correlacion = correlacion;
+        return respuesta;
+    }
+
+    /**
+     * Copia con otra correlación, que comparte la carga y los datos (ver MensajeDifundido). */
+    Mensaje conCorrelacion(long correlacion) {
+        if (correlacion == this.correlacion) return this;
+        Mensaje copia = new Mensaje(tipo, idOrigen, idDestino, timestamp, carga);
+        copia.datos = datos;
+        copia.correlacion = correlacion;
+        return copia;
+    }
+
+    /**
+     * Copia como la arma un nodo anterior a la carga (Protocolo.VERSION_LEGADO): sin carga ni correlación, con el
+     * contenido en el mapa de datos y el mapa siempre presente, porque ese nodo lo lee sin revisar null. */
+    Mensaje comoLegado() {
+        Mensaje copia = new Mensaje(tipo, idOrigen, idDestino, timestamp, null);
+        copia.datos = datos == null ? new HashMap<>() : new HashMap<>(datos);
+        if (carga != null) carga.agregarDatosLegado(copia);
+        return copia;
+    }
+
+    /**
+     * true para los tipos que responden a una solicitud (ACK, ERROR, CONFIRMACION_PRECIO). */
+    public boolean esRespuesta() {
+        return tipo == Tipo.ACK || tipo == Tipo.ERROR || tipo == Tipo.CONFIRMACION_PRECIO;
+    }
+
     //métodos para agregar datos al mensaje
     public void agregarDato(String clave, Object valor) {
+        if (datos == null) {
+            datos = new HashMap<>();
+        }
         datos.put(clave, valor);
     }
 
     public Object obtenerDato(String clave) {
-        return datos.get(clave);
+        return datos == null ? null : datos.get(clave);
     }
 
     public Integer obtenerEntero(String clave) {
-        Object valor = datos.get(clave);
+        Object valor = obtenerDato(clave);
         if (valor instanceof Integer) {
             return (Integer) valor;
         }
@@ -69,7 +133,7 @@ public class Mensaje implements Serializable {
     }
 
     public Double obtenerDouble(String clave) {
-        Object valor = datos.get(clave);
+        Object valor = obtenerDato(clave);
         if (valor instanceof Double) {
             return (Double) valor;
         } else if (valor instanceof Integer) {
@@ -79,12 +143,12 @@ public class Mensaje implements Serializable {
     }
 
     public String obtenerString(String clave) {
-        Object valor = datos.get(clave);
+        Object valor = obtenerDato(clave);
         return valor != null ? valor.toString() : null;
     }
 
     public Boolean obtenerBoolean(String clave) {
-        Object valor = datos.get(clave);
+        Object valor = obtenerDato(clave);
         if (valor instanceof Boolean) {
             return (Boolean) valor;
         }
@@ -117,20 +181,38 @@ public class Mensaje implements Serializable {
     }
 
     public Map<String, Object> getDatos() {
-        return datos;
+        return datos == null ? Collections.emptyMap() : datos;
+    }
+
+    public CargaMensaje getCarga() {
+        return carga;
+    }
+
+    public void setCarga(CargaMensaje carga) {
+        this.carga = carga;
     }
 
     public long getTimestamp() {
         return timestamp;
     }
 
+    public long getCorrelacion() {
+        return correlacion;
+    }
+
+    void setCorrelacion(long correlacion) {
+        this.correlacion = correlacion;
+    }
+
     @Override
     public String toString() {
         return "Mensaje{" +
                 "tipo=" + tipo +
                 ", origen='" + idOrigen + '\'' +
                 ", destino='" + idDestino + '\'' +
-                ", datos=" + datos +
+                (carga != null ? ", carga=" + carga : "") +
+                (datos != null ? ", datos=" + datos : "") +
+                (correlacion != 0 ? ", correlacion=" + correlacion : "") +
                 ", timestamp=" + timestamp +
                 '}';
     }
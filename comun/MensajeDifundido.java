@@ -0,0 +1,38 @@
+package comun;
+
+import java.io.IOException;
+
+/***********************************************************************************************************************
+ * Mensaje que se manda igual por varias conexiones, como los precios a todos los distribuidores o surtidores.
+ * Su trama se codifica una sola vez, en un arreglo que no cambia, y cada conexión en BINARIO escribe esos mismos bytes
+ * detrás de su cabecera (tipo y la correlación de esa conexión, ver CodecMensaje.codificarCabecera); las conexiones
+ * en SERIALIZADO lo serializan cada una, como antes. El mensaje no se debe modificar una vez creado. */
+/**********************************************************************************************************************/
+public final class MensajeDifundido {
+    private final Mensaje mensaje;
+    private volatile byte[] cuerpo; // null hasta que lo pide la primera conexión en BINARIO
+
+    //CONSTRUCTOR
+    public MensajeDifundido(Mensaje mensaje) {
+        this.mensaje = mensaje;
+    }
+
+    /**
+     * La trama sin la cabecera, codificada la primera vez que se pide. */
+    byte[] cuerpo() throws IOException {
+        byte[] codificado = cuerpo;
+        if (codificado == null) {
+            synchronized (this) {
+                codificado = cuerpo;
+                if (codificado == null) {
+                    codificado = new CodecMensaje().codificarCuerpo(mensaje);
+                    cuerpo = codificado;
+                }
+            }
+        }
+        return codificado;
+    }
+
+    //GETTERS
+    public Mensaje getMensaje() { return mensaje; }
+}
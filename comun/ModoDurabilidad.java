@@ -0,0 +1,14 @@
+package comun;
+
+/**
+ * Modos de durabilidad de la BD local: en qué momento se confirma una transacción respecto de la escritura
+ * en disco de cada réplica. Permite cambiar latencia por seguridad en cada estación.
+ */
+public enum ModoDurabilidad {
+    // se confirma cuando principal y backup están forzados a disco
+    SINCRONA_AMBAS,
+    // se confirma con el principal en disco; el backup lo escribe un hilo aparte desde una cola acotada
+    SINCRONA_PRINCIPAL_ASINCRONA_BACKUP,
+    // se confirma al encolar; ambas réplicas se escriben en segundo plano
+    ASINCRONA_AMBAS
+}
@@ -0,0 +1,114 @@
+package comun;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/***********************************************************************************************************************
+ * Motor de almacenamiento de las transacciones de un distribuidor.
+ * Lo que el Distribuidor necesita de su BD local: guardar, recorrer, consultar, verificar, estadísticas y cierre.
+ * Implementaciones: BaseDatos (archivos CSV o binarios, con réplica y segmentos) y BaseDatosMemoria (sin archivos,
+ * para pruebas y para comparar motores con la misma carga). Se elige con Tipo. */
+/**********************************************************************************************************************/
+public interface MotorAlmacenamiento {
+    /**
+     * Motores disponibles. El Distribuidor usa el indicado en la propiedad del sistema PROPIEDAD si no se le pasa
+     * uno explícito (p. ej. -Dbd.motor=BINARIO). */
+    enum Tipo {
+        CSV,
+        BINARIO,
+        MEMORIA;
+
+        public static final String PROPIEDAD = "bd.motor";
+
+        public MotorAlmacenamiento crear(String idDistribuidor, ModoDurabilidad modo) {
+            switch (this) {
+                case BINARIO:
+                    return new BaseDatos(idDistribuidor, BaseDatos.Formato.BINARIO, modo);
+                case MEMORIA:
+                    return new BaseDatosMemoria(idDistribuidor);
+                default:
+                    return new BaseDatos(idDistribuidor, BaseDatos.Formato.CSV, modo);
+            }
+        }
+
+        /**
+         * Motor configurado en PROPIEDAD; CSV si no está definida o no es válida. */
+        public static Tipo configurado() {
+            String valor = System.getProperty(PROPIEDAD);
+            if (valor == null) return CSV;
+            try {
+                return valueOf(valor.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Motor de BD desconocido '" + valor + "', se usa CSV");
+                return CSV;
+            }
+        }
+
+        public static Tipo de(BaseDatos.Formato formato) {
+            return formato == BaseDatos.Formato.BINARIO ? BINARIO : CSV;
+        }
+    }
+
+    /**
+     * Guarda una transacción; true cuando es durable según el motor. */
+    boolean guardarTransaccion(Transaccion transaccion);
+
+    /**
+     * Guarda varias transacciones, en orden, con la menor cantidad de commits que permita el motor.
+     * @return cuántas, desde el principio de la lista, quedaron durables (todas si no hubo errores) */
+    default int guardarTransacciones(List<Transaccion> transacciones) {
+        int guardadas = 0;
+        for (Transaccion t : transacciones) {
+            if (!guardarTransaccion(t)) break;
+            guardadas++;
+        }
+        return guardadas;
+    }
+
+    /**
+     * Cursor sobre las transacciones guardadas, en orden de escritura (ver CursorTransacciones). */
+    CursorTransacciones abrirCursor(LocalDateTime desde, LocalDateTime hasta, Predicate<Transaccion> filtro)
+            throws IOException;
+
+    default CursorTransacciones abrirCursor() throws IOException {
+        return abrirCursor(null, null, null);
+    }
+
+    /**
+     * Transacciones de un surtidor (null = todos) dentro de la ventana [desde, hasta) (null = sin límite). */
+    CursorTransacciones consultar(String idCliente, LocalDateTime desde, LocalDateTime hasta) throws IOException;
+
+    default List<Transaccion> obtenerTodasTransacciones() {
+        return materializar(() -> abrirCursor());
+    }
+
+    default List<Transaccion> buscar(String idCliente, LocalDateTime desde, LocalDateTime hasta) {
+        return materializar(() -> consultar(idCliente, desde, hasta));
+    }
+
+    /**
+     * Totales de ventas mantenidos en cada escritura. */
+    AgregadosVentas getAgregados();
+
+    boolean verificarIntegridad();
+
+    ReporteReparacion repararReplicas();
+
+    String obtenerEstadisticas();
+
+    void cerrar();
+
+    private static List<Transaccion> materializar(CursorTransacciones.Apertura apertura) {
+        List<Transaccion> resultado = new ArrayList<>();
+        try (CursorTransacciones cursor = apertura.abrir()) {
+            if (cursor != null) cursor.forEachRemaining(resultado::add);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("ERROR al leer transacciones: " + e.getMessage());
+        }
+        return resultado;
+    }
+}
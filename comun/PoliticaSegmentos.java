@@ -0,0 +1,48 @@
+package comun;
+
+/**
+ * Política de segmentos de la BD local: cuándo se sella el archivo activo de cada réplica, si los segmentos
+ * sellados se comprimen y cuántos días se conservan.
+ */
+public class PoliticaSegmentos {
+    public static final long MAX_BYTES_DEFECTO = 64L * 1024 * 1024;
+
+    // un único archivo por réplica (comportamiento histórico)
+    public static final PoliticaSegmentos SIN_ROTACION = new PoliticaSegmentos(0, false, false, 0);
+    // rota por día o a los 64 MiB, comprime los sellados y no borra nada
+    public static final PoliticaSegmentos POR_DEFECTO = new PoliticaSegmentos(MAX_BYTES_DEFECTO, true, true, 0);
+
+    private final long maxBytes; // 0 = sin límite de tamaño
+    private final boolean rotarPorDia;
+    private final boolean comprimir;
+    private final int retencionDias; // 0 = conservar todos los segmentos
+
+    //CONSTRUCTOR
+    public PoliticaSegmentos(long maxBytes, boolean rotarPorDia, boolean comprimir, int retencionDias) {
+        if (maxBytes < 0 || retencionDias < 0) {
+            throw new IllegalArgumentException("maxBytes y retencionDias no pueden ser negativos");
+        }
+        this.maxBytes = maxBytes;
+        this.rotarPorDia = rotarPorDia;
+        this.comprimir = comprimir;
+        this.retencionDias = retencionDias;
+    }
+
+    public boolean rota() {
+        return maxBytes > 0 || rotarPorDia;
+    }
+
+    //GETTERS
+    public long getMaxBytes() { return maxBytes; }
+    public boolean isRotarPorDia() { return rotarPorDia; }
+    public boolean isComprimir() { return comprimir; }
+    public int getRetencionDias() { return retencionDias; }
+
+    @Override
+    public String toString() {
+        return (rota() ? "rotación" + (maxBytes > 0 ? " cada " + maxBytes / 1024 + " KiB" : "") +
+                (rotarPorDia ? (maxBytes > 0 ? " o" : "") + " por día" : "") : "sin rotación") +
+                (comprimir ? ", sellados comprimidos" : "") +
+                (retencionDias > 0 ? ", retención " + retencionDias + " días" : "");
+    }
+}
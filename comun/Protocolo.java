@@ -0,0 +1,54 @@
+package comun;
+
+/***********************************************************************************************************************
+ * Versión del protocolo entre niveles y capacidades que cada conexión puede acordar.
+ * Quien conecta (Cliente, Distribuidor hacia la Administración) saluda con su id, su versión y sus capacidades; quien
+ * acepta responde un SALUDO con lo acordado: la menor de las dos versiones y las capacidades que tienen ambos (ver
+ * ConexionMensajes.acordar). El saludo viaja serializado como el RECONEXION con que un nodo anterior ya se
+ * identificaba, con los datos en el mapa: un nodo anterior lo acepta y no responde, y quien conecta sigue con
+ * VERSION_LEGADO al vencer la espera. A un nodo anterior que conecta se lo registra por el idOrigen de su primer
+ * mensaje, con VERSION_LEGADO y sin capacidades, así los surtidores se pueden actualizar de a uno.
+ * Una capacidad solo se anuncia cuando el nodo la implementa; no se usa hasta que la conexión la acordó. */
+/**********************************************************************************************************************/
+public final class Protocolo {
+    public static final int VERSION = 3;
+    public static final int VERSION_LEGADO = 1; // nodos que no saludan
+    public static final int VERSION_PRECIOS = 3; // precios por versión: deltas, SOLICITAR_PRECIOS y ConfirmacionPrecios
+    public static final int VERSION_MINIMA = VERSION_LEGADO;
+
+    // capacidades, una por bit: solo agregar
+    public static final int CODEC_BINARIO = 1;      // decodifica tramas de CodecMensaje
+    public static final int COMPRESION = 1 << 1;    // reservada, todavía no se anuncia
+    public static final int LOTES = 1 << 2;         // acepta varias transacciones por mensaje
+    public static final int PIPELINING = 1 << 3;    // varias solicitudes sin esperar cada respuesta
+
+    private static final String[] NOMBRES = {"binario", "compresion", "lotes", "pipelining"};
+
+    /**
+     * Capacidades que anuncia este nodo. */
+    public static final int CAPACIDADES_LOCALES = CODEC_BINARIO | LOTES | PIPELINING;
+
+    private Protocolo() {
+    }
+
+    /**
+     * Saludo de este nodo, primer mensaje de quien conecta (ver CargaMensaje.Saludo.de). */
+    public static Mensaje saludo(String idNodo) {
+        Mensaje saludo = new Mensaje(Mensaje.Tipo.RECONEXION, idNodo);
+        saludo.agregarDato("protocolo", VERSION);
+        saludo.agregarDato("capacidades", CAPACIDADES_LOCALES);
+        return saludo;
+    }
+
+    /**
+     * Capacidades en texto, p. ej. "binario+lotes" o "ninguna". */
+    public static String describir(int capacidades) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NOMBRES.length; i++) {
+            if ((capacidades & (1 << i)) == 0) continue;
+            if (sb.length() > 0) sb.append('+');
+            sb.append(NOMBRES[i]);
+        }
+        return sb.length() == 0 ? "ninguna" : sb.toString();
+    }
+}
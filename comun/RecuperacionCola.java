@@ -0,0 +1,188 @@
+package comun;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/***********************************************************************************************************************
+ * Recuperación de la cola del segmento activo al abrir la BD.
+ * Un corte durante la escritura solo puede dañar el último lote (cada lote se fuerza a disco antes de confirmar),
+ * así que alcanza con validar los registros de los últimos VENTANA bytes: se descarta desde el primer registro
+ * incompleto, con CRC inválido o con secuencia que no avanza. El costo no depende del tamaño de la BD. */
+/**********************************************************************************************************************/
+final class RecuperacionCola {
+    static final int VENTANA = 1024 * 1024;
+    private static final int LARGO_COMPARACION = 4096;
+
+    /**
+     * Resultado de examinar una réplica. */
+    static final class Estado {
+        final long tamano;          // bytes en disco
+        final long longitudValida;  // fin del último registro válido
+        final long ultimaSecuencia; // 0 si la ventana no tenía registros numerados
+
+        Estado(long tamano, long longitudValida, long ultimaSecuencia) {
+            this.tamano = tamano;
+            this.longitudValida = longitudValida;
+            this.ultimaSecuencia = ultimaSecuencia;
+        }
+
+        boolean tieneColaRota() {
+            return longitudValida < tamano;
+        }
+    }
+
+    private RecuperacionCola() {
+    }
+
+    static long inicioDatos(BaseDatos.Formato formato) {
+        return formato == BaseDatos.Formato.BINARIO ? RegistroBinario.TAMANO_CABECERA : 0;
+    }
+
+    /**
+     * Valida los registros de la ventana final del archivo, sin modificarlo. */
+    static Estado examinar(BaseDatos.Formato formato, Path archivo) throws IOException {
+        long tamano = Files.exists(archivo) ? Files.size(archivo) : 0;
+        long inicioDatos = inicioDatos(formato);
+        if (tamano <= inicioDatos) return new Estado(tamano, tamano, 0);
+
+        long inicio = Math.max(inicioDatos, tamano - VENTANA);
+        if (formato == BaseDatos.Formato.BINARIO) {
+            // alineado a registro; si la ventana no tiene un registro completo, se toma el último
+            long completos = RegistroBinario.contarRegistros(tamano);
+            long ultimo = inicioDatos + Math.max(0, completos - 1) * RegistroBinario.TAMANO_REGISTRO;
+            inicio = Math.min(inicioDatos + (inicio - inicioDatos) / RegistroBinario.TAMANO_REGISTRO *
+                    RegistroBinario.TAMANO_REGISTRO, ultimo);
+        } else if (inicio > 0) {
+            inicio--; // para ver si la ventana empieza en un comienzo de línea
+        }
+        ByteBuffer buffer = leer(archivo, inicio, tamano);
+        if (formato == BaseDatos.Formato.BINARIO) {
+            boolean version1 = RegistroBinario.leerVersion(leer(archivo, 0, inicioDatos)) < 2;
+            return examinarBinario(buffer, inicio, tamano, version1);
+        }
+        return examinarCSV(buffer, inicio, tamano);
+    }
+
+    private static Estado examinarBinario(ByteBuffer buffer, long inicio, long tamano, boolean version1) {
+        long valida = inicio;
+        long ultima = 0;
+        for (int pos = 0; pos + RegistroBinario.TAMANO_REGISTRO <= buffer.limit();
+             pos += RegistroBinario.TAMANO_REGISTRO) {
+            long secuencia = RegistroBinario.secuenciaValida(buffer, pos, version1);
+            if (secuencia < 0 || (secuencia > 0 && secuencia <= ultima)) break;
+            if (secuencia > 0) ultima = secuencia;
+            valida = inicio + pos + RegistroBinario.TAMANO_REGISTRO;
+        }
+        return new Estado(tamano, valida, ultima);
+    }
+
+    private static Estado examinarCSV(ByteBuffer buffer, long inicio, long tamano) {
+        byte[] datos = buffer.array();
+        int limite = buffer.limit();
+        int pos = 0;
+        if (inicio > 0) {
+            // la ventana puede caer en medio de una línea: se empieza después del primer '\n'
+            while (pos < limite && datos[pos] != '\n') pos++;
+            if (pos == limite) return new Estado(tamano, tamano, 0); // una sola línea de más de VENTANA
+            pos++;
+        }
+        long valida = inicio + pos;
+        long ultima = 0;
+        while (pos < limite) {
+            int fin = pos;
+            while (fin < limite && datos[fin] != '\n') fin++;
+            if (fin == limite) break; // línea sin terminar
+            long secuencia = RegistroCSV.secuenciaValida(datos, pos, fin);
+            if (secuencia < 0 || (secuencia > 0 && secuencia <= ultima)) break;
+            if (secuencia > 0) ultima = secuencia;
+            pos = fin + 1;
+            valida = inicio + pos;
+        }
+        return new Estado(tamano, valida, ultima);
+    }
+
+    /**
+     * Descarta la cola dañada y fuerza el cambio a disco. */
+    static void truncar(Path archivo, long longitud) throws IOException {
+        try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.WRITE)) {
+            canal.truncate(longitud);
+            canal.force(true);
+        }
+    }
+
+    /**
+     * La réplica más corta es un prefijo de la más larga: compara los últimos bytes de la corta (su último registro
+     * incluido) con los de la larga en la misma posición. */
+    static boolean esPrefijo(Path corta, Path larga, long longitudCorta, long inicioDatos) throws IOException {
+        long inicio = Math.max(inicioDatos, longitudCorta - LARGO_COMPARACION);
+        return leer(corta, inicio, longitudCorta).equals(leer(larga, inicio, longitudCorta));
+    }
+
+    /**
+     * Copia a 'destino' los bytes de 'origen' desde 'desde' hasta 'hasta' y los fuerza a disco.
+     * @return bytes copiados */
+    static long copiarCola(Path origen, Path destino, long desde, long hasta) throws IOException {
+        long copiados = 0;
+        try (FileChannel entrada = FileChannel.open(origen, StandardOpenOption.READ);
+             FileChannel salida = FileChannel.open(destino, StandardOpenOption.WRITE)) {
+            salida.truncate(desde);
+            salida.position(desde);
+            while (desde + copiados < hasta) {
+                long n = entrada.transferTo(desde + copiados, hasta - desde - copiados, salida);
+                if (n <= 0) break;
+                copiados += n;
+            }
+            salida.force(true);
+        }
+        return copiados;
+    }
+
+    /**
+     * Secuencia del último registro de un segmento sellado (recorre el segmento; solo hace falta cuando no hay
+     * manifiesto y el activo está vacío). */
+    static long ultimaSecuencia(BaseDatos.Formato formato, InputStream entrada) throws IOException {
+        long ultima = 0;
+        if (formato == BaseDatos.Formato.BINARIO) {
+            entrada.skipNBytes(RegistroBinario.TAMANO_CABECERA);
+            byte[] registro = new byte[RegistroBinario.TAMANO_REGISTRO];
+            while (entrada.readNBytes(registro, 0, registro.length) == registro.length) {
+                long secuencia = RegistroBinario.secuenciaValida(ByteBuffer.wrap(registro), 0, true);
+                if (secuencia > 0) ultima = secuencia;
+            }
+            return ultima;
+        }
+        InputStream lector = new BufferedInputStream(entrada);
+        byte[] linea = new byte[256];
+        int largo = 0;
+        int b;
+        while ((b = lector.read()) >= 0) {
+            if (b == '\n') {
+                long secuencia = RegistroCSV.secuenciaValida(linea, 0, largo);
+                if (secuencia > 0) ultima = secuencia;
+                largo = 0;
+            } else {
+                if (largo == linea.length) linea = Arrays.copyOf(linea, largo * 2);
+                linea[largo++] = (byte) b;
+            }
+        }
+        return ultima;
+    }
+
+    private static ByteBuffer leer(Path archivo, long desde, long hasta) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (hasta - desde));
+        try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && canal.read(buffer, desde + buffer.position()) > 0) {
+                // leer completo
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
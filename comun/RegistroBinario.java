@@ -0,0 +1,180 @@
+package comun;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.zip.CRC32C;
+
+/***********************************************************************************************************************
+ * Formato binario de ancho fijo para las transacciones de la BD local.
+ * Cada archivo empieza con una cabecera y luego registros de TAMANO_REGISTRO bytes; la lectura (CursorTransacciones)
+ * recorre el archivo mapeado en memoria por ventanas, sin parsear texto. Desde la versión 2 cada registro lleva su
+ * número de secuencia y un CRC32C propio (ver RecuperacionCola). */
+/**********************************************************************************************************************/
+public final class RegistroBinario {
+    public static final int MAGIA = 0x54584231; // "TXB1"
+    public static final short VERSION = 2;
+    public static final int TAMANO_CABECERA = 16;
+    public static final int TAMANO_REGISTRO = 96;
+    public static final int LARGO_ID = 16; // 1 byte de largo + 15 de contenido
+
+    private static final int POS_SECUENCIA = 85;
+    private static final int LARGO_SECUENCIA = 7;
+    private static final int POS_CRC = 92;
+
+    /*
+     * Disposición de un registro (big endian):
+     *   0  id (UUID)        2 x long
+     *  16  idCliente        LARGO_ID bytes
+     *  32  idDistribuidor   LARGO_ID bytes
+     *  48  tipoCombustible  byte (ordinal)
+     *  49  litros           long (milésimas, Transaccion.UNIDADES)
+     *  57  precioLitro      long (milésimas)
+     *  65  montoTotal       long (milésimas)
+     *  73  fechaHora        long (segundos epoch, UTC) + int (nanos; Transaccion guarda milisegundos)
+     *  85  secuencia        7 bytes sin signo (0 = registro de la versión 1, sin secuencia ni CRC)
+     *  92  crc              int, CRC32C de los bytes 0..91
+     */
+
+    private RegistroBinario() {
+    }
+
+    public static byte[] cabecera() {
+        ByteBuffer buffer = ByteBuffer.allocate(TAMANO_CABECERA);
+        buffer.putInt(MAGIA);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) TAMANO_REGISTRO);
+        return buffer.array();
+    }
+
+    /**
+     * Codifica una transacción como registro de ancho fijo.
+     * @throws IllegalArgumentException si algún id de nodo no cabe en LARGO_ID */
+    public static byte[] codificar(Transaccion t) {
+        ByteBuffer buffer = ByteBuffer.allocate(TAMANO_REGISTRO);
+        buffer.putLong(t.getIdAlto());
+        buffer.putLong(t.getIdBajo());
+        escribirId(buffer, t.getIdCliente());
+        escribirId(buffer, t.getIdDistribuidor());
+        buffer.put((byte) t.getTipoCombustible().ordinal());
+        buffer.putLong(t.getLitrosMilesimas());
+        buffer.putLong(t.getPrecioMilesimas());
+        buffer.putLong(t.getMontoMilesimas());
+        long milis = t.getFechaMilis();
+        buffer.putLong(Math.floorDiv(milis, 1000));
+        buffer.putInt(Math.floorMod(milis, 1000) * 1_000_000);
+        return buffer.array();
+    }
+
+    /**
+     * Completa el número de secuencia y el CRC de un registro recién codificado (lo llama el hilo escritor, que
+     * asigna las secuencias en el orden del archivo). Modifica y devuelve el mismo arreglo. */
+    static byte[] numerar(byte[] registro, long secuencia) {
+        ByteBuffer buffer = ByteBuffer.wrap(registro);
+        for (int i = 0; i < LARGO_SECUENCIA; i++) {
+            buffer.put(POS_SECUENCIA + i, (byte) (secuencia >>> (8 * (LARGO_SECUENCIA - 1 - i))));
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(registro, 0, POS_CRC);
+        buffer.putInt(POS_CRC, (int) crc.getValue());
+        return registro;
+    }
+
+    static long leerSecuencia(ByteBuffer buffer, int pos) {
+        long secuencia = 0;
+        for (int i = 0; i < LARGO_SECUENCIA; i++) {
+            secuencia = (secuencia << 8) | (buffer.get(pos + POS_SECUENCIA + i) & 0xFF);
+        }
+        return secuencia;
+    }
+
+    /**
+     * Secuencia del registro que empieza en 'pos' si está completo y su CRC coincide; 0 si es un registro de la
+     * versión 1 (sin secuencia); -1 si está dañado o a medio escribir (p. ej. relleno con ceros).
+     * @param admiteVersion1 el archivo tiene cabecera de la versión 1 y puede tener registros sin secuencia */
+    static long secuenciaValida(ByteBuffer buffer, int pos, boolean admiteVersion1) {
+        long secuencia = leerSecuencia(buffer, pos);
+        int guardado = buffer.getInt(pos + POS_CRC);
+        if (secuencia == 0) {
+            if (!admiteVersion1 || guardado != 0) return -1;
+            for (int i = 0; i < 16; i++) {
+                if (buffer.get(pos + i) != 0) return 0; // un UUID en cero no lo genera Transaccion
+            }
+            return -1;
+        }
+        CRC32C crc = new CRC32C();
+        ByteBuffer vista = buffer.duplicate();
+        vista.limit(pos + POS_CRC).position(pos);
+        crc.update(vista);
+        return (int) crc.getValue() == guardado ? secuencia : -1;
+    }
+
+    /**
+     * Decodifica el registro que empieza en la posición absoluta indicada. */
+    public static Transaccion decodificar(ByteBuffer buffer, int pos) {
+        int cliente = Identificadores.codigo(leerId(buffer, pos + 16));
+        int distribuidor = Identificadores.codigo(leerId(buffer, pos + 32));
+        TipoCombustible tipo = TipoCombustible.values()[buffer.get(pos + 48)];
+        long milis = buffer.getLong(pos + 73) * 1000 + buffer.getInt(pos + 81) / 1_000_000;
+        return Transaccion.reconstruir(buffer.getLong(pos), buffer.getLong(pos + 8), cliente, distribuidor, tipo,
+                buffer.getLong(pos + 49), buffer.getLong(pos + 57), buffer.getLong(pos + 65), milis);
+    }
+
+    /**
+     * Cantidad de registros completos en un archivo del tamaño dado (un registro a medio escribir no cuenta). */
+    public static long contarRegistros(long tamanoArchivo) {
+        if (tamanoArchivo <= TAMANO_CABECERA) return 0;
+        return (tamanoArchivo - TAMANO_CABECERA) / TAMANO_REGISTRO;
+    }
+
+    /**
+     * Lee solo la fecha del registro que empieza en 'pos', para filtrar por rango sin decodificarlo. */
+    public static LocalDateTime leerFecha(ByteBuffer buffer, int pos) {
+        return LocalDateTime.ofEpochSecond(buffer.getLong(pos + 73), buffer.getInt(pos + 81), ZoneOffset.UTC);
+    }
+
+    static short leerVersion(ByteBuffer cabecera) {
+        return cabecera.getShort(4);
+    }
+
+    static void validarCabecera(FileChannel canal) throws IOException {
+        if (canal.size() < TAMANO_CABECERA) {
+            throw new IOException("archivo binario sin cabecera");
+        }
+        ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+        while (cabecera.hasRemaining() && canal.read(cabecera, cabecera.position()) > 0) {
+            // leer completa
+        }
+        validarCabecera(cabecera);
+    }
+
+    static void validarCabecera(ByteBuffer cabecera) throws IOException {
+        if (cabecera.limit() < TAMANO_CABECERA || cabecera.getInt(0) != MAGIA ||
+                cabecera.getShort(6) != TAMANO_REGISTRO) {
+            throw new IOException("cabecera binaria inválida");
+        }
+    }
+
+    private static void escribirId(ByteBuffer buffer, String id) {
+        byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= LARGO_ID) {
+            throw new IllegalArgumentException("Id demasiado largo para el formato binario: " + id);
+        }
+        int inicio = buffer.position();
+        buffer.put((byte) bytes.length);
+        buffer.put(bytes);
+        buffer.position(inicio + LARGO_ID);
+    }
+
+    private static String leerId(ByteBuffer buffer, int pos) {
+        int largo = buffer.get(pos);
+        byte[] bytes = new byte[largo];
+        for (int i = 0; i < largo; i++) {
+            bytes[i] = buffer.get(pos + 1 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,75 @@
+package comun;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/***********************************************************************************************************************
+ * Encuadre de las líneas del formato CSV de la BD local.
+ * Cada línea es Transaccion.toCSV() seguida de ";<secuencia>;<crc>", donde crc es el CRC32C (8 dígitos hexa) de todo
+ * lo anterior al último ';'. Las líneas históricas de 8 campos, sin secuencia ni CRC, se siguen aceptando. */
+/**********************************************************************************************************************/
+final class RegistroCSV {
+    static final int CAMPOS = 8; // campos de la transacción
+    static final int CAMPOS_NUMERADO = CAMPOS + 2;
+    private static final int LARGO_CRC = 8;
+
+    private RegistroCSV() {
+    }
+
+    /**
+     * Agrega secuencia, CRC y fin de línea a una transacción codificada con toCSV() (lo llama el hilo escritor). */
+    static byte[] numerar(byte[] transaccion, long secuencia) {
+        byte[] sufijo = (";" + secuencia).getBytes(StandardCharsets.US_ASCII);
+        byte[] linea = new byte[transaccion.length + sufijo.length + 1 + LARGO_CRC + 1];
+        System.arraycopy(transaccion, 0, linea, 0, transaccion.length);
+        System.arraycopy(sufijo, 0, linea, transaccion.length, sufijo.length);
+        int finDatos = transaccion.length + sufijo.length;
+        CRC32C crc = new CRC32C();
+        crc.update(linea, 0, finDatos);
+        linea[finDatos] = ';';
+        String hexa = String.format("%08x", (int) crc.getValue());
+        for (int i = 0; i < LARGO_CRC; i++) {
+            linea[finDatos + 1 + i] = (byte) hexa.charAt(i);
+        }
+        linea[linea.length - 1] = '\n';
+        return linea;
+    }
+
+    /**
+     * Secuencia de la línea [inicio, fin) (sin el '\n') si su CRC coincide; 0 si es una línea histórica de 8 campos
+     * que se puede leer; -1 si está dañada o incompleta. */
+    static long secuenciaValida(byte[] datos, int inicio, int fin) {
+        int separadores = 0;
+        int ultimo = -1;
+        int penultimo = -1;
+        for (int i = inicio; i < fin; i++) {
+            if (datos[i] == ';') {
+                separadores++;
+                penultimo = ultimo;
+                ultimo = i;
+            }
+        }
+        if (separadores == CAMPOS - 1) {
+            LectorCSV lector = new LectorCSV();
+            lector.separar(datos, inicio, fin);
+            return lector.transaccion() != null ? 0 : -1;
+        }
+        if (separadores != CAMPOS_NUMERADO - 1 || fin - ultimo - 1 != LARGO_CRC) return -1;
+
+        long secuencia = 0;
+        for (int i = penultimo + 1; i < ultimo; i++) {
+            int digito = datos[i] - '0';
+            if (digito < 0 || digito > 9) return -1;
+            secuencia = secuencia * 10 + digito;
+        }
+        long guardado = 0;
+        for (int i = ultimo + 1; i < fin; i++) {
+            int digito = Character.digit(datos[i], 16);
+            if (digito < 0) return -1;
+            guardado = (guardado << 4) | digito;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(datos, inicio, ultimo - inicio);
+        return secuencia > 0 && crc.getValue() == guardado ? secuencia : -1;
+    }
+}
@@ -0,0 +1,78 @@
+package comun;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Resultado de una reparación de réplicas de la BD local (ver BaseDatos.repararReplicas()).
+ */
+public class ReporteReparacion {
+    private final boolean exitosa;
+    private final String replicaReparada; // null si no hizo falta o no se pudo reparar
+    private final String replicaOrigen;
+    private final List<Integer> bloquesCopiados; // bloques completos reescritos
+    private final long inicioCola; // -1 si la cola no se tocó
+    private final long bytesCopiados;
+    private final long longitudAnterior;
+    private final long longitudFinal;
+    private final long duracionMs;
+    private final String detalle;
+
+    private ReporteReparacion(boolean exitosa, String replicaReparada, String replicaOrigen,
+                              List<Integer> bloquesCopiados, long inicioCola, long bytesCopiados,
+                              long longitudAnterior, long longitudFinal, long duracionMs, String detalle) {
+        this.exitosa = exitosa;
+        this.replicaReparada = replicaReparada;
+        this.replicaOrigen = replicaOrigen;
+        this.bloquesCopiados = Collections.unmodifiableList(bloquesCopiados);
+        this.inicioCola = inicioCola;
+        this.bytesCopiados = bytesCopiados;
+        this.longitudAnterior = longitudAnterior;
+        this.longitudFinal = longitudFinal;
+        this.duracionMs = duracionMs;
+        this.detalle = detalle;
+    }
+
+    static ReporteReparacion sinCambios(long duracionMs) {
+        return new ReporteReparacion(true, null, null, Collections.emptyList(), -1, 0, 0, 0, duracionMs,
+                "Las réplicas ya eran idénticas");
+    }
+
+    static ReporteReparacion fallida(String detalle, long duracionMs) {
+        return new ReporteReparacion(false, null, null, Collections.emptyList(), -1, 0, 0, 0, duracionMs, detalle);
+    }
+
+    static ReporteReparacion reparada(String replicaReparada, String replicaOrigen, List<Integer> bloquesCopiados,
+                                      long inicioCola, long bytesCopiados, long longitudAnterior,
+                                      long longitudFinal, long duracionMs) {
+        return new ReporteReparacion(true, replicaReparada, replicaOrigen, bloquesCopiados, inicioCola,
+                bytesCopiados, longitudAnterior, longitudFinal, duracionMs, "Reparación completada");
+    }
+
+    //GETTERS
+    public boolean isExitosa() { return exitosa; }
+    public boolean huboCambios() { return replicaReparada != null; }
+    public String getReplicaReparada() { return replicaReparada; }
+    public String getReplicaOrigen() { return replicaOrigen; }
+    public List<Integer> getBloquesCopiados() { return bloquesCopiados; }
+    public long getInicioCola() { return inicioCola; }
+    public long getBytesCopiados() { return bytesCopiados; }
+    public long getLongitudAnterior() { return longitudAnterior; }
+    public long getLongitudFinal() { return longitudFinal; }
+    public long getDuracionMs() { return duracionMs; }
+    public String getDetalle() { return detalle; }
+
+    @Override
+    public String toString() {
+        if (!huboCambios()) {
+            return (exitosa ? "OK: " : "ERROR: ") + detalle + " (" + duracionMs + " ms)";
+        }
+        return detalle + ":\n" +
+                "Réplica reparada: " + replicaReparada + " (desde " + replicaOrigen + ")\n" +
+                "Bloques reescritos: " + (bloquesCopiados.isEmpty() ? "ninguno" : bloquesCopiados) + "\n" +
+                "Cola copiada desde el byte: " + (inicioCola < 0 ? "-" : String.valueOf(inicioCola)) + "\n" +
+                "Bytes copiados: " + bytesCopiados + "\n" +
+                "Tamaño: " + longitudAnterior + " -> " + longitudFinal + " bytes\n" +
+                "Duración: " + duracionMs + " ms";
+    }
+}
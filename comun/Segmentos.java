@@ -0,0 +1,182 @@
+package comun;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/***********************************************************************************************************************
+ * Segmentos de una réplica de la BD local.
+ * El archivo activo (p. ej. data/D1_principal.csv) es el único que se escribe; al rotar se sella renombrándolo a
+ * data/D1_principal.<n>.csv, y el compactador lo reemplaza después por data/D1_principal.<n>.csv.gz. */
+/**********************************************************************************************************************/
+final class Segmentos {
+    static final String EXTENSION_COMPRIMIDA = ".gz";
+    private static final int TAMANO_BUFFER = 64 * 1024;
+    private static final String[] AUXILIARES = {".crc", ".idx"};
+
+    private final Path activo;
+    private final Path directorio;
+    private final String base; // nombre del activo sin extensión
+    private final String extension;
+    private final Pattern patron;
+
+    //CONSTRUCTOR
+    Segmentos(String rutaActiva, String extension) {
+        this.activo = Paths.get(rutaActiva);
+        Path padre = activo.getParent();
+        this.directorio = padre != null ? padre : Paths.get(".");
+        String nombre = activo.getFileName().toString();
+        this.base = nombre.substring(0, nombre.length() - extension.length());
+        this.extension = extension;
+        this.patron = Pattern.compile(Pattern.quote(base) + "\\.(\\d+)" + Pattern.quote(extension) +
+                "(" + Pattern.quote(EXTENSION_COMPRIMIDA) + ")?");
+    }
+
+    /**
+     * Segmentos sellados, del más viejo al más nuevo. Si un segmento quedó en ambas formas (compactación
+     * interrumpida antes de borrar el original) se usa la comprimida, que se escribe completa antes de aparecer. */
+    List<Path> sellados() throws IOException {
+        return new ArrayList<>(indexar().values());
+    }
+
+    /**
+     * Segmentos sellados por número, del más viejo al más nuevo. */
+    SortedMap<Integer, Path> porNumero() throws IOException {
+        return indexar();
+    }
+
+    /**
+     * Número de un segmento sellado de esta réplica; -1 si el nombre no corresponde a un segmento. */
+    int numero(Path segmento) {
+        Matcher m = patron.matcher(segmento.getFileName().toString());
+        return m.matches() ? Integer.parseInt(m.group(1)) : -1;
+    }
+
+    int siguienteNumero() throws IOException {
+        TreeMap<Integer, Path> indice = indexar();
+        return indice.isEmpty() ? 1 : indice.lastKey() + 1;
+    }
+
+    private TreeMap<Integer, Path> indexar() throws IOException {
+        TreeMap<Integer, Path> indice = new TreeMap<>();
+        if (!Files.isDirectory(directorio)) return indice;
+        try (DirectoryStream<Path> archivos = Files.newDirectoryStream(directorio, base + ".*")) {
+            for (Path archivo : archivos) {
+                Matcher m = patron.matcher(archivo.getFileName().toString());
+                if (!m.matches()) continue;
+                int numero = Integer.parseInt(m.group(1));
+                Path previo = indice.get(numero);
+                if (previo == null || comprimido(archivo)) {
+                    indice.put(numero, archivo);
+                }
+            }
+        }
+        return indice;
+    }
+
+    /**
+     * Sella el archivo activo (y su ".crc" e ".idx") con el número dado. El llamador garantiza que nadie lo está
+     * escribiendo. */
+    Path sellar(int numero) throws IOException {
+        Path destino = directorio.resolve(base + "." + numero + extension);
+        Files.move(activo, destino, StandardCopyOption.ATOMIC_MOVE);
+        // los archivos auxiliares (checksums, índice) acompañan al segmento
+        for (String auxiliar : AUXILIARES) {
+            Path origen = Paths.get(activo + auxiliar);
+            if (Files.exists(origen)) {
+                Files.move(origen, Paths.get(destino + auxiliar), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        return destino;
+    }
+
+    /**
+     * Segmentos sellados con fecha de modificación anterior al límite (ms epoch). */
+    List<Path> vencidos(long limiteMs) throws IOException {
+        List<Path> vencidos = new ArrayList<>();
+        for (Map.Entry<Integer, Path> e : indexar().entrySet()) {
+            if (Files.getLastModifiedTime(e.getValue()).toMillis() < limiteMs) {
+                vencidos.add(e.getValue());
+            }
+        }
+        return vencidos;
+    }
+
+    /**
+     * Borra un segmento sellado junto con sus archivos auxiliares. */
+    static void borrar(Path segmento) throws IOException {
+        Files.deleteIfExists(segmento);
+        Path sinComprimir = comprimido(segmento) ? Paths.get(segmento.toString().substring(0,
+                segmento.toString().length() - EXTENSION_COMPRIMIDA.length())) : segmento;
+        for (String auxiliar : AUXILIARES) {
+            Files.deleteIfExists(Paths.get(sinComprimir + auxiliar));
+        }
+    }
+
+    static boolean comprimido(Path segmento) {
+        return segmento.getFileName().toString().endsWith(EXTENSION_COMPRIMIDA);
+    }
+
+    /**
+     * Comprime un segmento sellado: escribe "<segmento>.gz.tmp", lo fuerza a disco, lo renombra atómicamente y
+     * recién entonces borra el original (el GZIP trae su propio CRC, así que el ".crc" ya no hace falta).
+     * Conserva la fecha de modificación para la retención.
+     * @return bytes ahorrados */
+    static long comprimir(Path segmento) throws IOException {
+        Path destino = Paths.get(segmento + EXTENSION_COMPRIMIDA);
+        Path temporal = Paths.get(destino + ".tmp");
+        try (InputStream entrada = Files.newInputStream(segmento);
+             FileOutputStream fos = new FileOutputStream(temporal.toFile());
+             GZIPOutputStream gzip = new GZIPOutputStream(fos, TAMANO_BUFFER)) {
+            entrada.transferTo(gzip);
+            gzip.finish();
+            fos.getFD().sync();
+        }
+        Files.setLastModifiedTime(temporal, Files.getLastModifiedTime(segmento));
+        Files.move(temporal, destino, StandardCopyOption.ATOMIC_MOVE);
+        long ahorro = Files.size(segmento) - Files.size(destino);
+        Files.deleteIfExists(segmento);
+        Files.deleteIfExists(Paths.get(segmento + ".crc"));
+        return ahorro;
+    }
+
+    /**
+     * Abre un segmento sellado para leerlo completo, descomprimiendo si hace falta. Si el compactador ya lo
+     * reemplazó se abre la versión comprimida; null si la retención lo borró. */
+    static InputStream abrir(Path segmento) throws IOException {
+        if (!Files.exists(segmento) && !comprimido(segmento)) {
+            segmento = Paths.get(segmento + EXTENSION_COMPRIMIDA);
+        }
+        if (!Files.exists(segmento)) return null;
+        InputStream entrada = Files.newInputStream(segmento);
+        return comprimido(segmento) ? new GZIPInputStream(entrada, TAMANO_BUFFER) : entrada;
+    }
+
+    /**
+     * Bytes de datos del segmento (descomprimido). */
+    static long tamanoDatos(Path segmento) throws IOException {
+        if (!comprimido(segmento) && Files.exists(segmento)) return Files.size(segmento);
+        long total = 0;
+        try (InputStream entrada = abrir(segmento)) {
+            if (entrada == null) return 0;
+            byte[] buffer = new byte[TAMANO_BUFFER];
+            int leidos;
+            while ((leidos = entrada.read(buffer)) > 0) total += leidos;
+        }
+        return total;
+    }
+}
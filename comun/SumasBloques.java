@@ -0,0 +1,367 @@
+package comun;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/***********************************************************************************************************************
+ * Sumas de verificación por bloque de una réplica de la BD.
+ * El archivo se divide en bloques de TAMANO_BLOQUE bytes; cada bloque completo tiene su CRC32C, persistido en un
+ * archivo ".crc" al lado de la réplica, y sobre esas hojas se mantiene un árbol (estilo Merkle) que se actualiza en
+ * O(log n) por bloque. Dos réplicas se comparan bajando por el árbol, sin releer los archivos. */
+/**********************************************************************************************************************/
+public class SumasBloques {
+    public static final int TAMANO_BLOQUE = 64 * 1024;
+    private static final int MAGIA = 0x43524331; // "CRC1"
+    private static final int TAMANO_CABECERA = 8;
+
+    private final Path ruta;
+    private final Path rutaSumas;
+
+    // niveles del árbol: niveles.get(0) son las hojas (CRC de cada bloque completo)
+    private final List<int[]> niveles;
+    private final List<Integer> largos;
+
+    private CRC32C crcParcial; // bloque en curso
+    private int largoParcial;
+    private long longitud; // bytes cubiertos (bloques completos + parcial)
+
+    private FileChannel canalSumas; // solo abierto por el escritor
+    private int hojasPersistidas;
+
+    //CONSTRUCTOR
+    /**
+     * Carga las sumas persistidas y completa en memoria los bloques que falten (p. ej. tras un cierre sin
+     * persistir), releyendo solo la parte del archivo no cubierta. */
+    public SumasBloques(String rutaReplica) throws IOException {
+        this.ruta = Paths.get(rutaReplica);
+        this.rutaSumas = Paths.get(rutaReplica + ".crc");
+        this.niveles = new ArrayList<>();
+        this.largos = new ArrayList<>();
+        this.crcParcial = new CRC32C();
+        cargar();
+    }
+
+    private void cargar() throws IOException {
+        long tamano = Files.exists(ruta) ? Files.size(ruta) : 0;
+        long bloquesArchivo = tamano / TAMANO_BLOQUE;
+
+        int[] persistidas = leerSumasPersistidas();
+        int usar = (int) Math.min(persistidas.length, bloquesArchivo);
+        for (int i = 0; i < usar; i++) {
+            agregarHoja(persistidas[i]);
+        }
+        // las que sobran describen bytes que ya no existen (archivo truncado)
+        hojasPersistidas = persistidas.length > bloquesArchivo ? -1 : usar;
+
+        if (tamano > (long) usar * TAMANO_BLOQUE) {
+            try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(TAMANO_BLOQUE);
+                long pos = (long) usar * TAMANO_BLOQUE;
+                longitud = pos;
+                while (pos < tamano) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(TAMANO_BLOQUE, tamano - pos));
+                    while (buffer.hasRemaining() && canal.read(buffer, pos + buffer.position()) > 0) {
+                        // leer completo
+                    }
+                    buffer.flip();
+                    pos += buffer.remaining();
+                    actualizar(buffer);
+                }
+            }
+        } else {
+            longitud = (long) usar * TAMANO_BLOQUE;
+        }
+    }
+
+    private int[] leerSumasPersistidas() {
+        if (!Files.exists(rutaSumas)) return new int[0];
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(rutaSumas));
+            if (buffer.remaining() < TAMANO_CABECERA || buffer.getInt() != MAGIA || buffer.getInt() != TAMANO_BLOQUE) {
+                return new int[0];
+            }
+            int[] hojas = new int[buffer.remaining() / 4]; // una suma a medio escribir se descarta
+            for (int i = 0; i < hojas.length; i++) hojas[i] = buffer.getInt();
+            return hojas;
+        } catch (IOException e) {
+            return new int[0];
+        }
+    }
+
+    /**
+     * Abre el archivo de sumas para agregar y persiste las hojas calculadas al cargar. Lo llama solo el único
+     * escritor de la réplica, así las instancias de solo lectura nunca escriben el ".crc". */
+    public synchronized void abrirParaEscritura() throws IOException {
+        if (canalSumas != null) return;
+        if (hojasPersistidas < 0 || !Files.exists(rutaSumas)) {
+            reescribirSumas();
+        } else {
+            canalSumas = FileChannel.open(rutaSumas, StandardOpenOption.WRITE);
+            // descarta una suma a medio escribir y agrega las que faltan
+            canalSumas.truncate(TAMANO_CABECERA + (long) hojasPersistidas * 4);
+            canalSumas.position(canalSumas.size());
+            persistirHojasNuevas();
+        }
+    }
+
+    private void reescribirSumas() throws IOException {
+        if (canalSumas != null) canalSumas.close();
+        canalSumas = FileChannel.open(rutaSumas, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+        cabecera.putInt(MAGIA).putInt(TAMANO_BLOQUE).flip();
+        while (cabecera.hasRemaining()) canalSumas.write(cabecera);
+        hojasPersistidas = 0;
+        persistirHojasNuevas();
+    }
+
+    private void persistirHojasNuevas() throws IOException {
+        int hojas = cantidadBloques();
+        if (canalSumas == null || hojasPersistidas >= hojas) return;
+        ByteBuffer buffer = ByteBuffer.allocate((hojas - hojasPersistidas) * 4);
+        int[] nivel0 = niveles.get(0);
+        for (int i = hojasPersistidas; i < hojas; i++) buffer.putInt(nivel0[i]);
+        buffer.flip();
+        while (buffer.hasRemaining()) canalSumas.write(buffer);
+        hojasPersistidas = hojas;
+    }
+
+    /**
+     * Registra bytes recién agregados a la réplica (no modifica la posición del buffer). */
+    public synchronized void agregar(ByteBuffer datos) throws IOException {
+        actualizar(datos.duplicate());
+        persistirHojasNuevas();
+    }
+
+    private void actualizar(ByteBuffer datos) {
+        while (datos.hasRemaining()) {
+            int cabe = Math.min(TAMANO_BLOQUE - largoParcial, datos.remaining());
+            ByteBuffer trozo = datos.slice();
+            trozo.limit(cabe);
+            crcParcial.update(trozo);
+            datos.position(datos.position() + cabe);
+            largoParcial += cabe;
+            longitud += cabe;
+            if (largoParcial == TAMANO_BLOQUE) {
+                agregarHoja((int) crcParcial.getValue());
+                crcParcial = new CRC32C();
+                largoParcial = 0;
+            }
+        }
+    }
+
+    /**
+     * Agrega una hoja y recalcula solo el camino hacia la raíz. */
+    private void agregarHoja(int crc) {
+        int indice = agregarEnNivel(0, crc);
+        int nivel = 0;
+        while (largos.get(nivel) > 1) {
+            int izq = indice & ~1;
+            int[] actual = niveles.get(nivel);
+            int padre = izq + 1 < largos.get(nivel)
+                    ? combinar(actual[izq], actual[izq + 1])
+                    : actual[izq];
+            int indicePadre = indice >> 1;
+            if (niveles.size() == nivel + 1 || indicePadre >= largos.get(nivel + 1)) {
+                agregarEnNivel(nivel + 1, padre);
+            } else {
+                niveles.get(nivel + 1)[indicePadre] = padre;
+            }
+            indice = indicePadre;
+            nivel++;
+        }
+    }
+
+    private int agregarEnNivel(int nivel, int valor) {
+        if (niveles.size() == nivel) {
+            niveles.add(new int[16]);
+            largos.add(0);
+        }
+        int[] arreglo = niveles.get(nivel);
+        int largo = largos.get(nivel);
+        if (largo == arreglo.length) {
+            arreglo = Arrays.copyOf(arreglo, largo * 2);
+            niveles.set(nivel, arreglo);
+        }
+        arreglo[largo] = valor;
+        largos.set(nivel, largo + 1);
+        return largo;
+    }
+
+    private static int combinar(int izq, int der) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer par = ByteBuffer.allocate(8).putInt(izq).putInt(der);
+        crc.update(par.array(), 0, 8);
+        return (int) crc.getValue();
+    }
+
+    public synchronized int cantidadBloques() {
+        return largos.isEmpty() ? 0 : largos.get(0);
+    }
+
+    public synchronized long getLongitud() {
+        return longitud;
+    }
+
+    /**
+     * Hash raíz: raíz del árbol de bloques completos combinada con el CRC del bloque en curso. */
+    public synchronized int hashRaiz() {
+        int raiz = largos.isEmpty() ? 0 : niveles.get(niveles.size() - 1)[0];
+        return largoParcial == 0 ? raiz : combinar(raiz, (int) crcParcial.getValue());
+    }
+
+    /**
+     * Primer bloque en que esta réplica difiere de otra, o -1 si son idénticas. Baja por el árbol comparando
+     * solo los nodos cuyo rango difiere; si una réplica es prefijo de la otra, el resultado es el bloque donde
+     * termina la más corta. */
+    public int primerBloqueDivergente(SumasBloques otra) {
+        List<Integer> divergentes = bloquesDivergentes(otra, 1);
+        return divergentes.isEmpty() ? -1 : divergentes.get(0);
+    }
+
+    /**
+     * Bloques en que esta réplica difiere de otra, en orden, hasta 'max'. Los bloques completos en ambas se
+     * comparan por el árbol; si además difiere la cola (largo o bloque en curso) se agrega al final el índice del
+     * primer bloque que no es completo en ambas, desde donde hay que tratar la cola completa. */
+    public List<Integer> bloquesDivergentes(SumasBloques otra, int max) {
+        SumasBloques primera = System.identityHashCode(this) <= System.identityHashCode(otra) ? this : otra;
+        SumasBloques segunda = primera == this ? otra : this;
+        List<Integer> divergentes = new ArrayList<>();
+        synchronized (primera) {
+            synchronized (segunda) {
+                int comunes = Math.min(cantidadBloques(), otra.cantidadBloques());
+                if (comunes > 0) {
+                    int nivel = 0;
+                    while ((1 << nivel) < comunes) nivel++;
+                    bajar(otra, nivel, 0, comunes, divergentes, max);
+                }
+                if (divergentes.size() < max && !colaIgual(otra)) {
+                    divergentes.add(comunes);
+                }
+                return divergentes;
+            }
+        }
+    }
+
+    private boolean colaIgual(SumasBloques otra) {
+        return cantidadBloques() == otra.cantidadBloques()
+                && largoParcial == otra.largoParcial
+                && crcParcial.getValue() == otra.crcParcial.getValue();
+    }
+
+    private void bajar(SumasBloques otra, int nivel, int indice, int comunes, List<Integer> salida, int max) {
+        long inicio = (long) indice << nivel;
+        if (inicio >= comunes || salida.size() >= max) return;
+        long fin = (long) (indice + 1) << nivel;
+        // un nodo completo en ambos árboles cubre exactamente las mismas hojas
+        if (fin <= comunes && nivel < niveles.size() && nivel < otra.niveles.size()
+                && niveles.get(nivel)[indice] == otra.niveles.get(nivel)[indice]) {
+            return;
+        }
+        if (nivel == 0) {
+            if (niveles.get(0)[indice] != otra.niveles.get(0)[indice]) salida.add(indice);
+            return;
+        }
+        bajar(otra, nivel - 1, indice * 2, comunes, salida, max);
+        bajar(otra, nivel - 1, indice * 2 + 1, comunes, salida, max);
+    }
+
+    /**
+     * Relee un bloque completo del disco y lo compara con su suma registrada. Sirve para saber cuál de dos
+     * réplicas divergentes está dañada sin releer el archivo entero. */
+    public boolean bloqueCoincide(int bloque) throws IOException {
+        int esperado;
+        synchronized (this) {
+            if (bloque >= cantidadBloques()) return true;
+            esperado = niveles.get(0)[bloque];
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(TAMANO_BLOQUE);
+        try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+            long pos = (long) bloque * TAMANO_BLOQUE;
+            while (buffer.hasRemaining() && canal.read(buffer, pos + buffer.position()) > 0) {
+                // leer completo
+            }
+        }
+        if (buffer.hasRemaining()) return false; // el archivo es más corto que lo registrado
+        buffer.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(buffer);
+        return (int) crc.getValue() == esperado;
+    }
+
+    /**
+     * Relee todos los bloques completos y devuelve el primero que no coincide con su suma, o -1. Es O(archivo):
+     * detecta daño en disco que la comparación de árboles no ve. */
+    public int primerBloqueDanado() throws IOException {
+        List<Integer> danados = bloquesDanados(1);
+        return danados.isEmpty() ? -1 : danados.get(0);
+    }
+
+    /**
+     * Como primerBloqueDanado(), pero devuelve hasta 'max' bloques dañados. */
+    public List<Integer> bloquesDanados(int max) throws IOException {
+        List<Integer> danados = new ArrayList<>();
+        int bloques = cantidadBloques();
+        for (int i = 0; i < bloques && danados.size() < max; i++) {
+            if (!bloqueCoincide(i)) danados.add(i);
+        }
+        return danados;
+    }
+
+    /**
+     * Descarta el estado en memoria y lo vuelve a cargar desde el ".crc" y el archivo (p. ej. después de que
+     * una reparación reescribió bloques). Si estaba abierto para escritura lo reabre. */
+    public synchronized void recargar() throws IOException {
+        recargarDesde(null);
+    }
+
+    /**
+     * Como recargar(), pero antes reemplaza el ".crc" por el de otra réplica: tras copiarle sus bloques, ambas
+     * réplicas tienen las mismas sumas. */
+    public synchronized void recargarDesde(SumasBloques origen) throws IOException {
+        boolean escribiendo = canalSumas != null;
+        cerrar();
+        if (origen != null && Files.exists(origen.rutaSumas)) {
+            Files.copy(origen.rutaSumas, rutaSumas, StandardCopyOption.REPLACE_EXISTING);
+        }
+        niveles.clear();
+        largos.clear();
+        crcParcial = new CRC32C();
+        largoParcial = 0;
+        longitud = 0;
+        cargar();
+        if (escribiendo) {
+            abrirParaEscritura();
+        }
+    }
+
+    public Path getRuta() {
+        return ruta;
+    }
+
+    public Path getRutaSumas() {
+        return rutaSumas;
+    }
+
+    public synchronized void cerrar() {
+        if (canalSumas == null) return;
+        try {
+            canalSumas.force(false);
+            canalSumas.close();
+        } catch (IOException e) {
+            // Ignorar
+        }
+        canalSumas = null;
+    }
+}
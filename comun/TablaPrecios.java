@@ -0,0 +1,128 @@
+package comun;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/***********************************************************************************************************************
+ * Precios por litro de cada TipoCombustible, inmutable y con número de versión.
+ * Los precios van en un double[] indexado por ordinal(): leer un precio no toma locks ni crea objetos. Cada nodo
+ * publica su tabla en un AtomicReference (o un HistorialPrecios) y la reemplaza entera al recibir precios nuevos
+ * (con(...), que sube la versión), así quien lee siempre ve una foto completa y sabe de qué versión es.
+ * La versión la pone la Administración y baja tal cual: un distribuidor y sus surtidores en la versión N tienen los
+ * precios de la versión N de la Administración (con el factor de utilidad del distribuidor). Las versiones se cuentan
+ * dentro de un linaje, que la Administración elige al arrancar (ver nuevoLinaje): como no guarda su versión, tras
+ * reiniciar vuelve a la 0 con otro linaje, y una versión solo se compara con otra del mismo linaje. */
+/**********************************************************************************************************************/
+public final class TablaPrecios {
+    private static final TipoCombustible[] TIPOS = TipoCombustible.values();
+
+    private final double[] precios;
+    private final long version;
+    private final long linaje; // 0 = sin linaje (precios iniciales o de un nodo anterior)
+
+    //CONSTRUCTOR
+    private TablaPrecios(double[] precios, long version, long linaje) {
+        this.precios = precios;
+        this.version = version;
+        this.linaje = linaje;
+    }
+
+    /**
+     * Precios iniciales de todos los nodos (versión 0). */
+    public static TablaPrecios porDefecto() {
+        double[] precios = new double[TIPOS.length];
+        precios[TipoCombustible.GASOLINA_93.ordinal()] = 1000.0;
+        precios[TipoCombustible.GASOLINA_95.ordinal()] = 1100.0;
+        precios[TipoCombustible.GASOLINA_97.ordinal()] = 1200.0;
+        precios[TipoCombustible.DIESEL.ordinal()] = 900.0;
+        precios[TipoCombustible.KEROSENE.ordinal()] = 800.0;
+        return new TablaPrecios(precios, 0, 0);
+    }
+
+    /**
+     * Los mismos precios en la versión 0 de un linaje nuevo; la Administración parte de acá al arrancar. */
+    public TablaPrecios nuevoLinaje() {
+        long linaje;
+        do {
+            linaje = ThreadLocalRandom.current().nextLong();
+        } while (linaje == 0);
+        return new TablaPrecios(precios, 0, linaje);
+    }
+
+    /**
+     * Nueva tabla con los precios indicados cambiados (el resto se conserva) y la versión siguiente. */
+    public TablaPrecios con(Map<TipoCombustible, Double> cambios) {
+        double[] nuevos = Arrays.copyOf(precios, precios.length);
+        for (Map.Entry<TipoCombustible, Double> e : cambios.entrySet()) {
+            nuevos[e.getKey().ordinal()] = e.getValue();
+        }
+        return new TablaPrecios(nuevos, version + 1, linaje);
+    }
+
+    /**
+     * Nueva tabla con los precios informados en 'precios' (multiplicados por 'factor') y su versión y linaje (la
+     * versión siguiente, en este linaje, si no traen, como los mensajes de nodos anteriores). */
+    public TablaPrecios con(CargaMensaje.Precios precios, double factor) {
+        double[] nuevos = Arrays.copyOf(this.precios, this.precios.length);
+        for (TipoCombustible tipo : TIPOS) {
+            if (precios.incluye(tipo)) nuevos[tipo.ordinal()] = precios.precio(tipo) * factor;
+        }
+        if (precios.getLinaje() == 0 && precios.getVersion() == 0) {
+            return new TablaPrecios(nuevos, version + 1, linaje);
+        }
+        if (precios.getLinaje() != linaje) {
+            return new TablaPrecios(nuevos, precios.getVersion(), precios.getLinaje());
+        }
+        return new TablaPrecios(nuevos, Math.max(version + 1, precios.getVersion()), linaje);
+    }
+
+    /**
+     * Los precios que cambiaron desde 'anterior', para llevar una tabla en la versión de 'anterior' a esta; la tabla
+     * completa si 'anterior' es de otro linaje. */
+    public CargaMensaje.Precios delta(TablaPrecios anterior) {
+        if (anterior.linaje != linaje) return new CargaMensaje.Precios(this);
+        double[] cambios = new double[precios.length];
+        for (int i = 0; i < precios.length; i++) {
+            cambios[i] = Double.compare(precios[i], anterior.precios[i]) == 0 ? Double.NaN : precios[i];
+        }
+        return new CargaMensaje.Precios(cambios, version, anterior.version, linaje);
+    }
+
+    /**
+     * true si 'precios' no trae nada nuevo para esta tabla (ya tiene esa versión o una posterior del mismo linaje). */
+    public boolean yaIncluye(CargaMensaje.Precios precios) {
+        return precios.getVersion() != 0 && precios.getLinaje() == linaje && precios.getVersion() <= version;
+    }
+
+    /**
+     * true si 'precios' se puede aplicar a esta tabla: es completo o es un delta desde esta versión y linaje. */
+    public boolean admite(CargaMensaje.Precios precios) {
+        return precios.esCompleta() || precios.getLinaje() == linaje && precios.getVersionBase() == version;
+    }
+
+    /**
+     * Los precios por ordinal, sin copiar (para CargaMensaje.Precios; no modificar). */
+    double[] arreglo() {
+        return precios;
+    }
+
+    public Map<TipoCombustible, Double> aMapa() {
+        Map<TipoCombustible, Double> mapa = new EnumMap<>(TipoCombustible.class);
+        for (TipoCombustible tipo : TIPOS) {
+            mapa.put(tipo, precios[tipo.ordinal()]);
+        }
+        return mapa;
+    }
+
+    //GETTERS
+    public double precio(TipoCombustible tipo) { return precios[tipo.ordinal()]; }
+    public long getVersion() { return version; }
+    public long getLinaje() { return linaje; }
+
+    @Override
+    public String toString() {
+        return "TablaPrecios{v" + version + ", " + aMapa() + '}';
+    }
+}
@@ -1,69 +1,203 @@
 package comun;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.UUID;
 
 /**
  * Clase para representar una transacción de carga de combustible.
- * Debe ser Serializable para ser enviada por sockets.*/
+ * Debe ser Serializable para ser enviada por sockets.
+ * Representación compacta: el UUID (ordenable por tiempo, ver GeneradorIds) en dos long, litros, precio y monto en
+ * milésimas (UNIDADES), la fecha en milisegundos epoch (UTC) y los ids de surtidor y distribuidor como códigos de un
+ * diccionario (Identificadores).
+ * Los getters de siempre convierten al pedirlos; para sumar montos sin error de redondeo usar los de milésimas.*/
 
 public class Transaccion implements Serializable {
     private static final long serialVersionUID = 1L;
-    //contenido de una transaccion...
-    private String id; // ID de transacción
-    private String idCliente;
-    private String idDistribuidor;
-    private TipoCombustible tipoCombustible;
-    private double litros;
-    private double precioLitro;
-    private double montoTotal;
-    private LocalDateTime fechaHora;
+    /** Litros, precios y montos se guardan como enteros en milésimas. */
+    public static final long UNIDADES = 1000L;
+
+    //contenido de una transaccion... (se serializa con los campos de siempre, ver serialPersistentFields)
+    private transient long idAlto; // ID de transacción (UUID)
+    private transient long idBajo;
+    private transient int cliente;
+    private transient int distribuidor;
+    private transient TipoCombustible tipoCombustible;
+    private transient long litros;
+    private transient long precioLitro;
+    private transient long montoTotal;
+    private transient long fechaHora;
 
     //CONSTRUCTOR
     public Transaccion(String idSurtidor, String idDistribuidor, TipoCombustible tipoCombustible,
                        double litros, double precioLitro) {
-        this.id = UUID.randomUUID().toString();
-        this.idCliente = idSurtidor;
-        this.idDistribuidor = idDistribuidor;
+        GeneradorIds generador = GeneradorIds.para(idSurtidor, idDistribuidor);
+        this.idAlto = generador.siguienteAlto();
+        this.idBajo = generador.getBajo();
+        this.cliente = Identificadores.codigo(idSurtidor);
+        this.distribuidor = Identificadores.codigo(idDistribuidor);
+        this.tipoCombustible = tipoCombustible;
+        this.litros = aMilesimas(litros);
+        this.precioLitro = aMilesimas(precioLitro);
+        this.montoTotal = calcularMonto(this.litros, this.precioLitro);
+        this.fechaHora = aMilis(LocalDateTime.now());
+    }
+
+    private Transaccion(long idAlto, long idBajo, int cliente, int distribuidor, TipoCombustible tipoCombustible,
+                        long litros, long precioLitro, long montoTotal, long fechaHora) {
+        this.idAlto = idAlto;
+        this.idBajo = idBajo;
+        this.cliente = cliente;
+        this.distribuidor = distribuidor;
         this.tipoCombustible = tipoCombustible;
         this.litros = litros;
         this.precioLitro = precioLitro;
-        this.montoTotal = litros * precioLitro;
-        this.fechaHora = LocalDateTime.now();
+        this.montoTotal = montoTotal;
+        this.fechaHora = fechaHora;
+    }
+
+    /**
+     * Reconstruye una transacción ya persistida conservando su id, monto y fecha originales.
+     * @throws IllegalArgumentException si el id no es un UUID */
+    public static Transaccion reconstruir(String id, String idCliente, String idDistribuidor,
+                                          TipoCombustible tipoCombustible, double litros, double precioLitro,
+                                          double montoTotal, LocalDateTime fechaHora) {
+        UUID uuid = UUID.fromString(id);
+        return new Transaccion(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+                Identificadores.codigo(idCliente), Identificadores.codigo(idDistribuidor), tipoCombustible,
+                aMilesimas(litros), aMilesimas(precioLitro), aMilesimas(montoTotal), aMilis(fechaHora));
+    }
+
+    /**
+     * Igual que reconstruir, desde los campos ya en la representación interna (lectores de la BD). */
+    static Transaccion reconstruir(long idAlto, long idBajo, int cliente, int distribuidor,
+                                   TipoCombustible tipoCombustible, long litros, long precioLitro, long montoTotal,
+                                   long fechaHora) {
+        return new Transaccion(idAlto, idBajo, cliente, distribuidor, tipoCombustible, litros, precioLitro,
+                montoTotal, fechaHora);
+    }
+
+    /**
+     * Monto en milésimas de litros y precio en milésimas, redondeado a la milésima. */
+    static long calcularMonto(long litros, long precioLitro) {
+        return Math.floorDiv(litros * precioLitro + UNIDADES / 2, UNIDADES);
+    }
+
+    static long aMilesimas(double valor) {
+        return Math.round(valor * UNIDADES);
+    }
+
+    static double deMilesimas(long valor) {
+        return (double) valor / UNIDADES;
+    }
+
+    static long aMilis(LocalDateTime fecha) {
+        return fecha.toEpochSecond(ZoneOffset.UTC) * 1000 + fecha.getNano() / 1_000_000;
+    }
+
+    static LocalDateTime deMilis(long milis) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(milis, 1000), Math.floorMod(milis, 1000) * 1_000_000,
+                ZoneOffset.UTC);
     }
 
     //GETTERS
-    public String getId() { return id; }
-    public String getIdCliente() { return idCliente; }
-    public String getIdDistribuidor() { return idDistribuidor; }
+    public String getId() { return new UUID(idAlto, idBajo).toString(); }
+    public long getIdAlto() { return idAlto; }
+    public long getIdBajo() { return idBajo; }
+    public String getIdCliente() { return Identificadores.texto(cliente); }
+    public String getIdDistribuidor() { return Identificadores.texto(distribuidor); }
     public TipoCombustible getTipoCombustible() { return tipoCombustible; }
-    public double getLitros() { return litros; }
-    public double getPrecioLitro() { return precioLitro; }
-    public double getMontoTotal() { return montoTotal; }
-    public LocalDateTime getFechaHora() { return fechaHora; }
+    public double getLitros() { return deMilesimas(litros); }
+    public double getPrecioLitro() { return deMilesimas(precioLitro); }
+    public double getMontoTotal() { return deMilesimas(montoTotal); }
+    public LocalDateTime getFechaHora() { return deMilis(fechaHora); }
+    public long getLitrosMilesimas() { return litros; }
+    public long getPrecioMilesimas() { return precioLitro; }
+    public long getMontoMilesimas() { return montoTotal; }
+    public long getFechaMilis() { return fechaHora; }
+
+    int getCodigoCliente() { return cliente; }
+    int getCodigoDistribuidor() { return distribuidor; }
 
     @Override
     public String toString() {
         return "Transaccion{" +
-                "id='" + id + '\'' +
-                ", surtidor='" + idCliente + '\'' +
+                "id='" + getId() + '\'' +
+                ", surtidor='" + getIdCliente() + '\'' +
                 ", tipo=" + tipoCombustible.getNombre() +
-                ", litros=" + String.format("%.2f", litros) +
-                ", total=$" + String.format("%.2f", montoTotal) +
+                ", litros=" + String.format("%.2f", getLitros()) +
+                ", total=$" + String.format("%.2f", getMontoTotal()) +
                 '}';
     }
 
     //métodos para la persistencia (simulando Base de Datos)
     public String toCSV() {
         return String.join(";",
-                id,
-                idCliente,
-                idDistribuidor,
+                getId(),
+                getIdCliente(),
+                getIdDistribuidor(),
                 tipoCombustible.name(),
-                String.valueOf(litros),
-                String.valueOf(precioLitro),
-                String.valueOf(montoTotal),
-                fechaHora.toString());
+                String.valueOf(getLitros()),
+                String.valueOf(getPrecioLitro()),
+                String.valueOf(getMontoTotal()),
+                getFechaHora().toString());
+    }
+
+    /**
+     * Campos serializados: los de la versión anterior de la clase (misma serialVersionUID), así un nodo anterior
+     * lee lo que manda este y al revés. La forma compacta no viaja por Java serialization (ver CodecMensaje). */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("id", String.class),
+            new ObjectStreamField("idCliente", String.class),
+            new ObjectStreamField("idDistribuidor", String.class),
+            new ObjectStreamField("tipoCombustible", TipoCombustible.class),
+            new ObjectStreamField("litros", double.class),
+            new ObjectStreamField("precioLitro", double.class),
+            new ObjectStreamField("montoTotal", double.class),
+            new ObjectStreamField("fechaHora", LocalDateTime.class)
+    };
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField campos = out.putFields();
+        campos.put("id", getId());
+        campos.put("idCliente", getIdCliente());
+        campos.put("idDistribuidor", getIdDistribuidor());
+        campos.put("tipoCombustible", tipoCombustible);
+        campos.put("litros", getLitros());
+        campos.put("precioLitro", getPrecioLitro());
+        campos.put("montoTotal", getMontoTotal());
+        campos.put("fechaHora", getFechaHora());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField campos = in.readFields();
+        String id = (String) campos.get("id", null);
+        String idCliente = (String) campos.get("idCliente", null);
+        String idDistribuidor = (String) campos.get("idDistribuidor", null);
+        LocalDateTime fecha = (LocalDateTime) campos.get("fechaHora", null);
+        tipoCombustible = (TipoCombustible) campos.get("tipoCombustible", null);
+        if (id == null || idCliente == null || idDistribuidor == null || fecha == null || tipoCombustible == null) {
+            throw new InvalidObjectException("transacción incompleta");
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            idAlto = uuid.getMostSignificantBits();
+            idBajo = uuid.getLeastSignificantBits();
+        } catch (IllegalArgumentException e) {
+            throw new InvalidObjectException("id de transacción inválido: " + id);
+        }
+        cliente = Identificadores.codigo(idCliente);
+        distribuidor = Identificadores.codigo(idDistribuidor);
+        litros = aMilesimas(campos.get("litros", 0.0));
+        precioLitro = aMilesimas(campos.get("precioLitro", 0.0));
+        montoTotal = aMilesimas(campos.get("montoTotal", 0.0));
+        fechaHora = aMilis(fecha);
     }
 }
\ No newline at end of file
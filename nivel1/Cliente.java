@@ -1,14 +1,19 @@
 package nivel1;
 
+import comun.CargaMensaje;
+import comun.ConexionMensajes;
 import comun.Mensaje;
+import comun.Protocolo;
+import comun.TablaPrecios;
 import comun.Transaccion;
 import comun.TipoCombustible;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**********************************************************************************************************************/
  /* Clase Cliente (surtidor) - Nivel 1
@@ -22,32 +27,29 @@ public class Cliente {
     private int puertoDistribuidor;
     private TipoCombustible tipoCombustible;
 
-    private Map<TipoCombustible, Double> precios;
+    private final AtomicReference<TablaPrecios> precios;
     private AtomicBoolean enOperacion;
     private int totalCargas;
     private double totalLitros;
 
+    private static final long ESPERA_SALUDO_MS = 2000; // un distribuidor anterior no responde el saludo
+
     private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private volatile ConexionMensajes conexion;
     private AtomicBoolean conectado;
+    private volatile CountDownLatch saludoRespondido;
+    private final EnvioTransacciones envio;
 
     //CONSTRUCTOR
     public Cliente(String id, TipoCombustible tipoCombustible) {
         this.id = id;
         this.tipoCombustible = tipoCombustible;
-        this.precios = new HashMap<>();
+        this.precios = new AtomicReference<>(TablaPrecios.porDefecto());
         this.enOperacion = new AtomicBoolean(false);
         this.totalCargas = 0;
         this.totalLitros = 0;
         this.conectado = new AtomicBoolean(false);
-
-        //precios iniciales por defecto
-        precios.put(TipoCombustible.GASOLINA_93, 1000.0);
-        precios.put(TipoCombustible.GASOLINA_95, 1100.0);
-        precios.put(TipoCombustible.GASOLINA_97, 1200.0);
-        precios.put(TipoCombustible.DIESEL, 900.0);
-        precios.put(TipoCombustible.KEROSENE, 800.0);
+        this.envio = new EnvioTransacciones(id, () -> conectado.get() ? conexion : null);
     }
 
     /**
@@ -58,16 +60,33 @@ public class Cliente {
 
         try {
             socket = new Socket(ip, puerto);
-            out = new ObjectOutputStream(socket.getOutputStream());
-            in = new ObjectInputStream(socket.getInputStream());
+            conexion = new ConexionMensajes(socket);
+            saludoRespondido = new CountDownLatch(1);
             conectado.set(true);
+            // primero el saludo: lo acordado llega como respuesta, hasta entonces la conexión va sin capacidades
+            conexion.enviar(Protocolo.saludo(id));
 
             System.out.println("[" + id + "] Conectado al distribuidor en " + ip + ":" + puerto);
 
             // iniciar hilo para escuchar mensajes del distribuidor
             new Thread(this::escucharDistribuidor).start();
 
+            // las ventas sin confirmar se reenvían con lo acordado en esta conexión
+            if (!saludoRespondido.await(ESPERA_SALUDO_MS, TimeUnit.MILLISECONDS)) {
+                conexion.acordarLegado(ip + ":" + puerto); // distribuidor anterior al saludo
+            }
+            envio.reiniciar();
+
+            // y se piden solo los precios que cambiaron desde la versión que se tiene
+            if (conexion.getVersionAcordada() >= Protocolo.VERSION_PRECIOS) {
+                enviarMensaje(new Mensaje(Mensaje.Tipo.SOLICITAR_PRECIOS, id,
+                        new CargaMensaje.ConsultaPrecios(precios.get())));
+            }
+
             return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return conectado.get();
         } catch (IOException e) {
             System.err.println("[" + id + "] Error al conectar: " + e.getMessage());
             conectado.set(false);
@@ -80,9 +99,9 @@ public class Cliente {
     private void escucharDistribuidor() {
         while (conectado.get()) {
             try {
-                Mensaje mensaje = (Mensaje) in.readObject();
+                Mensaje mensaje = conexion.recibir();
                 procesarMensaje(mensaje);
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 if (conectado.get()) {
                     System.err.println("[" + id + "] Error al recibir mensaje: " + e.getMessage());
                     conectado.set(false);
@@ -109,12 +128,27 @@ public class Cliente {
                     actualizarPrecios(mensaje);
                 } else {
                     System.out.println("[" + id + "] No se puede actualizar precio: surtidor en operación");
-                    enviarMensaje(new Mensaje(Mensaje.Tipo.ERROR, id));
+                    enviarMensaje(mensaje.responder(Mensaje.Tipo.ERROR, id, null));
                 }
                 break;
 
             case PING:
-                enviarMensaje(new Mensaje(Mensaje.Tipo.ACK, id));
+                enviarMensaje(mensaje.responder(Mensaje.Tipo.ACK, id, null));
+                break;
+
+            case SALUDO:
+                acordarProtocolo(mensaje);
+                break;
+
+            case ACK:
+            case ERROR:
+                // sin PIPELINING la confirmación de un lote llega por acá y no por su futuro
+                CargaMensaje.AckAcumulado ack = CargaMensaje.AckAcumulado.de(mensaje);
+                if (ack != null) {
+                    envio.confirmar(ack, mensaje.getTipo() == Mensaje.Tipo.ERROR);
+                } else {
+                    System.out.println("[" + id + "] Mensaje recibido: " + mensaje);
+                }
                 break;
 
             default:
@@ -122,13 +156,28 @@ public class Cliente {
         }
     }
 
+    /**
+     * respuesta del distribuidor al saludo, con lo acordado para esta conexión */
+    private void acordarProtocolo(Mensaje mensaje) {
+        CargaMensaje.Saludo saludo = CargaMensaje.Saludo.de(mensaje);
+        if (saludo == null) return;
+        try {
+            conexion.acordar(id, saludo);
+            conexion.usarFormatoAcordado();
+            System.out.println("[" + id + "] Protocolo v" + conexion.getVersionAcordada() + " con " +
+                    conexion.getIdRemoto() + ", capacidades: " + Protocolo.describir(conexion.getCapacidades()));
+        } catch (IOException e) {
+            System.err.println("[" + id + "] " + e.getMessage());
+        } finally {
+            saludoRespondido.countDown();
+        }
+    }
+
     /**
      * responde al distribuidor con el estado actual */
     private void responderEstado() {
-        Mensaje respuesta = new Mensaje(Mensaje.Tipo.ESTADO_CLIENTE, id);
-        respuesta.agregarDato("enOperacion", enOperacion.get());
-        respuesta.agregarDato("totalCargas", totalCargas);
-        respuesta.agregarDato("totalLitros", totalLitros);
+        Mensaje respuesta = new Mensaje(Mensaje.Tipo.ESTADO_CLIENTE, id,
+                new CargaMensaje.Estado(enOperacion.get(), totalCargas, totalLitros, null));
 
         enviarMensaje(respuesta);
 
@@ -138,34 +187,40 @@ public class Cliente {
 
 
     /**
-     * Actualiza los precios recibidos del distribuidor
+     * Actualiza los precios recibidos del distribuidor (solo desde el hilo que lo escucha).
+     * Un delta que no parte de la versión que se tiene se rechaza con ERROR y esa versión: el distribuidor responde
+     * con los cambios desde ella.
      */
     private void actualizarPrecios(Mensaje mensaje) {
-        @SuppressWarnings("unchecked")
-        Map<String, Double> nuevosPrecios = (Map<String, Double>) mensaje.obtenerDato("precios");
+        CargaMensaje.Precios nuevosPrecios = CargaMensaje.Precios.de(mensaje);
 
         if (nuevosPrecios != null) {
+            TablaPrecios actual = precios.get();
+            if (actual.yaIncluye(nuevosPrecios)) {
+                enviarMensaje(mensaje.responder(Mensaje.Tipo.ACK, id, new CargaMensaje.Ack("Precios actualizados")));
+                return;
+            }
+            if (!actual.admite(nuevosPrecios)) {
+                System.out.println("[" + id + "] Precios versión " + nuevosPrecios.getVersion() + " sobre la " +
+                        nuevosPrecios.getVersionBase() + ", se tiene la " + actual.getVersion() +
+                        ": se piden los cambios");
+                enviarMensaje(mensaje.responder(Mensaje.Tipo.ERROR, id,
+                        new CargaMensaje.ConsultaPrecios(actual)));
+                return;
+            }
+
             System.out.println("[" + id + "] ===== ACTUALIZANDO PRECIOS =====");
-            for (Map.Entry<String, Double> entry : nuevosPrecios.entrySet()) {
-                try {
-                    TipoCombustible tipo = TipoCombustible.valueOf(entry.getKey());
-                    double precioAnterior = precios.getOrDefault(tipo, 0.0);
-                    double precioNuevo = entry.getValue();
-
-                    precios.put(tipo, precioNuevo);
-
-                    System.out.println("[" + id + "] " + tipo.getNombre() +
-                            ": $" + String.format("%.2f", precioAnterior) +
-                            " -> $" + String.format("%.2f", precioNuevo));
-                } catch (IllegalArgumentException e) {
-                    System.err.println("[" + id + "] Tipo de combustible inválido: " + entry.getKey());
-                }
+            TablaPrecios anterior = precios.getAndSet(actual.con(nuevosPrecios, 1.0));
+            for (TipoCombustible tipo : TipoCombustible.values()) {
+                if (!nuevosPrecios.incluye(tipo)) continue;
+                System.out.println("[" + id + "] " + tipo.getNombre() +
+                        ": $" + String.format("%.2f", anterior.precio(tipo)) +
+                        " -> $" + String.format("%.2f", nuevosPrecios.precio(tipo)));
             }
+            System.out.println("[" + id + "] Versión de precios: " + precios.get().getVersion());
             System.out.println("[" + id + "] ================================");
 
-            Mensaje confirmacion = new Mensaje(Mensaje.Tipo.ACK, id);
-            confirmacion.agregarDato("mensaje", "Precios actualizados");
-            enviarMensaje(confirmacion);
+            enviarMensaje(mensaje.responder(Mensaje.Tipo.ACK, id, new CargaMensaje.Ack("Precios actualizados")));
         }
     }
 
@@ -185,16 +240,14 @@ public class Cliente {
             //simular tiempo de carga
             Thread.sleep((long)(litros * 100)); // 100ms por litro
 
-            double precio = precios.get(tipoCombustible);
+            double precio = precios.get().precio(tipoCombustible);
             Transaccion transaccion = new Transaccion(id, "DIST-001", tipoCombustible, litros, precio);
 
             totalCargas++;
             totalLitros += litros;
 
-            // Enviar transacción al distribuidor
-            Mensaje mensaje = new Mensaje(Mensaje.Tipo.REGISTRAR_TRANSACCION, id);
-            mensaje.agregarDato("transaccion", transaccion);
-            enviarMensaje(mensaje);
+            // Enviar transacción al distribuidor (queda retenida hasta que la confirme, ver EnvioTransacciones)
+            envio.agregar(transaccion);
 
             System.out.println("[" + id + "] Carga completada: " + transaccion);
 
@@ -209,9 +262,8 @@ public class Cliente {
      * envía un mensaje al distribuidor */
     private void enviarMensaje(Mensaje mensaje) {
         try {
-            if (out != null && conectado.get()) {
-                out.writeObject(mensaje);
-                out.flush();
+            if (conexion != null && conectado.get()) {
+                conexion.enviar(mensaje);
             }
         } catch (IOException e) {
             System.err.println("[" + id + "] Error al enviar mensaje: " + e.getMessage());
@@ -244,9 +296,7 @@ public class Cliente {
     public void desconectar() {
         conectado.set(false);
         try {
-            if (out != null) out.close();
-            if (in != null) in.close();
-            if (socket != null) socket.close();
+            if (conexion != null) conexion.close();
             System.out.println("[" + id + "] Desconectado");
         } catch (IOException e) {
             System.err.println("[" + id + "] Error al desconectar: " + e.getMessage());
@@ -273,4 +323,8 @@ public class Cliente {
     public double getTotalLitros() {
         return totalLitros;
     }
+
+    public int getVentasSinConfirmar() {
+        return envio.getSinConfirmar();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+package nivel1;
+
+import comun.CargaMensaje;
+import comun.ConexionMensajes;
+import comun.Mensaje;
+import comun.Protocolo;
+import comun.Transaccion;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/***********************************************************************************************************************
+ * Envío de las ventas de un surtidor al distribuidor.
+ * Si la conexión acordó Protocolo.LOTES, cada venta recibe una secuencia y un hilo las manda juntas en mensajes
+ * REGISTRAR_LOTE (hasta MAX_LOTE, esperando ESPERA_LOTE_MS a que se sumen otras); el distribuidor guarda el lote en un
+ * solo commit y responde un AckAcumulado con la mayor secuencia guardada sin huecos. Las ventas quedan retenidas hasta
+ * esa confirmación: si llega un ERROR o se corta la conexión, se vuelven a mandar desde la primera sin confirmar
+ * (al menos una vez: una venta guardada cuyo ACK se perdió llega repetida tras una reconexión y el distribuidor la
+ * descarta por id).
+ * Con PIPELINING cada lote es una solicitud (ConexionMensajes.solicitar) y su respuesta llega por su futuro; sin él,
+ * por Cliente.procesarMensaje. Sin LOTES (distribuidor anterior) cada venta sale sola como REGISTRAR_TRANSACCION,
+ * como antes. */
+/**********************************************************************************************************************/
+class EnvioTransacciones {
+    static final int MAX_LOTE = 64;
+    static final long ESPERA_LOTE_MS = 20;
+    static final long ESPERA_REINTENTO_MS = 1000;
+
+    private final String idSurtidor;
+    private final Supplier<ConexionMensajes> conexion; // null si no hay conexión
+
+    // lock: ventas sin confirmar, en orden de secuencia; la primera es confirmadaHasta + 1
+    private final Object lock = new Object();
+    private final ArrayDeque<Transaccion> sinConfirmar = new ArrayDeque<>();
+    private long confirmadaHasta;
+    private long enviadaHasta;
+    private long reintentarDesdeMs;
+    private Thread hilo;
+
+    //CONSTRUCTOR
+    EnvioTransacciones(String idSurtidor, Supplier<ConexionMensajes> conexion) {
+        this.idSurtidor = idSurtidor;
+        this.conexion = conexion;
+    }
+
+    /**
+     * Agrega una venta a la cola de envío. */
+    void agregar(Transaccion transaccion) {
+        synchronized (lock) {
+            sinConfirmar.addLast(transaccion);
+            if (hilo == null) {
+                hilo = new Thread(this::bucleEnvio, "envio-" + idSurtidor);
+                hilo.setDaemon(true);
+                hilo.start();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Respuesta del distribuidor a un REGISTRAR_LOTE. Con error, lo no confirmado se vuelve a mandar. */
+    void confirmar(CargaMensaje.AckAcumulado ack, boolean error) {
+        synchronized (lock) {
+            while (confirmadaHasta < ack.getSecuencia() && !sinConfirmar.isEmpty()) {
+                sinConfirmar.pollFirst();
+                confirmadaHasta++;
+            }
+            if (error && enviadaHasta > confirmadaHasta) {
+                System.err.println("[" + idSurtidor + "] El distribuidor confirmó hasta " + confirmadaHasta +
+                        ", se reenvía desde " + (confirmadaHasta + 1));
+                reintentar();
+            }
+        }
+    }
+
+    /**
+     * Conexión nueva: lo enviado y no confirmado se vuelve a mandar por ella. */
+    void reiniciar() {
+        synchronized (lock) {
+            enviadaHasta = confirmadaHasta;
+            reintentarDesdeMs = 0;
+            lock.notifyAll();
+        }
+    }
+
+    int getSinConfirmar() {
+        synchronized (lock) {
+            return sinConfirmar.size();
+        }
+    }
+
+    /**
+     * HILO lector: respuesta a un REGISTRAR_LOTE enviado con correlación (null sin PIPELINING). */
+    private void alResponder(Mensaje respuesta) {
+        CargaMensaje.AckAcumulado ack = respuesta == null ? null : CargaMensaje.AckAcumulado.de(respuesta);
+        if (ack != null) {
+            confirmar(ack, respuesta.getTipo() == Mensaje.Tipo.ERROR);
+        }
+    }
+
+    private void reintentar() {
+        enviadaHasta = confirmadaHasta;
+        reintentarDesdeMs = System.currentTimeMillis() + ESPERA_REINTENTO_MS;
+        lock.notifyAll();
+    }
+
+    /**
+     * HILO de envío: espera ventas sin enviar y una conexión, junta las que lleguen en ESPERA_LOTE_MS y las manda. */
+    private void bucleEnvio() {
+        List<Transaccion> lote = new ArrayList<>(MAX_LOTE);
+        while (true) {
+            ConexionMensajes actual;
+            long primera;
+            try {
+                synchronized (lock) {
+                    while (true) {
+                        long espera = reintentarDesdeMs - System.currentTimeMillis();
+                        if (enviadaHasta - confirmadaHasta < sinConfirmar.size() && espera <= 0) break;
+                        lock.wait(espera > 0 ? espera : 0);
+                    }
+                    // las que lleguen mientras tanto salen en el mismo lote
+                    long limite = System.currentTimeMillis() + ESPERA_LOTE_MS;
+                    long restante;
+                    while (sinConfirmar.size() - (enviadaHasta - confirmadaHasta) < MAX_LOTE &&
+                            (restante = limite - System.currentTimeMillis()) > 0) {
+                        lock.wait(restante);
+                    }
+                    if (reintentarDesdeMs > System.currentTimeMillis()) continue;
+                    actual = conexion.get();
+                    if (actual == null) {
+                        reintentarDesdeMs = System.currentTimeMillis() + ESPERA_REINTENTO_MS;
+                        continue;
+                    }
+                    primera = enviadaHasta + 1;
+                    Iterator<Transaccion> it = sinConfirmar.iterator();
+                    for (long s = confirmadaHasta; s < enviadaHasta; s++) it.next();
+                    while (it.hasNext() && lote.size() < MAX_LOTE) lote.add(it.next());
+                    enviadaHasta += lote.size();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                if (actual.soporta(Protocolo.LOTES)) {
+                    actual.solicitar(new Mensaje(Mensaje.Tipo.REGISTRAR_LOTE, idSurtidor,
+                            new CargaMensaje.LoteRegistro(primera, lote))).thenAccept(this::alResponder);
+                } else {
+                    // distribuidor sin LOTES: una por mensaje y, como antes, sin esperar su ACK
+                    for (Transaccion t : lote) {
+                        actual.enviar(new Mensaje(Mensaje.Tipo.REGISTRAR_TRANSACCION, idSurtidor,
+                                new CargaMensaje.Registro(t)));
+                    }
+                    confirmar(new CargaMensaje.AckAcumulado(primera + lote.size() - 1), false);
+                }
+            } catch (IOException e) {
+                System.err.println("[" + idSurtidor + "] Error al enviar ventas: " + e.getMessage());
+                synchronized (lock) {
+                    reintentar();
+                }
+            } finally {
+                lote.clear();
+            }
+        }
+    }
+}
@@ -1,18 +1,35 @@
 package nivel2;
 
+import comun.AgregadosVentas;
+import comun.CargaMensaje;
+import comun.ConexionMensajes;
 import comun.BaseDatos;
+import comun.CursorTransacciones;
+import comun.HistorialPrecios;
 import comun.Mensaje;
+import comun.MensajeDifundido;
+import comun.MotorAlmacenamiento;
+import comun.ModoDurabilidad;
+import comun.Protocolo;
+import comun.ReporteReparacion;
+import comun.TablaPrecios;
 import comun.Transaccion;
 import comun.TipoCombustible;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**********************************************************************************************************************/
@@ -21,6 +38,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
  **********************************************************************************************************************/
 
 public class Distribuidor {
+    private static final int TAMANO_PAGINA_REPORTE = 1000;
+    private static final long ESPERA_SALUDO_MS = 2000; // una administración anterior no responde el saludo
+
     //VARIABLES
     private final String id; //de distribuidor
     private int puertoLocal;
@@ -35,21 +55,39 @@ public class Distribuidor {
     private String ipAdministracion;
     private int puertoAdministracion;
     private Socket socketAdmin;
-    private ObjectOutputStream outAdmin;
-    private ObjectInputStream inAdmin;
+    private ConexionMensajes conexionAdmin;
     private AtomicBoolean conectadoAdmin;
+    private volatile CountDownLatch saludoAdminRespondido;
 
     //base de datos local
-    private BaseDatos baseDatos;
-    private Map<TipoCombustible, Double> preciosBase;
+    private MotorAlmacenamiento baseDatos;
+    private final HistorialPrecios preciosBase; // versión de la Administración, precios con el factor
     private List<Transaccion> transaccionesPendientes;
 
     //cola de actualización de precios para clientes en operación
-    private Map<String, Map<String, Double>> clientesPreciosPendientes;
+    private Map<String, CargaMensaje.Precios> clientesPreciosPendientes;
     private ScheduledExecutorService schedulerActualizacionPrecios;
+    private final ExecutorService envioPrecios; // envíos de precios a surtidores, fuera de los hilos lectores
 
     //CONSTRUCTOR
     public Distribuidor(String id, int puertoLocal, double factorUtilidad) {
+        this(id, puertoLocal, factorUtilidad, MotorAlmacenamiento.Tipo.configurado(), ModoDurabilidad.SINCRONA_AMBAS);
+    }
+
+    public Distribuidor(String id, int puertoLocal, double factorUtilidad, BaseDatos.Formato formatoBD) {
+        this(id, puertoLocal, factorUtilidad, formatoBD, ModoDurabilidad.SINCRONA_AMBAS);
+    }
+
+    public Distribuidor(String id, int puertoLocal, double factorUtilidad, BaseDatos.Formato formatoBD,
+                        ModoDurabilidad durabilidad) {
+        this(id, puertoLocal, factorUtilidad, MotorAlmacenamiento.Tipo.de(formatoBD), durabilidad);
+    }
+
+    /**
+     * @param motorBD motor de la BD local (ver MotorAlmacenamiento.Tipo)
+     */
+    public Distribuidor(String id, int puertoLocal, double factorUtilidad, MotorAlmacenamiento.Tipo motorBD,
+                        ModoDurabilidad durabilidad) {
         this.id = id;
         this.puertoLocal = puertoLocal;
         this.factorUtilidad = factorUtilidad;
@@ -59,23 +97,18 @@ public class Distribuidor {
         this.servidorActivo = new AtomicBoolean(false);
         this.conectadoAdmin = new AtomicBoolean(false);
 
-        this.baseDatos = new BaseDatos(id);
-        this.preciosBase = new HashMap<>();
+        this.baseDatos = motorBD.crear(id, durabilidad);
+        this.preciosBase = new HistorialPrecios(TablaPrecios.porDefecto());
         this.transaccionesPendientes = new CopyOnWriteArrayList<>();
 
         // NUEVO: Inicializar cola de precios pendientes
         this.clientesPreciosPendientes = new ConcurrentHashMap<>();
         this.schedulerActualizacionPrecios = Executors.newScheduledThreadPool(1);
-
-        inicializarPreciosDefecto();
-    }
-
-    private void inicializarPreciosDefecto() {
-        preciosBase.put(TipoCombustible.GASOLINA_93, 1000.0);
-        preciosBase.put(TipoCombustible.GASOLINA_95, 1100.0);
-        preciosBase.put(TipoCombustible.GASOLINA_97, 1200.0);
-        preciosBase.put(TipoCombustible.DIESEL, 900.0);
-        preciosBase.put(TipoCombustible.KEROSENE, 800.0);
+        this.envioPrecios = Executors.newCachedThreadPool(r -> {
+            Thread hilo = new Thread(r, "precios-" + id);
+            hilo.setDaemon(true);
+            return hilo;
+        });
     }
 
     /**
@@ -108,9 +141,11 @@ public class Distribuidor {
 
         try {
             socketAdmin = new Socket(ip, puerto);
-            outAdmin = new ObjectOutputStream(socketAdmin.getOutputStream());
-            inAdmin = new ObjectInputStream(socketAdmin.getInputStream());
+            conexionAdmin = new ConexionMensajes(socketAdmin);
+            saludoAdminRespondido = new CountDownLatch(1);
             conectadoAdmin.set(true);
+            // primero el saludo: lo acordado llega como respuesta, hasta entonces la conexión va sin capacidades
+            conexionAdmin.enviar(Protocolo.saludo(id));
 
             System.out.println("[" + id + "] Conectado a administración en " + ip + ":" + puerto);
 
@@ -120,10 +155,22 @@ public class Distribuidor {
             Mensaje msgIdentificacion = new Mensaje(Mensaje.Tipo.RECONEXION, id);
             enviarMensajeAdmin(msgIdentificacion);
 
-            //sincronizar transacciones pendientes
+            //sincronizar transacciones pendientes, con lo acordado en el saludo
+            if (!saludoAdminRespondido.await(ESPERA_SALUDO_MS, TimeUnit.MILLISECONDS)) {
+                conexionAdmin.acordarLegado(ip + ":" + puerto); // administración anterior al saludo
+            }
             sincronizarTransacciones();
 
+            //pedir los precios que cambiaron mientras no estaba conectado (solo esos, no la tabla completa)
+            if (conexionAdmin.getVersionAcordada() >= Protocolo.VERSION_PRECIOS) {
+                enviarMensajeAdmin(new Mensaje(Mensaje.Tipo.SOLICITAR_PRECIOS, id,
+                        new CargaMensaje.ConsultaPrecios(preciosBase.actual())));
+            }
+
             return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return conectadoAdmin.get();
         } catch (IOException e) {
             System.err.println("[" + id + "] Error al conectar con administración: " + e.getMessage());
             conectadoAdmin.set(false);
@@ -136,9 +183,9 @@ public class Distribuidor {
     private void escucharAdministracion() {
         while (conectadoAdmin.get()) {
             try {
-                Mensaje mensaje = (Mensaje) inAdmin.readObject();
+                Mensaje mensaje = conexionAdmin.recibir();
                 procesarMensajeAdmin(mensaje);
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 if (conectadoAdmin.get()) {
                     System.err.println("[" + id + "] Conexión perdida con administración");
                     conectadoAdmin.set(false);
@@ -162,14 +209,29 @@ public class Distribuidor {
                 break;
 
             case ACK:
-                // Verificar si este ACK es la confirmación de la sincronización
-                String mensajeConfirmacion = mensaje.obtenerString("mensaje");
-                if ("Transacciones sincronizadas exitosamente".equals(mensajeConfirmacion)) {
-                    Integer cantidad = mensaje.obtenerEntero("cantidad");
+                // administración sin PIPELINING: la confirmación de la sincronización llega sin correlación
+                CargaMensaje.Ack confirmacion = CargaMensaje.Ack.de(mensaje);
+                if (confirmacion != null &&
+                        "Transacciones sincronizadas exitosamente".equals(confirmacion.getTexto())) {
                     // Ahora sí, la Administración confirmó que procesó los datos.
                     transaccionesPendientes.clear();
                     System.out.println("[" + id + "] Sincronización confirmada por Admin. " +
-                            cantidad + " transacciones removidas de la lista pendiente.");
+                            confirmacion.getCantidad() + " transacciones removidas de la lista pendiente.");
+                }
+                break;
+
+            case SALUDO:
+                CargaMensaje.Saludo saludo = CargaMensaje.Saludo.de(mensaje);
+                if (saludo == null) break;
+                try {
+                    conexionAdmin.acordar(id, saludo);
+                    conexionAdmin.usarFormatoAcordado();
+                    System.out.println("[" + id + "] Protocolo v" + conexionAdmin.getVersionAcordada() +
+                            " con administración, capacidades: " + Protocolo.describir(conexionAdmin.getCapacidades()));
+                } catch (IOException e) {
+                    System.err.println("[" + id + "] " + e.getMessage());
+                } finally {
+                    saludoAdminRespondido.countDown();
                 }
                 break;
 
@@ -179,71 +241,124 @@ public class Distribuidor {
     }
 
     /**
-     * actualiza los precios base y propaga a surtidores */
+     * actualiza los precios base y propaga a surtidores.
+     * Solo lo llama el hilo que escucha a la administración, así la versión no cambia entre el control y el cambio.
+     * Un delta que no parte de la versión que se tiene se rechaza con la versión propia: la administración responde
+     * con los cambios desde ella. */
     private void actualizarPreciosBase(Mensaje mensaje) {
-        @SuppressWarnings("unchecked")
-        Map<String, Double> nuevosPrecios = (Map<String, Double>) mensaje.obtenerDato("precios");
+        CargaMensaje.Precios nuevosPrecios = CargaMensaje.Precios.de(mensaje);
 
         if (nuevosPrecios != null) {
+            TablaPrecios actual = preciosBase.actual();
+            if (actual.yaIncluye(nuevosPrecios)) {
+                enviarMensajeAdmin(mensaje.responder(Mensaje.Tipo.CONFIRMACION_PRECIO, id, confirmacionPrecios()));
+                return;
+            }
+            if (!actual.admite(nuevosPrecios)) {
+                System.out.println("[" + id + "] Precios versión " + nuevosPrecios.getVersion() + " sobre la " +
+                        nuevosPrecios.getVersionBase() + ", se tiene la " + actual.getVersion() +
+                        ": se piden los cambios");
+                enviarMensajeAdmin(mensaje.responder(Mensaje.Tipo.ERROR, id,
+                        new CargaMensaje.ConsultaPrecios(actual)));
+                return;
+            }
+
             System.out.println("[" + id + "] Actualizando precios base...");
 
-            for (Map.Entry<String, Double> entry : nuevosPrecios.entrySet()) {
-                try {
-                    TipoCombustible tipo = TipoCombustible.valueOf(entry.getKey());
-                    double precioBase = entry.getValue();
-                    double precioFinal = precioBase * factorUtilidad;
-                    preciosBase.put(tipo, precioFinal);
-
-                    System.out.println("[" + id + "] " + tipo.getNombre() +
-                            ": Base=$" + precioBase + " Final=$" + precioFinal);
-                } catch (IllegalArgumentException e) {
-                    System.err.println("[" + id + "] Tipo de combustible inválido: " + entry.getKey());
-                }
+            CargaMensaje.Precios cambios = preciosBase.actualizar(tabla -> tabla.con(nuevosPrecios, factorUtilidad));
+            TablaPrecios tabla = preciosBase.actual();
+            for (TipoCombustible tipo : TipoCombustible.values()) {
+                if (!nuevosPrecios.incluye(tipo)) continue;
+                System.out.println("[" + id + "] " + tipo.getNombre() +
+                        ": Base=$" + nuevosPrecios.precio(tipo) + " Final=$" + tabla.precio(tipo));
             }
+            System.out.println("[" + id + "] Versión de precios: " + tabla.getVersion());
 
-            //propagar precios a todos los clientes surtidores
-            propagarPreciosClientes();
+            //propagar a todos los clientes surtidores solo lo que cambió
+            propagarPreciosClientes(cambios);
 
             //confirmar a administración
-            Mensaje confirmacion = new Mensaje(Mensaje.Tipo.CONFIRMACION_PRECIO, id);
-            enviarMensajeAdmin(confirmacion);
+            enviarMensajeAdmin(mensaje.responder(Mensaje.Tipo.CONFIRMACION_PRECIO, id, confirmacionPrecios()));
         }
     }
 
     /**
-     * propaga los precios a todos los surtidores conectados */
-    private void propagarPreciosClientes() {
-        Mensaje mensaje = new Mensaje(Mensaje.Tipo.ACTUALIZAR_PRECIO_CLIENTE, id);
-        Map<String, Double> preciosStr = new HashMap<>();
-
-        for (Map.Entry<TipoCombustible, Double> entry : preciosBase.entrySet()) {
-            preciosStr.put(entry.getKey().name(), entry.getValue());
-        }
-
-        mensaje.agregarDato("precios", preciosStr);
-
+     * propaga los precios a todos los surtidores conectados: el delta a quien entiende versiones, la tabla completa
+     * a los surtidores anteriores */
+    private void propagarPreciosClientes(CargaMensaje.Precios cambios) {
+        // el mismo mensaje para todos, codificado una sola vez
+        MensajeDifundido mensajeCambios = mensajePrecios(cambios);
+        MensajeDifundido mensajeCompleta = null;
+
+        // una solicitud por surtidor, sin esperar la respuesta de cada uno
         for (ManejadorCliente manejador : clientesConectados.values()) {
-            manejador.enviarMensaje(mensaje);
+            if (manejador.conexion.getVersionAcordada() >= Protocolo.VERSION_PRECIOS) {
+                manejador.enviarPrecios(mensajeCambios);
+            } else {
+                if (mensajeCompleta == null) {
+                    mensajeCompleta = mensajePrecios(new CargaMensaje.Precios(preciosBase.actual()));
+                }
+                manejador.enviarPrecios(mensajeCompleta);
+            }
         }
     }
 
+    private MensajeDifundido mensajePrecios(CargaMensaje.Precios precios) {
+        return new MensajeDifundido(new Mensaje(Mensaje.Tipo.ACTUALIZAR_PRECIO_CLIENTE, id, precios));
+    }
+
     /**
-     * envía reporte a la administración */
-    private void enviarReporte() {
-        List<Transaccion> transacciones = baseDatos.obtenerTodasTransacciones();
+     * Confirmación de la versión de precios actual, con los surtidores a los que se propagó; null si el protocolo
+     * de la administración no la conoce. */
+    private CargaMensaje.ConfirmacionPrecios confirmacionPrecios() {
+        if (!adminSigueConvergencia()) return null;
+        return new CargaMensaje.ConfirmacionPrecios(id, preciosBase.actual().getVersion(), clientesConectados.size());
+    }
 
-        Mensaje reporte = new Mensaje(Mensaje.Tipo.ENVIAR_REPORTE, id);
-        reporte.agregarDato("totalTransacciones", transacciones.size());
-        reporte.agregarDato("transacciones", transacciones);
+    /**
+     * true si la administración sigue la convergencia de precios (recibe ConfirmacionPrecios). */
+    private boolean adminSigueConvergencia() {
+        ConexionMensajes conexion = conexionAdmin;
+        return conectadoAdmin.get() && conexion != null &&
+                conexion.getVersionAcordada() >= Protocolo.VERSION_PRECIOS;
+    }
 
-        double totalVentas = transacciones.stream()
-                .mapToDouble(Transaccion::getMontoTotal)
-                .sum();
-        reporte.agregarDato("totalVentas", totalVentas);
+    /**
+     * envía reporte a la administración.
+     * Recorre la BD con un cursor y manda las transacciones en páginas de TAMANO_PAGINA_REPORTE, así el
+     * distribuidor no materializa el historial completo. Los totales viajan en la última página. */
+    private void enviarReporte() {
+        int enviadas = 0;
+        int pagina = 0;
+        // cabecera desde los agregados de la BD, sin recorrer las transacciones
+        AgregadosVentas.Acumulado total = baseDatos.getAgregados().getTotal();
+        List<Transaccion> buffer = new ArrayList<>(TAMANO_PAGINA_REPORTE);
+
+        try (CursorTransacciones cursor = baseDatos.abrirCursor()) {
+            do {
+                buffer.clear();
+                while (buffer.size() < TAMANO_PAGINA_REPORTE && cursor.hasNext()) {
+                    buffer.add(cursor.next());
+                }
+                enviadas += buffer.size();
+                boolean ultima = !cursor.hasNext();
+                boolean primera = pagina == 0;
+
+                CargaMensaje.Reporte carga = primera || ultima
+                        ? new CargaMensaje.Reporte(pagina, ultima, buffer, total)
+                        : new CargaMensaje.Reporte(pagina, ultima, buffer);
+                pagina++;
+                if (!enviarMensajeAdmin(new Mensaje(Mensaje.Tipo.ENVIAR_REPORTE, id, carga))) {
+                    return;
+                }
+            } while (cursor.hasNext());
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("[" + id + "] Error al leer BD para el reporte: " + e.getMessage());
+            return;
+        }
 
-        enviarMensajeAdmin(reporte);
-        System.out.println("[" + id + "] Reporte enviado: " + transacciones.size() +
-                " transacciones, Total: $" + totalVentas);
+        System.out.println("[" + id + "] Reporte enviado: " + enviadas +
+                " transacciones en " + pagina + " páginas, Total: $" + total.getMonto());
     }
 
     /**
@@ -258,13 +373,24 @@ public class Distribuidor {
                 transaccionesPendientes.size() + " transacciones pendientes...");
 
         // Crear mensaje de sincronización
-        Mensaje mensajeSync = new Mensaje(Mensaje.Tipo.SINCRONIZAR_TRANSACCIONES, id);
-        mensajeSync.agregarDato("transacciones", new ArrayList<>(transaccionesPendientes));
-        mensajeSync.agregarDato("cantidad", transaccionesPendientes.size());
-
-        // Enviar a administración
-        if (enviarMensajeAdmin(mensajeSync)) {
-            System.out.println("[" + id + "] Transacciones sincronizadas exitosamente");
+        List<Transaccion> enviadas = new ArrayList<>(transaccionesPendientes);
+        Mensaje mensajeSync = new Mensaje(Mensaje.Tipo.SINCRONIZAR_TRANSACCIONES, id,
+                new CargaMensaje.Lote(enviadas));
+
+        // Enviar a administración; solo lo que ella confirme sale de la lista pendiente
+        CompletableFuture<Mensaje> respuesta = solicitarAdmin(mensajeSync);
+        if (respuesta != null) {
+            System.out.println("[" + id + "] Transacciones enviadas a administración");
+            respuesta.thenAccept(r -> {
+                if (r == null) return; // sin PIPELINING: ver procesarMensajeAdmin
+                if (r.getTipo() == Mensaje.Tipo.ACK) {
+                    transaccionesPendientes.removeAll(new HashSet<>(enviadas));
+                    System.out.println("[" + id + "] Sincronización confirmada por Admin. " +
+                            enviadas.size() + " transacciones removidas de la lista pendiente.");
+                } else {
+                    System.err.println("[" + id + "] Administración rechazó la sincronización: " + r);
+                }
+            });
         } else {
             System.err.println("[" + id + "] Error al sincronizar transacciones");
         }
@@ -291,14 +417,27 @@ public class Distribuidor {
         }
     }
 
+    /**
+     * Envía una solicitud a administración (ver ConexionMensajes.solicitar); null si no se pudo enviar. */
+    private CompletableFuture<Mensaje> solicitarAdmin(Mensaje mensaje) {
+        try {
+            if (conexionAdmin != null && conectadoAdmin.get()) {
+                return conexionAdmin.solicitar(mensaje);
+            }
+        } catch (IOException e) {
+            System.err.println("[" + id + "] Error al enviar mensaje a admin: " + e.getMessage());
+            conectadoAdmin.set(false);
+        }
+        return null;
+    }
+
     /**
      * Envía mensaje a administración
      */
     private boolean enviarMensajeAdmin(Mensaje mensaje) {
         try {
-            if (outAdmin != null && conectadoAdmin.get()) {
-                outAdmin.writeObject(mensaje);
-                outAdmin.flush();
+            if (conexionAdmin != null && conectadoAdmin.get()) {
+                conexionAdmin.enviar(mensaje);
                 return true;
             }
         } catch (IOException e) {
@@ -314,10 +453,13 @@ public class Distribuidor {
     public void detener() {
         servidorActivo.set(false);
         conectadoAdmin.set(false);
+        envioPrecios.shutdown();
+        schedulerActualizacionPrecios.shutdown();
 
         try {
             if (serverSocket != null) serverSocket.close();
             if (socketAdmin != null) socketAdmin.close();
+            baseDatos.cerrar();
             System.out.println("[" + id + "] Distribuidor detenido");
         } catch (IOException e) {
             System.err.println("[" + id + "] Error al detener: " + e.getMessage());
@@ -329,10 +471,14 @@ public class Distribuidor {
      */
     private class ManejadorCliente implements Runnable {
         private Socket socket;
-        private ObjectOutputStream out;
-        private ObjectInputStream in;
+        private ConexionMensajes conexion;
         private String idSurtidor;
         private AtomicBoolean activo;
+        private long confirmadaHasta = -1; // mayor secuencia de REGISTRAR_LOTE guardada sin huecos; -1 sin lotes
+        private boolean verificarRepetidas = true; // hasta el primer lote que trae ventas que no estaban guardadas
+        private CompletableFuture<Void> preciosEnCurso = CompletableFuture.completedFuture(null);
+        // precios enviados sin PIPELINING, en orden: cada ACK o ERROR sin correlación responde al primero
+        private final Queue<CargaMensaje.Precios> preciosSinCorrelacion = new ConcurrentLinkedQueue<>();
 
         public ManejadorCliente(Socket socket) {
             this.socket = socket;
@@ -342,24 +488,21 @@ public class Distribuidor {
         @Override
         public void run() {
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                conexion = ConexionMensajes.aceptada(socket);
 
                 System.out.println("[" + id + "] Nuevo surtidor conectado desde " +
                         socket.getInetAddress());
 
                 while (activo.get()) {
-                    Mensaje mensaje = (Mensaje) in.readObject();
+                    Mensaje mensaje = conexion.recibir();
 
-                    if (idSurtidor == null) {
-                        idSurtidor = mensaje.getIdOrigen();
-                        clientesConectados.put(idSurtidor, this);
-                        System.out.println("[" + id + "] Surtidor registrado: " + idSurtidor);
+                    if (idSurtidor == null && registrar(mensaje)) {
+                        continue;
                     }
 
                     procesarMensajeCliente(mensaje);
                 }
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 System.err.println("[" + id + "] Surtidor desconectado: " + idSurtidor);
             } finally {
                 if (idSurtidor != null) {
@@ -369,39 +512,65 @@ public class Distribuidor {
             }
         }
 
+        /**
+         * Identifica al surtidor con su primer mensaje. Si es el saludo, le responde con lo acordado y devuelve true
+         * (no hay más que procesar); un surtidor anterior al saludo queda identificado por el idOrigen, sin
+         * capacidades. */
+        private boolean registrar(Mensaje primero) throws IOException {
+            CargaMensaje.Saludo saludo = CargaMensaje.Saludo.de(primero);
+            if (saludo != null) {
+                enviarMensaje(new Mensaje(Mensaje.Tipo.SALUDO, id, conexion.acordar(id, saludo)));
+                conexion.usarFormatoAcordado(); // la respuesta salió en el formato del saludo
+            } else {
+                conexion.acordarLegado(primero.getIdOrigen());
+            }
+            idSurtidor = conexion.getIdRemoto();
+            clientesConectados.put(idSurtidor, this);
+            System.out.println("[" + id + "] Surtidor registrado: " + idSurtidor + " (protocolo v" +
+                    conexion.getVersionAcordada() + ", " + Protocolo.describir(conexion.getCapacidades()) + ")");
+            return saludo != null;
+        }
+
         private void procesarMensajeCliente(Mensaje mensaje) {
             switch (mensaje.getTipo()) {
                 case REGISTRAR_TRANSACCION:
-                    Transaccion t = (Transaccion) mensaje.obtenerDato("transaccion");
-                    if (t != null) {
-                        baseDatos.guardarTransaccion(t);
+                    CargaMensaje.Registro registro = CargaMensaje.Registro.de(mensaje);
+                    if (registro != null) {
+                        Transaccion t = registro.getTransaccion();
+                        // el ACK sale solo cuando el commit que incluye la transacción es durable
+                        if (!baseDatos.guardarTransaccion(t)) {
+                            enviarMensaje(mensaje.responder(Mensaje.Tipo.ERROR, id,
+                                    new CargaMensaje.Ack("No se pudo registrar la transacción " + t.getId())));
+                            break;
+                        }
                         System.out.println("[" + id + "] Transacción registrada: " + t.getId());
 
                         if (!conectadoAdmin.get()) {
                             transaccionesPendientes.add(t);
                         }
 
-                        Mensaje ack = new Mensaje(Mensaje.Tipo.ACK, id);
-                        enviarMensaje(ack);
+                        enviarMensaje(mensaje.responder(Mensaje.Tipo.ACK, id, null));
+                    }
+                    break;
+
+                case REGISTRAR_LOTE:
+                    CargaMensaje.LoteRegistro lote = CargaMensaje.LoteRegistro.de(mensaje);
+                    if (lote != null) {
+                        registrarLote(mensaje, lote);
                     }
                     break;
 
                 case ESTADO_CLIENTE:
                     //Manejar respuesta de estado del cliente
-                    Boolean enOperacion = mensaje.obtenerBoolean("enOperacion");
-                    String accion = mensaje.obtenerString("accion");
+                    CargaMensaje.Estado estado = CargaMensaje.Estado.de(mensaje);
 
-                    if (enOperacion != null) {
-                        if (!enOperacion && "actualizar_precio".equals(accion)) {
+                    if (estado != null) {
+                        boolean enOperacion = estado.isEnOperacion();
+                        if (!enOperacion && "actualizar_precio".equals(estado.getAccion())) {
                             // cliente libre, enviar precios
-                            Map<String, Double> preciosPendientes = clientesPreciosPendientes.get(idSurtidor);
+                            CargaMensaje.Precios preciosPendientes = clientesPreciosPendientes.remove(idSurtidor);
                             if (preciosPendientes != null) {
-                                Mensaje msgPrecio = new Mensaje(Mensaje.Tipo.ACTUALIZAR_PRECIO_CLIENTE, id);
-                                msgPrecio.agregarDato("precios", preciosPendientes);
-                                enviarMensaje(msgPrecio);
-
-                                //remover de la cola
-                                clientesPreciosPendientes.remove(idSurtidor);
+                                enviarPrecios(preciosPendientes);
                                 System.out.println("[" + id + "] Precios actualizados en cliente " + idSurtidor);
                             }
                         } else if (enOperacion) {
@@ -411,16 +580,168 @@ public class Distribuidor {
                     }
                     break;
 
+                case SOLICITAR_PRECIOS:
+                    CargaMensaje.ConsultaPrecios consulta = CargaMensaje.ConsultaPrecios.de(mensaje);
+                    if (consulta != null) {
+                        enviarPrecios(preciosBase.desde(consulta));
+                    }
+                    break;
+
+                case ACK:
+                case ERROR:
+                    // sin PIPELINING (un surtidor anterior): la respuesta a los precios enviados más viejos
+                    CargaMensaje.Precios enviados = preciosSinCorrelacion.poll();
+                    if (enviados != null) {
+                        preciosRespondidos(mensaje, enviados);
+                        break;
+                    }
+                    System.out.println("[" + id + "] Mensaje de surtidor: " + mensaje);
+                    break;
+
                 default:
                     System.out.println("[" + id + "] Mensaje de surtidor: " + mensaje);
             }
         }
 
+        /**
+         * Guarda las ventas nuevas del lote en un solo commit y responde con la mayor secuencia guardada sin huecos
+         * (ERROR si no se guardó todo). Lo ya confirmado (reenvíos) se saltea; si falta un lote anterior no se guarda
+         * nada y el surtidor reenvía desde lo confirmado. La secuencia confirmada es de esta conexión: tras conectarse
+         * se saltean también, por id, las ventas que ya estaban en la BD (un lote guardado cuyo ACK se perdió). */
+        private void registrarLote(Mensaje solicitud, CargaMensaje.LoteRegistro lote) {
+            long primera = lote.getPrimeraSecuencia();
+            if (confirmadaHasta < 0) {
+                confirmadaHasta = primera - 1; // la secuencia sigue la del surtidor, también tras reconectarse
+            }
+            if (primera > confirmadaHasta + 1) {
+                enviarMensaje(solicitud.responder(Mensaje.Tipo.ERROR, id,
+                        new CargaMensaje.AckAcumulado(confirmadaHasta)));
+                return;
+            }
+            List<Transaccion> nuevas = lote.comoLista();
+            nuevas = nuevas.subList((int) Math.min(nuevas.size(), confirmadaHasta + 1 - primera), nuevas.size());
+            if (verificarRepetidas && !nuevas.isEmpty()) {
+                // lo guardado antes de la reconexión es un prefijo: el surtidor reenvía en orden
+                int repetidas = yaGuardadas(nuevas);
+                verificarRepetidas = repetidas == nuevas.size();
+                confirmadaHasta += repetidas;
+                nuevas = nuevas.subList(repetidas, nuevas.size());
+            }
+
+            // el ACK sale solo cuando el commit que incluye el lote es durable
+            int guardadas = baseDatos.guardarTransacciones(nuevas);
+            confirmadaHasta += guardadas;
+            if (guardadas > 0) {
+                System.out.println("[" + id + "] Lote de " + idSurtidor + " registrado: " + guardadas +
+                        " transacciones, hasta la secuencia " + confirmadaHasta);
+                if (!conectadoAdmin.get()) {
+                    transaccionesPendientes.addAll(nuevas.subList(0, guardadas));
+                }
+            }
+
+            Mensaje.Tipo tipo = guardadas == nuevas.size() ? Mensaje.Tipo.ACK : Mensaje.Tipo.ERROR;
+            enviarMensaje(solicitud.responder(tipo, id, new CargaMensaje.AckAcumulado(confirmadaHasta)));
+        }
+
+        /**
+         * Cuántas ventas del principio de la lista ya están en la BD (se buscan por id en su ventana de fechas). */
+        private int yaGuardadas(List<Transaccion> ventas) {
+            String cliente = ventas.get(0).getIdCliente();
+            LocalDateTime desde = ventas.get(0).getFechaHora();
+            LocalDateTime hasta = desde;
+            for (Transaccion t : ventas) {
+                if (!t.getIdCliente().equals(cliente)) cliente = null;
+                if (t.getFechaHora().isBefore(desde)) desde = t.getFechaHora();
+                if (t.getFechaHora().isAfter(hasta)) hasta = t.getFechaHora();
+            }
+            Set<String> guardadas = new HashSet<>();
+            for (Transaccion t : baseDatos.buscar(cliente, desde, hasta.plusNanos(1_000_000))) {
+                guardadas.add(t.getId());
+            }
+            int repetidas = 0;
+            while (repetidas < ventas.size() && guardadas.contains(ventas.get(repetidas).getId())) repetidas++;
+            if (repetidas > 0) {
+                System.out.println("[" + id + "] Lote de " + idSurtidor + ": " + repetidas +
+                        " ventas ya guardadas antes de la reconexión");
+            }
+            return repetidas;
+        }
+
+        /**
+         * Envía una solicitud (ver ConexionMensajes.solicitar); null si no se pudo enviar. */
+        public CompletableFuture<Mensaje> solicitar(MensajeDifundido mensaje) {
+            try {
+                if (conexion != null && activo.get()) {
+                    return conexion.solicitar(mensaje);
+                }
+            } catch (IOException e) {
+                System.err.println("[" + id + "] Error al enviar a surtidor: " + e.getMessage());
+                activo.set(false);
+            }
+            return null;
+        }
+
+        /**
+         * Manda precios al surtidor como solicitud; la respuesta llega a preciosRespondidos. Nada si es null. */
+        private void enviarPrecios(CargaMensaje.Precios precios) {
+            if (precios != null) {
+                enviarPrecios(mensajePrecios(precios));
+            }
+        }
+
+        /**
+         * No bloquea al que llama (hilo lector o de la administración): la solicitud, que puede esperar lugar en la
+         * ventana, sale en envioPrecios, después de los envíos anteriores a este surtidor. */
+        private synchronized void enviarPrecios(MensajeDifundido mensaje) {
+            CargaMensaje.Precios precios = CargaMensaje.Precios.de(mensaje.getMensaje());
+            preciosEnCurso = preciosEnCurso.thenRunAsync(() -> {
+                // antes de enviar: la respuesta sin correlación puede llegar antes de que solicitar() vuelva
+                boolean sinCorrelacion = !conexion.soporta(Protocolo.PIPELINING);
+                if (sinCorrelacion) preciosSinCorrelacion.add(precios);
+                CompletableFuture<Mensaje> respuesta = solicitar(mensaje);
+                if (respuesta != null) {
+                    respuesta.thenAccept(r -> preciosRespondidos(r, precios));
+                } else if (sinCorrelacion) {
+                    preciosSinCorrelacion.remove(precios);
+                }
+            }, envioPrecios).exceptionally(e -> {
+                // detenido: envioPrecios ya no acepta envíos
+                if (!servidorActivo.get()) return null;
+                System.err.println("[" + id + "] Error al enviar precios a " + idSurtidor + ": " + e.getMessage());
+                return null;
+            });
+        }
+
+        /**
+         * HILO lector: respuesta del surtidor a ACTUALIZAR_PRECIO_CLIENTE (null sin PIPELINING: la respuesta llega por
+         * procesarMensajeCliente). Si estaba en operación los precios quedan en cola para él; si le faltaba una versión
+         * anterior, se le mandan los cambios desde la que tiene. */
+        private void preciosRespondidos(Mensaje respuesta, CargaMensaje.Precios precios) {
+            if (respuesta == null) return;
+            CargaMensaje.ConsultaPrecios consulta = CargaMensaje.ConsultaPrecios.de(respuesta);
+            if (respuesta.getTipo() == Mensaje.Tipo.ACK) {
+                clientesPreciosPendientes.remove(idSurtidor);
+                System.out.println("[" + id + "] Surtidor " + idSurtidor + " confirmó precios versión " +
+                        precios.getVersion());
+                // para la convergencia que sigue la administración (no una versión de antes de que reiniciara)
+                if (adminSigueConvergencia() && precios.getLinaje() == preciosBase.actual().getLinaje()) {
+                    enviarMensajeAdmin(new Mensaje(Mensaje.Tipo.CONFIRMACION_PRECIO, id,
+                            new CargaMensaje.ConfirmacionPrecios(idSurtidor, precios.getVersion(), 0)));
+                }
+            } else if (consulta != null) {
+                System.out.println("[" + id + "] Surtidor " + idSurtidor + " tiene precios versión " +
+                        consulta.getVersion() + ", se le mandan los cambios");
+                enviarPrecios(preciosBase.desde(consulta));
+            } else {
+                clientesPreciosPendientes.put(idSurtidor, precios);
+                System.out.println("[" + id + "] Cliente " + idSurtidor + " en operación. Precio quedará en cola.");
+            }
+        }
+
         public void enviarMensaje(Mensaje mensaje) {
             try {
-                if (out != null && activo.get()) {
-                    out.writeObject(mensaje);
-                    out.flush();
+                if (conexion != null && activo.get()) {
+                    conexion.enviar(mensaje);
                 }
             } catch (IOException e) {
                 System.err.println("[" + id + "] Error al enviar a surtidor: " + e.getMessage());
@@ -430,15 +751,32 @@ public class Distribuidor {
 
         private void cerrar() {
             try {
-                if (out != null) out.close();
-                if (in != null) in.close();
-                if (socket != null) socket.close();
+                if (conexion != null) conexion.close();
+                else if (socket != null) socket.close();
             } catch (IOException e) {
                 // Ignorar
             }
         }
     }
 
+    /**
+     * Repara las réplicas de la BD local copiando solo los bloques divergentes desde la sana */
+    public ReporteReparacion repararBaseDatos() {
+        return baseDatos.repararReplicas();
+    }
+
+    /**
+     * Verifica las réplicas de la BD local que usa este distribuidor (no abre una BD nueva) */
+    public boolean verificarBaseDatos() {
+        return baseDatos.verificarIntegridad();
+    }
+
+    /**
+     * Estadísticas de la BD local, desde sus agregados en memoria */
+    public String obtenerEstadisticasBaseDatos() {
+        return baseDatos.obtenerEstadisticas();
+    }
+
     // obtener cantidad de precios pendientes
     public int getCantidadPreciosPendientes() {
         return clientesPreciosPendientes.size();
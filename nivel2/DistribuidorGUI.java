@@ -1,6 +1,6 @@
 package nivel2;
 
-import comun.BaseDatos;
+import comun.ReporteReparacion;
 
 import javax.swing.*;
 import java.awt.*;
@@ -286,8 +286,7 @@ public class DistribuidorGUI extends JFrame {
     private void verificarBD() {
         if (distribuidor != null) {
             new Thread(() -> {
-                BaseDatos bd = new BaseDatos(distribuidor.getId());
-                boolean integra = bd.verificarIntegridad();
+                boolean integra = distribuidor.verificarBaseDatos();
 
                 SwingUtilities.invokeLater(() -> {
                     if (integra) {
@@ -295,20 +294,38 @@ public class DistribuidorGUI extends JFrame {
                                 "Base de datos íntegra",
                                 "Verificación", JOptionPane.INFORMATION_MESSAGE);
                     } else {
-                        JOptionPane.showMessageDialog(this,
-                                "Se detectaron inconsistencias. Revisar log.",
-                                "Verificación", JOptionPane.WARNING_MESSAGE);
+                        int opcion = JOptionPane.showConfirmDialog(this,
+                                "Se detectaron inconsistencias. Revisar log.\n¿Reparar las réplicas ahora?",
+                                "Verificación", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+                        if (opcion == JOptionPane.YES_OPTION) {
+                            repararBD();
+                        }
                     }
                 });
             }).start();
         }
     }
 
+    private void repararBD() {
+        if (distribuidor != null) {
+            new Thread(() -> {
+                // la reparación la hace la BD del distribuidor, que es la única que escribe las réplicas
+                ReporteReparacion reporte = distribuidor.repararBaseDatos();
+
+                SwingUtilities.invokeLater(() -> {
+                    JOptionPane.showMessageDialog(this,
+                            reporte.toString(),
+                            "Reparación BD",
+                            reporte.isExitosa() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.ERROR_MESSAGE);
+                });
+            }).start();
+        }
+    }
+
     private void mostrarEstadisticas() {
         if (distribuidor != null) {
             new Thread(() -> {
-                BaseDatos bd = new BaseDatos(distribuidor.getId());
-                String estadisticas = bd.obtenerEstadisticas();
+                String estadisticas = distribuidor.obtenerEstadisticasBaseDatos();
 
                 SwingUtilities.invokeLater(() -> {
                     JOptionPane.showMessageDialog(this,
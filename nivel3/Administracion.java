@@ -1,6 +1,12 @@
 package nivel3;
 
+import comun.CargaMensaje;
+import comun.ConexionMensajes;
+import comun.HistorialPrecios;
 import comun.Mensaje;
+import comun.MensajeDifundido;
+import comun.Protocolo;
+import comun.TablaPrecios;
 import comun.Transaccion;
 import comun.TipoCombustible;
 
@@ -8,7 +14,13 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /***********************************************************************************************************************
@@ -16,6 +28,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Servidor central que gestiona todos los distribuidores
  **********************************************************************************************************************/
 public class Administracion {
+    static final long PLAZO_CONFIRMACION_MS = 5000; // por distribuidor, para cada versión de precios
+
     private final String id; //de administracion
     private int puerto;
 
@@ -23,7 +37,10 @@ public class Administracion {
     private Map<String, ManejadorDistribuidor> distribuidoresConectados;
     private AtomicBoolean servidorActivo;
 
-    private Map<TipoCombustible, Double> preciosBase;
+    private final HistorialPrecios preciosBase;
+    private final ConvergenciaPrecios convergencia;
+    private final ExecutorService difusionPrecios; // envíos de precios, en paralelo entre distribuidores
+    private final ScheduledExecutorService plazosPrecios;
     private List<Transaccion> historialCompleto;
 
     //CONSTRUCTOR
@@ -34,19 +51,18 @@ public class Administracion {
         this.distribuidoresConectados = new ConcurrentHashMap<>();
         this.servidorActivo = new AtomicBoolean(false);
         this.historialCompleto = new ArrayList<>();
-
-        inicializarPreciosBase();
-    }
-
-    /**
-     * inicializa precios base por defecto */
-    private void inicializarPreciosBase() {
-        preciosBase = new HashMap<>();
-        preciosBase.put(TipoCombustible.GASOLINA_93, 1000.0);
-        preciosBase.put(TipoCombustible.GASOLINA_95, 1100.0);
-        preciosBase.put(TipoCombustible.GASOLINA_97, 1200.0);
-        preciosBase.put(TipoCombustible.DIESEL, 900.0);
-        preciosBase.put(TipoCombustible.KEROSENE, 800.0);
+        this.preciosBase = new HistorialPrecios(TablaPrecios.porDefecto().nuevoLinaje());
+        this.convergencia = new ConvergenciaPrecios();
+        this.difusionPrecios = Executors.newCachedThreadPool(r -> {
+            Thread hilo = new Thread(r, "precios-" + id);
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        this.plazosPrecios = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread hilo = new Thread(r, "plazos-precios-" + id);
+            hilo.setDaemon(true);
+            return hilo;
+        });
     }
 
     /**
@@ -73,36 +89,52 @@ public class Administracion {
     }
 
     /**
-     * Actualiza los precios base y los propaga a todos los distribuidores
-     */
+     * Actualiza los precios base y los propaga a todos los distribuidores.
+     * Cada actualización es una versión nueva y a los distribuidores solo les viajan los precios que cambiaron; el
+     * que no tenga la versión anterior responde con la suya y se le mandan los cambios desde ella.
+     * Cada distribuidor se atiende en su propio hilo, así uno trabado no demora a los demás; recibe las versiones en
+     * orden y tiene PLAZO_CONFIRMACION_MS para confirmar. Las confirmaciones (las suyas y las de sus surtidores) se
+     * siguen en getConvergenciaPrecios(). */
     public void actualizarPreciosBase(Map<TipoCombustible, Double> nuevosPrecios) {
         System.out.println("[" + id + "] Actualizando precios base...");
 
+        CargaMensaje.Precios cambios = preciosBase.actualizar(actual -> actual.con(nuevosPrecios));
         for (Map.Entry<TipoCombustible, Double> entry : nuevosPrecios.entrySet()) {
-            preciosBase.put(entry.getKey(), entry.getValue());
             System.out.println("[" + id + "] " + entry.getKey().getNombre() +
                     " -> $" + entry.getValue());
         }
 
-        //crear mensaje para distribuidores
-        Mensaje mensaje = new Mensaje(Mensaje.Tipo.ACTUALIZAR_PRECIO_BASE, id);
-        Map<String, Double> preciosStr = new HashMap<>();
-
-        for (Map.Entry<TipoCombustible, Double> entry : preciosBase.entrySet()) {
-            preciosStr.put(entry.getKey().name(), entry.getValue());
-        }
-
-        mensaje.agregarDato("precios", preciosStr);
-
-        //enviar a todos los distribuidores conectados
-        int enviados = 0;
-        for (ManejadorDistribuidor manejador : distribuidoresConectados.values()) {
-            if (manejador.enviarMensaje(mensaje)) {
-                enviados++;
+        //un mismo mensaje para todos, codificado una sola vez; los distribuidores anteriores a las versiones de
+        //precios reciben la tabla completa
+        MensajeDifundido mensajeCambios = mensajePrecios(cambios);
+        MensajeDifundido mensajeCompleta = null;
+
+        //enviar a todos los distribuidores conectados a la vez, sin esperar la confirmación de cada uno
+        long version = cambios.getVersion();
+        List<ManejadorDistribuidor> destinos = new ArrayList<>(distribuidoresConectados.values());
+        List<String> ids = new ArrayList<>();
+        for (ManejadorDistribuidor manejador : destinos) ids.add(manejador.getIdDistribuidor());
+        convergencia.publicada(version, ids);
+
+        for (ManejadorDistribuidor manejador : destinos) {
+            MensajeDifundido mensaje = mensajeCambios;
+            if (manejador.conexion.getVersionAcordada() < Protocolo.VERSION_PRECIOS) {
+                if (mensajeCompleta == null) {
+                    mensajeCompleta = mensajePrecios(new CargaMensaje.Precios(preciosBase.actual()));
+                }
+                mensaje = mensajeCompleta;
             }
+            CompletableFuture<Boolean> enviado = manejador.encolarPrecios(mensaje);
+            plazosPrecios.schedule(() -> manejador.vencioPlazoPrecios(version, enviado),
+                    PLAZO_CONFIRMACION_MS, TimeUnit.MILLISECONDS);
         }
 
-        System.out.println("[" + id + "] Precios enviados a " + enviados + " distribuidores");
+        System.out.println("[" + id + "] Precios (versión " + version + ", " + cambios.getCantidad() +
+                " cambios) enviándose a " + destinos.size() + " distribuidores");
+    }
+
+    private MensajeDifundido mensajePrecios(CargaMensaje.Precios precios) {
+        return new MensajeDifundido(new Mensaje(Mensaje.Tipo.ACTUALIZAR_PRECIO_BASE, id, precios));
     }
 
     /**
@@ -124,13 +156,10 @@ public class Administracion {
         reporte.append("=== REPORTE CONSOLIDADO ===\n");
         reporte.append("Fecha: ").append(new Date()).append("\n\n");
 
-        double totalVentasGlobal = 0;
+        // montos en milésimas (Transaccion.getMontoMilesimas): la suma es exacta
+        long totalVentasGlobal = 0;
         int totalTransacciones = 0;
-        Map<TipoCombustible, Double> ventasPorTipo = new HashMap<>();
-
-        for (TipoCombustible tipo : TipoCombustible.values()) {
-            ventasPorTipo.put(tipo, 0.0);
-        }
+        long[] ventasPorTipo = new long[TipoCombustible.values().length];
 
         // procesar cada distribuidor
         reporte.append("Distribuidores Conectados: ").append(distribuidoresConectados.size()).append("\n\n");
@@ -139,39 +168,42 @@ public class Administracion {
             String idDist = manejador.getIdDistribuidor();
             List<Transaccion> transacciones = manejador.getTransacciones();
 
-            double totalDist = transacciones.stream()
-                    .mapToDouble(Transaccion::getMontoTotal)
+            long totalDist = transacciones.stream()
+                    .mapToLong(Transaccion::getMontoMilesimas)
                     .sum();
 
             reporte.append("Distribuidor: ").append(idDist).append("\n");
             reporte.append("  Transacciones: ").append(transacciones.size()).append("\n");
-            reporte.append("  Total Ventas: $").append(String.format("%.2f", totalDist)).append("\n\n");
+            reporte.append("  Total Ventas: $").append(formatearMonto(totalDist)).append("\n\n");
 
             totalVentasGlobal += totalDist;
             totalTransacciones += transacciones.size();
 
             //agrupar por tipo de combustible
             for (Transaccion t : transacciones) {
-                double actual = ventasPorTipo.get(t.getTipoCombustible());
-                ventasPorTipo.put(t.getTipoCombustible(), actual + t.getMontoTotal());
+                ventasPorTipo[t.getTipoCombustible().ordinal()] += t.getMontoMilesimas();
             }
         }
 
         reporte.append("=== RESUMEN GLOBAL ===\n");
         reporte.append("Total Transacciones: ").append(totalTransacciones).append("\n");
-        reporte.append("Total Ventas: $").append(String.format("%.2f", totalVentasGlobal)).append("\n\n");
+        reporte.append("Total Ventas: $").append(formatearMonto(totalVentasGlobal)).append("\n\n");
 
         reporte.append("Ventas por Tipo de Combustible:\n");
-        for (Map.Entry<TipoCombustible, Double> entry : ventasPorTipo.entrySet()) {
-            if (entry.getValue() > 0) {
-                reporte.append("  ").append(entry.getKey().getNombre())
-                        .append(": $").append(String.format("%.2f", entry.getValue())).append("\n");
+        for (TipoCombustible tipo : TipoCombustible.values()) {
+            if (ventasPorTipo[tipo.ordinal()] > 0) {
+                reporte.append("  ").append(tipo.getNombre())
+                        .append(": $").append(formatearMonto(ventasPorTipo[tipo.ordinal()])).append("\n");
             }
         }
 
         return reporte.toString();
     }
 
+    private static String formatearMonto(long milesimas) {
+        return String.format("%.2f", milesimas / (double) Transaccion.UNIDADES);
+    }
+
     /**
      * detiene el servidor de administración */
     public void detener() {
@@ -189,22 +221,36 @@ public class Administracion {
 
     //GETTERS
     public Map<TipoCombustible, Double> getPreciosBase() {
-        return new HashMap<>(preciosBase);
+        return preciosBase.actual().aMapa();
     }
 
     public int getCantidadDistribuidores() {
         return distribuidoresConectados.size();
     }
 
+    /**
+     * Convergencia de la última versión de precios publicada (null si no se publicó ninguna). */
+    public ConvergenciaPrecios.Resumen getConvergenciaPrecios() {
+        return convergencia.ultima();
+    }
+
+    /**
+     * Convergencia de una versión de precios (null si no se publicó o ya no se sigue). */
+    public ConvergenciaPrecios.Resumen getConvergenciaPrecios(long version) {
+        return convergencia.resumen(version);
+    }
+
     /**
      * Clase interna para manejar cada distribuidor conectado */
     private class ManejadorDistribuidor implements Runnable {
         private Socket socket;
-        private ObjectOutputStream out;
-        private ObjectInputStream in;
+        private ConexionMensajes conexion;
         private String idDistribuidor;
         private AtomicBoolean activo;
         private List<Transaccion> transacciones;
+        // versiones enviadas sin PIPELINING, en orden: cada CONFIRMACION_PRECIO sin correlación confirma la primera
+        private final Queue<Long> preciosSinCorrelacion = new ConcurrentLinkedQueue<>();
+        private CompletableFuture<Boolean> preciosEnCurso = CompletableFuture.completedFuture(true);
 
         public ManejadorDistribuidor(Socket socket) {
             this.socket = socket;
@@ -215,24 +261,21 @@ public class Administracion {
         @Override
         public void run() {
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                conexion = ConexionMensajes.aceptada(socket);
 
                 System.out.println("[" + id + "] Nuevo distribuidor conectado desde " +
                         socket.getInetAddress());
 
                 while (activo.get()) {
-                    Mensaje mensaje = (Mensaje) in.readObject();
+                    Mensaje mensaje = conexion.recibir();
 
-                    if (idDistribuidor == null) {
-                        idDistribuidor = mensaje.getIdOrigen();
-                        distribuidoresConectados.put(idDistribuidor, this);
-                        System.out.println("[" + id + "] Distribuidor registrado: " + idDistribuidor);
+                    if (idDistribuidor == null && registrar(mensaje)) {
+                        continue;
                     }
 
                     procesarMensaje(mensaje);
                 }
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 System.err.println("[" + id + "] Distribuidor desconectado: " + idDistribuidor);
             } finally {
                 if (idDistribuidor != null) {
@@ -242,6 +285,25 @@ public class Administracion {
             }
         }
 
+        /**
+         * Identifica al distribuidor con su primer mensaje. Si es el saludo, le responde con lo acordado y devuelve
+         * true (no hay más que procesar); un distribuidor anterior al saludo queda identificado por el idOrigen, sin
+         * capacidades. */
+        private boolean registrar(Mensaje primero) throws IOException {
+            CargaMensaje.Saludo saludo = CargaMensaje.Saludo.de(primero);
+            if (saludo != null) {
+                enviarMensaje(new Mensaje(Mensaje.Tipo.SALUDO, id, conexion.acordar(id, saludo)));
+                conexion.usarFormatoAcordado(); // la respuesta salió en el formato del saludo
+            } else {
+                conexion.acordarLegado(primero.getIdOrigen());
+            }
+            idDistribuidor = conexion.getIdRemoto();
+            distribuidoresConectados.put(idDistribuidor, this);
+            System.out.println("[" + id + "] Distribuidor registrado: " + idDistribuidor + " (protocolo v" +
+                    conexion.getVersionAcordada() + ", " + Protocolo.describir(conexion.getCapacidades()) + ")");
+            return saludo != null;
+        }
+
         private void procesarMensaje(Mensaje mensaje) {
             switch (mensaje.getTipo()) {
                 case ENVIAR_REPORTE:
@@ -249,6 +311,20 @@ public class Administracion {
                     break;
 
                 case CONFIRMACION_PRECIO:
+                    CargaMensaje.ConfirmacionPrecios confirmacion = CargaMensaje.ConfirmacionPrecios.de(mensaje);
+                    if (confirmacion != null && !idDistribuidor.equals(confirmacion.getIdNodo())) {
+                        // la de un surtidor, que el distribuidor reenvía
+                        convergencia.confirmadaPorSurtidor(idDistribuidor, confirmacion.getIdNodo(),
+                                confirmacion.getVersion());
+                        break;
+                    }
+                    // sin PIPELINING (un distribuidor anterior no manda carga): la de la versión enviada más vieja
+                    Long enviada = preciosSinCorrelacion.poll();
+                    if (enviada != null) {
+                        convergencia.confirmadaPorDistribuidor(idDistribuidor,
+                                confirmacion != null ? confirmacion.getVersion() : enviada,
+                                confirmacion != null ? confirmacion.getSurtidores() : -1);
+                    }
                     System.out.println("[" + id + "] Distribuidor " + idDistribuidor +
                             " confirmó actualización de precios");
                     break;
@@ -263,75 +339,157 @@ public class Administracion {
                     procesarSincronizacion(mensaje);
                     break;
 
+                case SOLICITAR_PRECIOS:
+                    CargaMensaje.ConsultaPrecios consulta = CargaMensaje.ConsultaPrecios.de(mensaje);
+                    if (consulta != null) {
+                        enviarPrecios(preciosBase.desde(consulta));
+                    }
+                    break;
+
                 default:
                     System.out.println("[" + id + "] Mensaje de distribuidor: " + mensaje);
             }
         }
 
 
+        /**
+         * El reporte llega paginado: la página 0 reemplaza lo recibido antes y los totales vienen en la última. */
         private void procesarReporte(Mensaje mensaje) {
-            Integer totalTrans = mensaje.obtenerEntero("totalTransacciones");
-            Double totalVentas = mensaje.obtenerDouble("totalVentas");
+            CargaMensaje.Reporte reporte = CargaMensaje.Reporte.de(mensaje);
 
-            List<Transaccion> transaccionesDist =
-                    (List<Transaccion>) mensaje.obtenerDato("transacciones");
-
-            if (transaccionesDist != null) {
+            if (reporte.getPagina() == 0) {
                 transacciones.clear();
-                transacciones.addAll(transaccionesDist);
-                historialCompleto.addAll(transaccionesDist);
+            }
+            List<Transaccion> transaccionesDist = reporte.comoLista();
+            transacciones.addAll(transaccionesDist);
+            historialCompleto.addAll(transaccionesDist);
+
+            if (!reporte.isUltima()) {
+                return;
             }
 
             System.out.println("[" + id + "] Reporte recibido de " + idDistribuidor + ":");
-            System.out.println("  Transacciones: " + totalTrans);
-            System.out.println("  Total Ventas: $" + totalVentas);
+            System.out.println("  Transacciones: " + reporte.getTotalTransacciones());
+            System.out.println("  Total Ventas: $" + formatearMonto(reporte.getTotalVentasMilesimas()));
         }
 
 
         /**
          * Procesa sincronización de transacciones pendientes
          */
-        @SuppressWarnings("unchecked")
         private void procesarSincronizacion(Mensaje mensaje) {
-            List<Transaccion> transaccionesPendientes =
-                    (List<Transaccion>) mensaje.obtenerDato("transacciones");
-            Integer cantidad = mensaje.obtenerEntero("cantidad");
+            CargaMensaje.Lote lote = CargaMensaje.Lote.de(mensaje);
 
-            if (transaccionesPendientes != null && !transaccionesPendientes.isEmpty()) {
+            if (lote != null && lote.getCantidad() > 0) {
+                int cantidad = lote.getCantidad();
                 System.out.println("[" + id + "] ===================================");
                 System.out.println("[" + id + "] SINCRONIZACIÓN DE DATOS");
                 System.out.println("[" + id + "] Distribuidor: " + idDistribuidor);
                 System.out.println("[" + id + "] Transacciones recibidas: " + cantidad);
 
                 // Agregar al historial del distribuidor
+                List<Transaccion> transaccionesPendientes = lote.comoLista();
                 transacciones.addAll(transaccionesPendientes);
                 historialCompleto.addAll(transaccionesPendientes);
 
                 // Calcular totales
-                double totalSincronizado = transaccionesPendientes.stream()
-                        .mapToDouble(Transaccion::getMontoTotal)
-                        .sum();
+                long totalSincronizado = lote.getMontoMilesimas();
 
-                System.out.println("[" + id + "] Monto total sincronizado: $" +
-                        String.format("%.2f", totalSincronizado));
+                System.out.println("[" + id + "] Monto total sincronizado: $" + formatearMonto(totalSincronizado));
                 System.out.println("[" + id + "] ===================================");
 
                 // Enviar ACK de confirmación
-                Mensaje ack = new Mensaje(Mensaje.Tipo.ACK, id);
-                ack.agregarDato("mensaje", "Transacciones sincronizadas exitosamente");
-                ack.agregarDato("cantidad", cantidad);
-                enviarMensaje(ack);
+                enviarMensaje(mensaje.responder(Mensaje.Tipo.ACK, id,
+                        new CargaMensaje.Ack("Transacciones sincronizadas exitosamente", cantidad)));
             } else {
                 System.out.println("[" + id + "] Sincronización vacía de " + idDistribuidor);
             }
         }
 
 
+        /**
+         * Envía una solicitud (ver ConexionMensajes.solicitar); null si no se pudo enviar. */
+        public CompletableFuture<Mensaje> solicitar(MensajeDifundido mensaje) {
+            try {
+                if (conexion != null && activo.get()) {
+                    return conexion.solicitar(mensaje);
+                }
+            } catch (IOException e) {
+                System.err.println("[" + id + "] Error enviando a distribuidor " +
+                        idDistribuidor + ": " + e.getMessage());
+                activo.set(false);
+            }
+            return null;
+        }
+
+        /**
+         * Manda precios al distribuidor (nada si es null), después de los envíos anteriores a él. */
+        private void enviarPrecios(CargaMensaje.Precios precios) {
+            if (precios != null) {
+                encolarPrecios(mensajePrecios(precios));
+            }
+        }
+
+        /**
+         * No bloquea al que llama: la solicitud, que puede esperar lugar en la ventana, sale en difusionPrecios
+         * después de los envíos anteriores a este distribuidor, así las versiones le llegan en orden. El futuro
+         * completa con el resultado de enviarPrecios. */
+        private synchronized CompletableFuture<Boolean> encolarPrecios(MensajeDifundido mensaje) {
+            CompletableFuture<Boolean> enviado =
+                    preciosEnCurso.thenApplyAsync(anterior -> enviarPrecios(mensaje), difusionPrecios);
+            preciosEnCurso = enviado.exceptionally(e -> {
+                System.err.println("[" + id + "] Error al enviar precios a " + idDistribuidor + ": " +
+                        e.getMessage());
+                return false;
+            });
+            return enviado;
+        }
+
+        /**
+         * Manda precios al distribuidor como solicitud; la respuesta llega a precioConfirmado. false si no se pudo
+         * enviar. */
+        private boolean enviarPrecios(MensajeDifundido mensaje) {
+            long version = CargaMensaje.Precios.de(mensaje.getMensaje()).getVersion();
+            // antes de enviar: la confirmación sin correlación puede llegar antes de que solicitar() vuelva
+            boolean sinCorrelacion = conexion != null && !conexion.soporta(Protocolo.PIPELINING);
+            if (sinCorrelacion) preciosSinCorrelacion.add(version);
+            CompletableFuture<Mensaje> confirmacion = solicitar(mensaje);
+            if (confirmacion == null) {
+                if (sinCorrelacion) preciosSinCorrelacion.remove(version);
+                return false;
+            }
+            confirmacion.thenAccept(respuesta -> precioConfirmado(respuesta, version));
+            return true;
+        }
+
+        /**
+         * HILO lector: respuesta a ACTUALIZAR_PRECIO_BASE (null si el distribuidor no devuelve la correlación: la
+         * confirmación llega por procesarMensaje). Si al distribuidor le faltaba una versión anterior, responde con
+         * la que tiene y se le mandan los cambios desde ella. */
+        private void precioConfirmado(Mensaje respuesta, long version) {
+            if (respuesta == null) return;
+            CargaMensaje.ConsultaPrecios consulta = CargaMensaje.ConsultaPrecios.de(respuesta);
+            if (respuesta.getTipo() == Mensaje.Tipo.CONFIRMACION_PRECIO) {
+                CargaMensaje.ConfirmacionPrecios confirmacion = CargaMensaje.ConfirmacionPrecios.de(respuesta);
+                convergencia.confirmadaPorDistribuidor(idDistribuidor,
+                        confirmacion != null ? confirmacion.getVersion() : version,
+                        confirmacion != null ? confirmacion.getSurtidores() : -1);
+                System.out.println("[" + id + "] Distribuidor " + idDistribuidor +
+                        " confirmó precios versión " + version);
+            } else if (consulta != null) {
+                System.out.println("[" + id + "] Distribuidor " + idDistribuidor + " tiene precios versión " +
+                        consulta.getVersion() + ", se le mandan los cambios");
+                enviarPrecios(preciosBase.desde(consulta));
+            } else {
+                System.err.println("[" + id + "] Distribuidor " + idDistribuidor +
+                        " rechazó precios versión " + version + ": " + respuesta);
+            }
+        }
+
         public boolean enviarMensaje(Mensaje mensaje) {
             try {
-                if (out != null && activo.get()) {
-                    out.writeObject(mensaje);
-                    out.flush();
+                if (conexion != null && activo.get()) {
+                    conexion.enviar(mensaje);
                     return true;
                 }
             } catch (IOException e) {
@@ -342,11 +500,27 @@ public class Administracion {
             return false;
         }
 
+        /**
+         * Venció el plazo del distribuidor para confirmar la versión. Si el envío todavía no terminó, su conexión
+         * está trabada: se cierra, y al reconectarse el distribuidor pide los precios que le falten. */
+        private void vencioPlazoPrecios(long version, CompletableFuture<Boolean> enviado) {
+            if (convergencia.confirmo(idDistribuidor, version)) return;
+            convergencia.vencida(idDistribuidor, version);
+            if (!enviado.isDone()) {
+                System.err.println("[" + id + "] Envío de precios versión " + version + " a " + idDistribuidor +
+                        " trabado por más de " + PLAZO_CONFIRMACION_MS + " ms, se cierra la conexión");
+                activo.set(false);
+                cerrar();
+            } else {
+                System.err.println("[" + id + "] Distribuidor " + idDistribuidor + " no confirmó precios versión " +
+                        version + " en " + PLAZO_CONFIRMACION_MS + " ms");
+            }
+        }
+
         private void cerrar() {
             try {
-                if (out != null) out.close();
-                if (in != null) in.close();
-                if (socket != null) socket.close();
+                if (conexion != null) conexion.close();
+                else if (socket != null) socket.close();
             } catch (IOException e) {
                 // Ignorar
             }
@@ -33,6 +33,7 @@ public class AdministracionGUI extends JFrame {
     // Estado
     private JLabel lblEstado;
     private JLabel lblDistribuidores;
+    private JLabel lblConvergencia;
 
     // Panel de log
     private JTextArea txtLog;
@@ -93,6 +94,13 @@ public class AdministracionGUI extends JFrame {
         lblDistribuidores = new JLabel("0");
         panelEstado.add(lblDistribuidores);
 
+        panelEstado.add(Box.createHorizontalStrut(20));
+
+        // confirmaciones de la última versión de precios: tiempo hasta el 50%, 99% y 100% de la red
+        panelEstado.add(new JLabel("Convergencia de precios:"));
+        lblConvergencia = new JLabel("-");
+        panelEstado.add(lblConvergencia);
+
         panel.add(panelConfig, BorderLayout.NORTH);
         panel.add(panelEstado, BorderLayout.SOUTH);
 
@@ -317,6 +325,10 @@ public class AdministracionGUI extends JFrame {
     private void actualizarEstado() {
         if (administracion != null) {
             lblDistribuidores.setText(String.valueOf(administracion.getCantidadDistribuidores()));
+            ConvergenciaPrecios.Resumen convergencia = administracion.getConvergenciaPrecios();
+            lblConvergencia.setText(convergencia == null ? "-" : convergencia.toString());
+            lblConvergencia.setForeground(convergencia == null || convergencia.isConvergida() ?
+                    Color.BLACK : Color.ORANGE.darker());
         }
     }
 
@@ -0,0 +1,185 @@
+package nivel3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/***********************************************************************************************************************
+ * Cuánto tarda la red en usar cada versión de precios que publica la Administración.
+ * Por versión guarda cuándo se publicó y cuándo la confirmó cada nodo: los distribuidores (su CONFIRMACION_PRECIO) y
+ * sus surtidores (las confirmaciones que reenvía el distribuidor, como "distribuidor/surtidor"). Un nodo que confirma
+ * una versión cuenta también para las anteriores, porque ya usa precios más nuevos. Se esperan los distribuidores
+ * conectados al publicar más los surtidores que cada uno informó en su última confirmación; de ahí salen los tiempos
+ * hasta que confirmó el 50%, el 99% y el 100% de la red. Se siguen las últimas VERSIONES. Thread-safe. */
+/**********************************************************************************************************************/
+public class ConvergenciaPrecios {
+    public static final int VERSIONES = 16;
+
+    private final Map<Long, Seguimiento> seguimientos = new LinkedHashMap<>(); // por versión, en orden de publicación
+    private final Map<String, Integer> surtidoresPorDistribuidor = new HashMap<>();
+
+    /**
+     * Se publicó la versión 'version' y se está mandando a 'distribuidores'. */
+    public synchronized void publicada(long version, Collection<String> distribuidores) {
+        seguimientos.put(version, new Seguimiento(version, distribuidores));
+        Iterator<Long> it = seguimientos.keySet().iterator();
+        while (seguimientos.size() > VERSIONES) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * El distribuidor usa la versión 'version' y la propagó a 'surtidores' surtidores (negativo si no lo informa,
+     * como un distribuidor anterior a Protocolo.VERSION_PRECIOS). */
+    public synchronized void confirmadaPorDistribuidor(String idDistribuidor, long version, int surtidores) {
+        if (surtidores >= 0) {
+            surtidoresPorDistribuidor.put(idDistribuidor, surtidores);
+        }
+        confirmar(idDistribuidor, idDistribuidor, version);
+    }
+
+    /**
+     * Un surtidor del distribuidor usa la versión 'version'. */
+    public synchronized void confirmadaPorSurtidor(String idDistribuidor, String idSurtidor, long version) {
+        confirmar(idDistribuidor, idDistribuidor + "/" + idSurtidor, version);
+    }
+
+    /**
+     * El distribuidor no confirmó la versión dentro de su plazo. */
+    public synchronized void vencida(String idDistribuidor, long version) {
+        Seguimiento seguimiento = seguimientos.get(version);
+        if (seguimiento != null && !seguimiento.confirmaciones.containsKey(idDistribuidor)) {
+            seguimiento.vencidos.add(idDistribuidor);
+        }
+    }
+
+    /**
+     * true si el distribuidor ya confirmó esa versión (o una posterior). */
+    public synchronized boolean confirmo(String idDistribuidor, long version) {
+        Seguimiento seguimiento = seguimientos.get(version);
+        return seguimiento != null && seguimiento.confirmaciones.containsKey(idDistribuidor);
+    }
+
+    /**
+     * Estado de la versión, o null si no se publicó o ya no se sigue. */
+    public synchronized Resumen resumen(long version) {
+        Seguimiento seguimiento = seguimientos.get(version);
+        return seguimiento == null ? null : seguimiento.resumir();
+    }
+
+    /**
+     * Estado de la última versión publicada, o null si todavía no se publicó ninguna. */
+    public synchronized Resumen ultima() {
+        Seguimiento ultimo = null;
+        for (Seguimiento seguimiento : seguimientos.values()) ultimo = seguimiento;
+        return ultimo == null ? null : ultimo.resumir();
+    }
+
+    private void confirmar(String idDistribuidor, String idNodo, long version) {
+        long ahora = System.nanoTime();
+        for (Seguimiento seguimiento : seguimientos.values()) {
+            if (seguimiento.version > version || seguimiento.confirmaciones.containsKey(idNodo)) continue;
+            seguimiento.distribuidores.add(idDistribuidor); // uno que se conectó después también cuenta
+            seguimiento.confirmaciones.put(idNodo, (ahora - seguimiento.publicadaNs) / 1_000_000);
+            seguimiento.vencidos.remove(idNodo);
+        }
+    }
+
+    // SEGUIMIENTO DE UNA VERSIÓN
+    private class Seguimiento {
+        private final long version;
+        private final long publicadaNs = System.nanoTime();
+        private final Set<String> distribuidores;
+        private final Map<String, Long> confirmaciones = new HashMap<>(); // nodo -> ms desde la publicación
+        private final Set<String> vencidos = new HashSet<>();
+
+        //CONSTRUCTOR
+        private Seguimiento(long version, Collection<String> distribuidores) {
+            this.version = version;
+            this.distribuidores = new HashSet<>(distribuidores);
+        }
+
+        private Resumen resumir() {
+            int esperados = distribuidores.size();
+            for (String distribuidor : distribuidores) {
+                esperados += surtidoresPorDistribuidor.getOrDefault(distribuidor, 0);
+            }
+            esperados = Math.max(esperados, confirmaciones.size());
+
+            long[] tiempos = new long[confirmaciones.size()];
+            int i = 0;
+            for (long tiempo : confirmaciones.values()) tiempos[i++] = tiempo;
+            Arrays.sort(tiempos);
+
+            List<String> sinConfirmar = new ArrayList<>(vencidos);
+            Collections.sort(sinConfirmar);
+            return new Resumen(version, esperados, tiempos.length, tiempoHasta(tiempos, esperados, 0.5),
+                    tiempoHasta(tiempos, esperados, 0.99), tiempoHasta(tiempos, esperados, 1.0), sinConfirmar);
+        }
+    }
+
+    // ms hasta que confirmó esa fracción de los esperados, -1 si todavía no
+    private static long tiempoHasta(long[] tiempos, int esperados, double fraccion) {
+        int necesarios = (int) Math.ceil(fraccion * esperados);
+        if (necesarios == 0) return 0;
+        return necesarios <= tiempos.length ? tiempos[necesarios - 1] : -1;
+    }
+
+    /**
+     * Convergencia de una versión: nodos esperados y confirmados, y ms hasta el 50%, 99% y 100% (-1 si todavía no
+     * se llegó). */
+    public static final class Resumen {
+        private final long version;
+        private final int esperados;
+        private final int confirmados;
+        private final long ms50;
+        private final long ms99;
+        private final long ms100;
+        private final List<String> vencidos;
+
+        //CONSTRUCTOR
+        private Resumen(long version, int esperados, int confirmados, long ms50, long ms99, long ms100,
+                        List<String> vencidos) {
+            this.version = version;
+            this.esperados = esperados;
+            this.confirmados = confirmados;
+            this.ms50 = ms50;
+            this.ms99 = ms99;
+            this.ms100 = ms100;
+            this.vencidos = Collections.unmodifiableList(vencidos);
+        }
+
+        //GETTERS
+        public long getVersion() { return version; }
+        public int getEsperados() { return esperados; }
+        public int getConfirmados() { return confirmados; }
+        public long getMs50() { return ms50; }
+        public long getMs99() { return ms99; }
+        public long getMs100() { return ms100; }
+        public List<String> getVencidos() { return vencidos; }
+
+        public boolean isConvergida() {
+            return ms100 >= 0;
+        }
+
+        @Override
+        public String toString() {
+            String texto = "v" + version + ": " + confirmados + "/" + esperados + " nodos, 50% " + tiempo(ms50) +
+                    ", 99% " + tiempo(ms99) + ", 100% " + tiempo(ms100);
+            return vencidos.isEmpty() ? texto : texto + ", fuera de plazo: " + String.join(", ", vencidos);
+        }
+
+        private static String tiempo(long ms) {
+            return ms < 0 ? "-" : ms + " ms";
+        }
+    }
+}